@@ -0,0 +1,56 @@
+/* Runs all benchmarks and saves the results as JSON, so that runs can be compared.
+ * The Mailbox benchmarks are repeated for each thread count; the others run single-threaded.
+ * One file is written per run, named after the benchmarks and thread count.
+ *
+ * Usage:
+ * 1. Run using "java -jar target/benchmarks.jar [output directory] [thread counts...]"
+ * 		eg. "java -jar target/benchmarks.jar results 1 4 16" (defaults: "results 1 2 4 8")
+ * 2. Compare the JSON files in the output directory, eg. with https://jmh.morethan.io
+ * For any other selection of benchmarks and options, use "org.openjdk.jmh.Main" as the main class.
+ */
+package benchmark;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchmarkRunner {
+
+	// Benchmarks run once, single-threaded
+	private static final Class<?>[] SINGLE_THREADED = { MarshallerBenchmark.class, CSVBenchmark.class,
+			RPCMessageBenchmark.class };
+
+	public static void main(String[] args) throws RunnerException {
+		File outputDirectory = new File(args.length > 0 ? args[0] : "results");
+		int[] threadCounts = { 1, 2, 4, 8 };
+		if (args.length > 1) {
+			threadCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++)
+				threadCounts[i - 1] = Integer.parseInt(args[i]);
+		}
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+			throw new IllegalArgumentException("Could not create the output directory " + outputDirectory);
+
+		for (Class<?> benchmark : SINGLE_THREADED)
+			run(benchmark, 1, new File(outputDirectory, benchmark.getSimpleName() + ".json"));
+
+		for (int threads : threadCounts)
+			run(MailboxBenchmark.class, threads, new File(outputDirectory, MailboxBenchmark.class.getSimpleName() + "-t"
+					+ threads + ".json"));
+	}
+
+	// Run the benchmarks of a class with the given number of threads
+	private static void run(Class<?> benchmark, int threads, File resultFile) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include("\\." + benchmark.getSimpleName() + "\\.")
+				.threads(threads)
+				.resultFormat(ResultFormatType.JSON)
+				.result(resultFile.getPath())
+				.build();
+		new Runner(options).run();
+	}
+}
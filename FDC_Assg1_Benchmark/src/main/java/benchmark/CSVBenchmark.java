@@ -0,0 +1,106 @@
+/* Benchmarks for encoding and decoding the CSV carried by every RPC.
+ * Compares the list-based functions of CSVUtility against the Builder and the in-place
+ * Fields, using a typical deposit request (sender, recipient, a few words of text).
+ * The regular expression split that fromCSV(...) used to rely on is included as a baseline.
+ *
+ * Usage:
+ * 1. Run using "java -cp target/benchmarks.jar org.openjdk.jmh.Main CSVBenchmark"
+ */
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import components.utilities.CSVUtility;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CSVBenchmark {
+
+	// Number of words in the message text
+	@Param({ "1", "20" })
+	public int wordCount;
+
+	private long senderID;
+	private long recipientID;
+	private List<String> words;
+	private String csvData;
+
+	@Setup
+	public void setup() {
+		senderID = 1234567;
+		recipientID = 7654321;
+		words = new ArrayList<String>();
+		for (int i = 0; i < wordCount; i++)
+			words.add("word" + i);
+
+		csvData = encodeList();
+	}
+
+	@Benchmark
+	public String encodeList() {
+		List<String> data = new ArrayList<String>();
+		data.add("" + senderID);
+		data.add("" + recipientID);
+		data.addAll(words);
+		return CSVUtility.toCSV(data);
+	}
+
+	@Benchmark
+	public String encodeBuilder() {
+		CSVUtility.Builder builder = new CSVUtility.Builder().add(senderID).add(recipientID);
+		for (int i = 0; i < words.size(); i++)
+			builder.add(words.get(i));
+		return builder.build();
+	}
+
+	@Benchmark
+	public void decodeSplit(Blackhole blackhole) {
+		// What fromCSV(...) used to do
+		List<String> data = new ArrayList<String>(Arrays.asList(csvData.split("#@#")));
+		blackhole.consume(Long.parseLong(data.get(0)));
+		blackhole.consume(Long.parseLong(data.get(1)));
+		String content = data.get(2);
+		for (int i = 3; i < data.size(); i++)
+			content += " " + data.get(i);
+		blackhole.consume(content);
+	}
+
+	@Benchmark
+	public void decodeList(Blackhole blackhole) {
+		List<String> data = CSVUtility.fromCSV(csvData);
+		blackhole.consume(Long.parseLong(data.get(0)));
+		blackhole.consume(Long.parseLong(data.get(1)));
+		String content = data.get(2);
+		for (int i = 3; i < data.size(); i++)
+			content += " " + data.get(i);
+		blackhole.consume(content);
+	}
+
+	@Benchmark
+	public void decodeFields(Blackhole blackhole) {
+		CSVUtility.Fields data = CSVUtility.parse(csvData);
+		blackhole.consume(data.getLong(0));
+		blackhole.consume(data.getLong(1));
+		blackhole.consume(data.join(2, " "));
+	}
+}
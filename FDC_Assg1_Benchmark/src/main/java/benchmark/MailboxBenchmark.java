@@ -0,0 +1,209 @@
+/* Benchmarks for storing and retrieving messages in the Mailbox, in memory only.
+ * Each thread deposits to its own recipient and retrieves everything once the inbox has
+ * DRAIN_INTERVAL messages, so deposit measures the cost of a message over its whole stay.
+ * The peek benchmarks read an inbox holding a given backlog of messages without removing them.
+ * The retrieve benchmark drains an inbox holding the backlog, refilled before each call, with the
+ * removals logged to a write-ahead log or not; it reports the time per call, as each call is long.
+ * Run with several thread counts (see BenchmarkRunner) to see how the mailbox scales.
+ *
+ * Usage:
+ * 1. Run using "java -jar target/benchmarks.jar" (all thread counts),
+ * 		or "java -cp target/benchmarks.jar org.openjdk.jmh.Main MailboxBenchmark -t 4"
+ */
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import components.messages.ChatMessage;
+import components.messages.Mailbox;
+import components.messages.persistence.WriteAheadLog;
+import components.messages.persistence.WriteAheadLog.SyncPolicy;
+import components.messages.storage.HeapMessageStore;
+import components.notices.Status;
+import components.utilities.IDGenerator;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailboxBenchmark {
+
+	// Deposits after which a thread retrieves its inbox, keeping the heap bounded
+	private static final int DRAIN_INTERVAL = 1024;
+
+	// Recipient IDs, unique across trials since the mailbox is a singleton
+	private static final AtomicLong recipients = new AtomicLong(1000000);
+
+	/**
+	 * The mailbox, emptied for each trial, with a shared message ID sequence.
+	 */
+	@State(Scope.Benchmark)
+	public static class SharedMailbox {
+
+		// Messages waiting in the inbox read by the peek benchmarks
+		@Param({ "10", "1000", "100000" })
+		public int backlog;
+
+		private final IDGenerator idGenerator = new IDGenerator();
+		private IDGenerator.Sequence messageIDs;
+		private long backlogRecipient;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			Mailbox.getInstance().setMessageStore(new HeapMessageStore());
+			Mailbox.getInstance().setInboxQuota(0, 0);
+			messageIDs = idGenerator.getSequence("message");
+
+			backlogRecipient = recipients.incrementAndGet();
+			for (int i = 0; i < backlog; i++)
+				Mailbox.getInstance().addMessage(createMessage(1, backlogRecipient));
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			Mailbox.getInstance().drainMessages(backlogRecipient);
+		}
+
+		private ChatMessage createMessage(long senderID, long recipientID) {
+			return new ChatMessage(messageIDs.next(), senderID, recipientID, "The quick brown fox jumps over the lazy dog",
+					null);
+		}
+	}
+
+	/**
+	 * The recipient of a single thread.
+	 */
+	@State(Scope.Thread)
+	public static class Recipient {
+		private long recipientID;
+		private int pending = 0;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			recipientID = recipients.incrementAndGet();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			Mailbox.getInstance().drainMessages(recipientID);
+		}
+	}
+
+	/**
+	 * The write-ahead log the retrieve benchmark records its removals in, if any.
+	 */
+	@State(Scope.Benchmark)
+	public static class RetrieveLog {
+
+		// "none" keeps the mailbox in memory only; "os" logs without forcing each write to disk
+		@Param({ "none", "os" })
+		public String log;
+
+		private File directory;
+		private WriteAheadLog writeAheadLog;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			if (log.equals("none"))
+				return;
+			directory = Files.createTempDirectory("mailbox-benchmark").toFile();
+			writeAheadLog = new WriteAheadLog(directory, SyncPolicy.OS, 5, 64);
+			Mailbox.getInstance().setWriteAheadLog(writeAheadLog);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			if (writeAheadLog == null)
+				return;
+			Mailbox.getInstance().setWriteAheadLog(null);
+			writeAheadLog.close();
+			File[] files = directory.listFiles();
+			if (files != null)
+				for (File file : files)
+					file.delete();
+			directory.delete();
+		}
+	}
+
+	/**
+	 * The inbox of a single thread, holding the backlog before each retrieve.
+	 */
+	@State(Scope.Thread)
+	public static class FullInbox {
+		private long recipientID;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			recipientID = recipients.incrementAndGet();
+		}
+
+		@Setup(Level.Invocation)
+		public void fill(SharedMailbox mailbox) {
+			for (int i = 0; i < mailbox.backlog; i++)
+				Mailbox.getInstance().addMessage(mailbox.createMessage(1, recipientID));
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			Mailbox.getInstance().drainMessages(recipientID);
+		}
+	}
+
+	@Benchmark
+	public short deposit(SharedMailbox mailbox, Recipient recipient) {
+		short status = Mailbox.getInstance().addMessage(mailbox.createMessage(1, recipient.recipientID));
+		if (++recipient.pending == DRAIN_INTERVAL) {
+			Mailbox.getInstance().drainMessages(recipient.recipientID);
+			recipient.pending = 0;
+		}
+		return status == Status.SUCCESS ? status : fail(status);
+	}
+
+	@Benchmark
+	public List<ChatMessage> peekBacklog(SharedMailbox mailbox) {
+		return Mailbox.getInstance().getMessagesByRecipient(mailbox.backlogRecipient, false);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<ChatMessage> retrieve(SharedMailbox mailbox, RetrieveLog log, FullInbox inbox) {
+		List<ChatMessage> messages = Mailbox.getInstance().drainMessages(inbox.recipientID);
+		return messages.size() == mailbox.backlog ? messages : failRetrieve(messages.size());
+	}
+
+	@Benchmark
+	public int inboxSize(SharedMailbox mailbox) {
+		return Mailbox.getInstance().getInboxSize(mailbox.backlogRecipient);
+	}
+
+	// Stop the benchmark on a rejected deposit, rather than measuring the rejections
+	private static short fail(short status) {
+		throw new IllegalStateException("Deposit failed with status " + status);
+	}
+
+	// Stop the benchmark on a retrieve that missed messages, rather than measuring a smaller backlog
+	private static List<ChatMessage> failRetrieve(int count) {
+		throw new IllegalStateException("Retrieve returned " + count + " messages");
+	}
+}
@@ -0,0 +1,141 @@
+/* Benchmarks for marshalling lists of messages, as done for every retrieve.
+ * Compares Java serialization (as used by marshallToString) against the compact binary format
+ * of MessageListCodec (as used by marshallMessages), for lists of different sizes. Both are
+ * measured on their raw bytes, leaving out the Base64 encoding that SimpleMarshaller applies
+ * to either alike.
+ * The marshalling benchmarks also report the bytes and messages marshalled per second, as the
+ * bytes and messages counters; bytes divided by messages is the size of the format per message.
+ *
+ * Usage:
+ * 1. Run using "java -cp target/benchmarks.jar org.openjdk.jmh.Main MarshallerBenchmark"
+ */
+package benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import components.communication.marshalling.MessageListCodec;
+import components.messages.ChatMessage;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarshallerBenchmark {
+
+	/**
+	 * Amount marshalled, reported alongside the throughput (per second, like it).
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Size {
+		public long bytes;
+		public long messages;
+
+		// Count a marshalled list
+		private void add(byte[] data, int messageCount) {
+			bytes += data.length;
+			messages += messageCount;
+		}
+	}
+
+	// Number of messages in each marshalled list
+	@Param({ "1", "100", "10000" })
+	public int messageCount;
+
+	// Length of the content of each message
+	@Param({ "100" })
+	public int messageLength;
+
+	private List<ChatMessage> messages;
+	private byte[] serializedMessages;
+	private byte[] binaryMessages;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		messages = createMessages(messageCount, messageLength);
+		serializedMessages = serialize(messages);
+		binaryMessages = MessageListCodec.encode(messages);
+	}
+
+	@Benchmark
+	public byte[] marshallSerialization(Size size) throws IOException {
+		byte[] data = serialize(messages);
+		size.add(data, messageCount);
+		return data;
+	}
+
+	@Benchmark
+	public byte[] marshallBinary(Size size) {
+		byte[] data = MessageListCodec.encode(messages);
+		size.add(data, messageCount);
+		return data;
+	}
+
+	@Benchmark
+	public Object unmarshallSerialization() throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedMessages));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public List<ChatMessage> unmarshallBinary() throws IOException {
+		return MessageListCodec.decode(binaryMessages);
+	}
+
+	// Java serialization, as SimpleMarshaller.marshallToString(...) does it before the Base64 step
+	private static byte[] serialize(Object data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(data);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Create messages between a handful of clients, as they would be stored by the server.
+	 *
+	 * @param count
+	 *            Number of messages.
+	 * @param length
+	 *            Length of the content of each message.
+	 * @return The messages.
+	 */
+	static List<ChatMessage> createMessages(int count, int length) {
+		StringBuilder content = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			content.append((char) ('a' + i % 26));
+
+		List<ChatMessage> messages = new ArrayList<ChatMessage>(count);
+		for (int i = 0; i < count; i++)
+			messages.add(new ChatMessage(1000000 + i, 1 + i % 10, 11, content.toString(), Calendar.getInstance()));
+		return messages;
+	}
+}
@@ -0,0 +1,96 @@
+/* Benchmarks for the handling every RPCMessage goes through: validating a response against
+ * its request, and serializing the packet, both in its compact form and through RMI's
+ * object streams.
+ *
+ * Usage:
+ * 1. Run using "java -cp target/benchmarks.jar org.openjdk.jmh.Main RPCMessageBenchmark"
+ */
+package benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import components.Commands.Command;
+import components.communication.RPCMessage;
+import components.communication.marshalling.MessageListCodec;
+import components.notices.Status;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RPCMessageBenchmark {
+
+	private RPCMessage request;
+	private RPCMessage response;
+	private byte[] serializedRequest;
+	private byte[] objectStreamResponse;
+
+	@Setup
+	public void setup() throws IOException {
+		request = new RPCMessage(RPCMessage.MessageType.REQUEST, 12, 1560749188566767168L, 34,
+				Command.Retrieve.getID(), "1234567", Status.UNSET);
+		response = request.createResponse(MessageListCodec.encode(MarshallerBenchmark.createMessages(10, 100)),
+				Status.SUCCESS);
+		serializedRequest = writeCompact();
+		objectStreamResponse = writeObjectStream();
+	}
+
+	@Benchmark
+	public boolean validateResponse() {
+		return response.validateResponse(request);
+	}
+
+	@Benchmark
+	public byte[] writeCompact() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		request.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public RPCMessage readCompact() throws IOException {
+		return RPCMessage.readFrom(new DataInputStream(new ByteArrayInputStream(serializedRequest)));
+	}
+
+	@Benchmark
+	public byte[] writeObjectStream() throws IOException {
+		// As RMI does for each response
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(2048);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(response);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public Object readObjectStream() throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(objectStreamResponse));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -9,6 +9,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Properties;
@@ -18,6 +19,7 @@ import client.input.UserInput;
 import client.network.Communication;
 
 import components.Commands.Command;
+import components.communication.MailboxListener;
 import components.messages.ChatMessage;
 import components.notices.NoticeMessages;
 import components.notices.Status;
@@ -32,6 +34,14 @@ public class ChatClient {
 	// Server connection details
 	private String serverAddress = null; // loaded from the properties file
 	private int serverPort = 0; // loaded from the properties file
+	private String serverTransport = null; // loaded from the properties file
+	private long serverTimeout = 0; // loaded from the properties file
+
+	// Seconds between heartbeats that keep the session alive
+	private long heartbeatInterval = 0; // loaded from the properties file
+
+	// Whether new messages are pushed by the server on connecting
+	private boolean isPushEnabled = false; // loaded from the properties file
 	
 	// Launch the client!
 	public static void main(String args[]) {
@@ -57,7 +67,16 @@ public class ChatClient {
 			// Get the UI handle
 			ui = UserInput.getInstance();
 			// Start the communication helper
-			comm = new Communication(serverAddress, serverPort);
+			comm = new Communication(serverAddress, serverPort, serverTransport);
+			comm.setTimeout(serverTimeout);
+			comm.setHeartbeatInterval(heartbeatInterval);
+			// Show pushed messages as they arrive
+			comm.setMailboxListener(new MailboxListener() {
+				@Override
+				public void messagesArrived(List<ChatMessage> messages) {
+					displayMessages(messages);
+				}
+			});
 
 			// Do we have an active connection with the server now?
 			if (comm.isActive()) {
@@ -94,6 +113,9 @@ public class ChatClient {
 					// Keep prompting for commands unless the user has exited
 				} while (!isExit(ui.getCommand()));
 
+				// Let go of the listener and the connection, so that the client can exit
+				comm.close();
+
 			} else
 				// No, we couldn't establish a connection with the server
 				ui.display(NoticeMessages.NO_CONNECTION);
@@ -108,9 +130,20 @@ public class ChatClient {
 			Properties config = new Properties();
 			config.load(new FileInputStream("config.properties"));
 
-			// Load the connection details for RMI
+			// Load the connection details, for RMI or the NIO transport
 			serverAddress = config.getProperty("server.address");
-			serverPort = Integer.parseInt(config.getProperty("server.port"));
+			serverTransport = config.getProperty("server.transport", "rmi").trim();
+			if (serverTransport.equals("nio"))
+				serverPort = Integer.parseInt(config.getProperty("server.nio.port").trim());
+			else
+				serverPort = Integer.parseInt(config.getProperty("server.port"));
+			serverTimeout = Long.parseLong(config.getProperty("server.timeout", "0").trim());
+
+			// Load the heartbeat interval
+			heartbeatInterval = Long.parseLong(config.getProperty("session.heartbeat", "0").trim());
+
+			// Load the push setting
+			isPushEnabled = Boolean.parseBoolean(config.getProperty("session.push", "false").trim());
 
 			return true;
 
@@ -160,10 +193,14 @@ public class ChatClient {
 				disconnect();
 			else if (command.equals(Command.Deposit))
 				deposit();
-			else if (command.equals(Command.Retrieve))
+			else if (command.equals(Command.DepositBatch))
+				depositBatch();
+			else if (command.equals(Command.Retrieve) || command.equals(Command.RetrieveWait))
 				retrieve();
 			else if (command.equals(Command.Inquire))
 				inquire();
+			else if (command.equals(Command.Listen))
+				listen();
 		}
 	}
 
@@ -179,6 +216,20 @@ public class ChatClient {
 			// Display client ID
 			ui.display(NoticeMessages.CLIENT_ID_GENERATED + comm.getClientID());
 
+			// Have new messages pushed from now on, if requested
+			if (isPushEnabled) {
+				List<String> args = new ArrayList<String>(1);
+				args.add(String.valueOf(comm.getClientID()));
+				try {
+					if (comm.sendOperation(Command.Listen, args))
+						listen();
+					else
+						ui.display(Status.getDescription(comm.getStatus()));
+				} catch (RemoteException e) {
+					Log.error("ChatClient", "connect", "Could not register for pushed messages", e);
+				}
+			}
+
 		} else
 			// Display an error
 			ui.display(NoticeMessages.INVALID_REPLY);
@@ -210,11 +261,27 @@ public class ChatClient {
 			ui.display(NoticeMessages.INVALID_REPLY);
 	}
 
+	// Tell the user which of their messages were deposited
+	private void depositBatch() {
+		// Validate response procedure
+		// (all other response validation is handled automatically by the communication layer)
+		if (comm.isResponseValidAsPerProcedure(Command.DepositBatch)) {
+
+			short[] statuses = comm.getBatchStatuses();
+			for (int i = 0; i < statuses.length; i++)
+				ui.display(String.format(NoticeMessages.DEPOSIT_BATCH_RESULT, i + 1, Status.getDescription(statuses[i])));
+
+		} else
+			// Display an error
+			ui.display(NoticeMessages.INVALID_REPLY);
+	}
+
 	// Show the user all the messages they have received
 	private void retrieve() {
 		// Validate response procedure
 		// (all other response validation is handled automatically by the communication layer)
-		if (comm.isResponseValidAsPerProcedure(Command.Retrieve)) {
+		if (comm.isResponseValidAsPerProcedure(Command.Retrieve)
+				|| comm.isResponseValidAsPerProcedure(Command.RetrieveWait)) {
 
 			ui.display(NoticeMessages.RETRIEVE_SUCCESS);
 			// Extract messages
@@ -223,40 +290,7 @@ public class ChatClient {
 				// Did we get any messages?
 				if (messages.size() > 0) {
 					// Yes!
-					Calendar currentTime = Calendar.getInstance();
-					for (ChatMessage message : messages) {
-						// Print the message details
-						StringBuilder messageToDisplay = new StringBuilder();
-						messageToDisplay.append("New message received: " + "\n\tFrom: " + message.getSenderID()
-								+ "\n\tContent: " + message.getMessage()
-								+ "\n\tThis message has been waiting at the server for ");
-						// How long was the message waiting? Compute year gap
-						int yearsBetween = currentTime.get(Calendar.YEAR) - message.getReceiveDate().get(Calendar.YEAR);
-						if (yearsBetween > 0)
-							messageToDisplay.append(yearsBetween + " year(s)");
-						// Compute day gap
-						int daysBetween = currentTime.get(Calendar.DATE) - message.getReceiveDate().get(Calendar.DATE);
-						if (daysBetween > 0)
-							messageToDisplay.append(daysBetween + " day(s)");
-						// Compute hour gap
-						int hoursBetween = currentTime.get(Calendar.HOUR_OF_DAY)
-								- message.getReceiveDate().get(Calendar.HOUR_OF_DAY);
-						if (hoursBetween > 0)
-							messageToDisplay.append(hoursBetween + " hour(s)");
-						// Compute minute gap
-						int minutesBetween = currentTime.get(Calendar.MINUTE)
-								- message.getReceiveDate().get(Calendar.MINUTE);
-						if (minutesBetween > 0)
-							messageToDisplay.append(minutesBetween + " minute(s)");
-						// Compute second gap
-						int secondsBetween = currentTime.get(Calendar.SECOND)
-								- message.getReceiveDate().get(Calendar.SECOND);
-						if (secondsBetween > 0)
-							messageToDisplay.append(secondsBetween + " second(s)");
-
-						// Print it all!
-						ui.display(messageToDisplay.toString());
-					}
+					displayMessages(messages);
 				} else
 					// No messages
 					ui.display(NoticeMessages.RETRIEVE_EMPTY);
@@ -269,6 +303,55 @@ public class ChatClient {
 			ui.display(NoticeMessages.INVALID_REPLY);
 	}
 
+	// Show the messages to the user, with how long they were waiting at the server
+	private void displayMessages(List<ChatMessage> messages) {
+		Calendar currentTime = Calendar.getInstance();
+		for (ChatMessage message : messages) {
+			// Print the message details
+			StringBuilder messageToDisplay = new StringBuilder();
+			messageToDisplay.append("New message received: " + "\n\tFrom: " + message.getSenderID()
+					+ "\n\tContent: " + message.getMessage()
+					+ "\n\tThis message has been waiting at the server for ");
+			// How long was the message waiting? Compute year gap
+			int yearsBetween = currentTime.get(Calendar.YEAR) - message.getReceiveDate().get(Calendar.YEAR);
+			if (yearsBetween > 0)
+				messageToDisplay.append(yearsBetween + " year(s)");
+			// Compute day gap
+			int daysBetween = currentTime.get(Calendar.DATE) - message.getReceiveDate().get(Calendar.DATE);
+			if (daysBetween > 0)
+				messageToDisplay.append(daysBetween + " day(s)");
+			// Compute hour gap
+			int hoursBetween = currentTime.get(Calendar.HOUR_OF_DAY)
+					- message.getReceiveDate().get(Calendar.HOUR_OF_DAY);
+			if (hoursBetween > 0)
+				messageToDisplay.append(hoursBetween + " hour(s)");
+			// Compute minute gap
+			int minutesBetween = currentTime.get(Calendar.MINUTE)
+					- message.getReceiveDate().get(Calendar.MINUTE);
+			if (minutesBetween > 0)
+				messageToDisplay.append(minutesBetween + " minute(s)");
+			// Compute second gap
+			int secondsBetween = currentTime.get(Calendar.SECOND)
+					- message.getReceiveDate().get(Calendar.SECOND);
+			if (secondsBetween > 0)
+				messageToDisplay.append(secondsBetween + " second(s)");
+
+			// Print it all!
+			ui.display(messageToDisplay.toString());
+		}
+	}
+
+	// Tell the user that new messages will be pushed
+	private void listen() {
+		// Validate response procedure
+		// (all other response validation is handled automatically by the communication layer)
+		if (comm.isResponseValidAsPerProcedure(Command.Listen))
+			ui.display(NoticeMessages.LISTEN_SUCCESS);
+		else
+			// Display an error
+			ui.display(NoticeMessages.INVALID_REPLY);
+	}
+
 	// Tell the user about their inquiry
 	private void inquire() {
 		// Validate response procedure
@@ -0,0 +1,196 @@
+/* Load generator for the server: runs many simulated clients at once, following a scenario,
+ * and reports the throughput, latency percentiles and response statuses of each command.
+ * Each client connects like ChatClient does (over RMI or NIO), so the whole path is measured
+ * (marshalling, transport, session checks, mailbox and storage), as a real user would see it.
+ * Once all the clients are connected, they run for a warmup period, whose results are
+ * left out, and then for the measured duration, after which they disconnect.
+ * Recipients are picked among the connected clients by a Zipf distribution, so that a few
+ * popular clients get most of the mail, as in real chat systems.
+ *
+ * Usage:
+ * 1. Start the server, with clients.max at least as high as load.clients
+ * 2. Describe the test in a scenario properties file (see loadtest.properties)
+ * 3. Run using "java client.loadtest.LoadGenerator [scenario file]" (default: loadtest.properties)
+ */
+package client.loadtest;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import components.utilities.IDGenerator;
+import components.utilities.Log;
+
+public class LoadGenerator {
+
+	private final Scenario scenario;
+	private final LoadReport report = new LoadReport();
+
+	// Clients check in once they have tried to connect, and wait for the start
+	private final CountDownLatch connected;
+	private final CountDownLatch started = new CountDownLatch(1);
+	private final List<Long> clientIDs = Collections.synchronizedList(new ArrayList<Long>());
+
+	// Set before the start, so visible to all clients once they are past it
+	private boolean isAborted = false;
+	private long[] recipients = null;
+	private ZipfDistribution recipientRanks = null;
+	private long measureFromNanos = 0;
+	private long stopAtNanos = 0;
+
+	// Run a load test
+	public static void main(String args[]) {
+		// Report errors, but not the debug messages of every request
+		Log.setUserFriendlyMode();
+
+		String scenarioFile = args.length > 0 ? args[0] : "loadtest.properties";
+		Scenario scenario;
+		try {
+			Properties config = new Properties();
+			config.load(new FileInputStream(scenarioFile));
+			scenario = new Scenario(config);
+
+		} catch (FileNotFoundException e) {
+			Log.error("LoadGenerator", "main", "Could not find the scenario file " + scenarioFile, e);
+			return;
+		} catch (IOException e) {
+			Log.error("LoadGenerator", "main", "Could not read the scenario file " + scenarioFile, e);
+			return;
+		} catch (IllegalArgumentException e) {
+			Log.error("LoadGenerator", "main", "Invalid scenario: " + e.getMessage(), e);
+			return;
+		}
+
+		try {
+			new LoadGenerator(scenario).run();
+		} catch (InterruptedException e) {
+			Log.error("LoadGenerator", "main", "Interrupted before the end of the test", e);
+		}
+		// The RMI runtime keeps its threads running
+		System.exit(0);
+	}
+
+	/**
+	 * Prepares a load test.
+	 *
+	 * @param scenario
+	 *            What the clients do.
+	 */
+	public LoadGenerator(Scenario scenario) {
+		this.scenario = scenario;
+		connected = new CountDownLatch(scenario.getClients());
+	}
+
+	/**
+	 * Run the test and print the results, once all clients are done.
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the clients.
+	 */
+	public void run() throws InterruptedException {
+		// Text that messages are cut from
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < scenario.getMaxMessageLength(); i++)
+			content.append((char) ('a' + i % 26));
+
+		// Connect all the clients
+		System.out.println("Connecting " + scenario.getClients() + " clients to " + scenario.getServerAddress() + ":"
+				+ scenario.getServerPort() + " over " + scenario.getServerTransport() + "...");
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < scenario.getClients(); i++) {
+			Thread thread = new Thread(new SimulatedClient(this, scenario, report, content.toString()),
+					"SimulatedClient-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		connected.await();
+
+		if (clientIDs.isEmpty()) {
+			System.out.println("No client could connect; is the server running?");
+			isAborted = true;
+		} else {
+			// Recipients by popularity, the earliest clients first
+			recipients = new long[clientIDs.size()];
+			synchronized (clientIDs) {
+				Collections.sort(clientIDs);
+				for (int i = 0; i < recipients.length; i++)
+					recipients[i] = clientIDs.get(i);
+			}
+			recipientRanks = new ZipfDistribution(recipients.length, scenario.getRecipientSkew());
+
+			measureFromNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(scenario.getWarmupSeconds());
+			stopAtNanos = measureFromNanos + TimeUnit.SECONDS.toNanos(scenario.getDurationSeconds());
+			System.out.println(clientIDs.size() + " clients connected; warming up for " + scenario.getWarmupSeconds()
+					+ " s, then measuring for " + scenario.getDurationSeconds() + " s...");
+		}
+		started.countDown();
+
+		for (Thread thread : threads)
+			thread.join();
+		if (!isAborted)
+			report.print(System.out, scenario.getMixCommands(), scenario.getDurationSeconds());
+	}
+
+	/**
+	 * Called by each client once it has tried to connect.
+	 *
+	 * @param clientID
+	 *            The ID given by the server, or IDGenerator.NULL_ID if the client could not connect.
+	 */
+	void connected(long clientID) {
+		if (clientID != IDGenerator.NULL_ID)
+			clientIDs.add(clientID);
+		connected.countDown();
+	}
+
+	/**
+	 * Called by each client to wait until all clients are connected.
+	 *
+	 * @return False if the test was called off.
+	 */
+	boolean awaitStart() {
+		try {
+			started.await();
+			return !isAborted;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns when results start being recorded.
+	 *
+	 * @return The System.nanoTime() at the end of the warmup.
+	 */
+	long getMeasureFromNanos() {
+		return measureFromNanos;
+	}
+
+	/**
+	 * Returns when the clients stop.
+	 *
+	 * @return The System.nanoTime() at the end of the test.
+	 */
+	long getStopAtNanos() {
+		return stopAtNanos;
+	}
+
+	/**
+	 * Pick a recipient for a message or inquiry.
+	 *
+	 * @param random
+	 *            Source of randomness.
+	 * @return The client ID of a connected client.
+	 */
+	long nextRecipient(Random random) {
+		return recipients[recipientRanks.next(random)];
+	}
+}
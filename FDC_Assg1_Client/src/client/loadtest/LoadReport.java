@@ -0,0 +1,158 @@
+/* Results of a load test, as seen by the clients: for each command, the latency of every
+ * round trip, the number of responses with each status, and the requests that got no
+ * response at all (remote exceptions). Recording is lock-free, so all clients share one report.
+ *
+ * Usage:
+ * 1. Record each request using record(...) or recordError(...)
+ * 2. Print the results using print(...) once the test is over
+ */
+package client.loadtest;
+
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import components.Commands.Command;
+import components.notices.Status;
+import components.utilities.LatencyHistogram;
+
+public class LoadReport {
+
+	// Percentiles reported for each command
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	// Statuses counted separately (from Status.UNSET up); any others are counted with the last one
+	private static final int STATUS_SLOTS = 32;
+
+	// Results for a single command
+	private static class CommandResults {
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final AtomicLongArray statusCounts = new AtomicLongArray(STATUS_SLOTS);
+		private final AtomicLong errors = new AtomicLong();
+	}
+
+	private final Map<Command, CommandResults> commands = new EnumMap<Command, CommandResults>(Command.class);
+
+	// Messages stored by the server through deposits, and received by the clients through retrieve
+	private final AtomicLong depositedMessages = new AtomicLong();
+	private final AtomicLong retrievedMessages = new AtomicLong();
+
+	/**
+	 * Creates an empty report for all commands.
+	 */
+	public LoadReport() {
+		// Filled up front, so that the map is only ever read afterwards
+		for (Command command : Command.values())
+			commands.put(command, new CommandResults());
+	}
+
+	/**
+	 * Record a request that got a response.
+	 *
+	 * @param command
+	 *            The command requested.
+	 * @param status
+	 *            The status of the response.
+	 * @param nanos
+	 *            The round trip time in nanoseconds.
+	 */
+	public void record(Command command, short status, long nanos) {
+		CommandResults results = commands.get(command);
+		results.latency.record(nanos);
+		results.statusCounts.incrementAndGet(Math.min(Math.max(status + 1, 0), STATUS_SLOTS - 1));
+	}
+
+	/**
+	 * Record a request that failed without a response.
+	 *
+	 * @param command
+	 *            The command requested.
+	 */
+	public void recordError(Command command) {
+		commands.get(command).errors.incrementAndGet();
+	}
+
+	/**
+	 * Record messages stored through a deposit.
+	 *
+	 * @param count
+	 *            Number of messages.
+	 */
+	public void recordDeposited(int count) {
+		depositedMessages.addAndGet(count);
+	}
+
+	/**
+	 * Record messages received through a retrieve.
+	 *
+	 * @param count
+	 *            Number of messages.
+	 */
+	public void recordRetrieved(int count) {
+		retrievedMessages.addAndGet(count);
+	}
+
+	/**
+	 * Print the throughput, latency percentiles and status counts of each command.
+	 *
+	 * @param out
+	 *            Where to print the report.
+	 * @param mix
+	 *            The commands to report, in order.
+	 * @param seconds
+	 *            How long the results were recorded for.
+	 */
+	public void print(PrintStream out, List<Command> mix, double seconds) {
+		out.println();
+		out.printf("%-12s %10s %10s", "Command", "Requests", "Per second");
+		for (double percentile : PERCENTILES)
+			out.printf(" %10s", "p" + formatPercentile(percentile) + " ms");
+		out.printf(" %10s%n", "Mean ms");
+
+		long totalRequests = 0;
+		for (Command command : mix) {
+			LatencyHistogram latency = commands.get(command).latency;
+			long count = latency.getCount();
+			totalRequests += count;
+			out.printf("%-12s %10d %10.1f", command.getName(), count, count / seconds);
+			for (double percentile : PERCENTILES)
+				out.printf(" %10.3f", toMillis(latency.getPercentile(percentile)));
+			out.printf(" %10.3f%n", count == 0 ? 0 : toMillis(latency.getSumNanos()) / count);
+		}
+		out.printf("%-12s %10d %10.1f%n", "total", totalRequests, totalRequests / seconds);
+
+		out.println();
+		out.println("Responses by status:");
+		for (Command command : mix) {
+			CommandResults results = commands.get(command);
+			for (int slot = 0; slot < STATUS_SLOTS; slot++) {
+				long count = results.statusCounts.get(slot);
+				if (count > 0) {
+					short status = (short) (slot - 1);
+					String description = Status.getDescription(status);
+					out.printf("  %-12s %3d %10d  %s%n", command.getName(), status, count,
+							description != null ? description : "");
+				}
+			}
+			if (results.errors.get() > 0)
+				out.printf("  %-12s %3s %10d  %s%n", command.getName(), "-", results.errors.get(),
+						"No response (remote exception).");
+		}
+		out.printf("Messages deposited: %d (%.1f per second)%n", depositedMessages.get(), depositedMessages.get() / seconds);
+		out.printf("Messages retrieved: %d%n", retrievedMessages.get());
+	}
+
+	// Format a percentile for a column heading, eg. 0.999 as "99.9"
+	private static String formatPercentile(double fraction) {
+		return new BigDecimal(String.valueOf(fraction)).movePointRight(2).stripTrailingZeros().toPlainString();
+	}
+
+	// Convert nanoseconds to (fractional) milliseconds
+	private static double toMillis(long nanos) {
+		return nanos / 1e6;
+	}
+}
@@ -0,0 +1,327 @@
+/* What a load test does, as read from a scenario properties file (see loadtest.properties):
+ * how many clients, for how long, which commands in what proportion, who messages whom,
+ * how long messages are, how long each client waits between commands, and how many commands
+ * each client keeps in flight at once.
+ * The random choices are made here, so that every simulated client follows the same scenario.
+ *
+ * Usage:
+ * 1. Load a scenario using Scenario(...)
+ * 2. Use the getters for the fixed values, and nextCommand(...), nextMessageLength(...)
+ * 		and nextThinkMillis(...) for the random ones; safe to share between threads
+ */
+package client.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import components.Commands.Command;
+
+public class Scenario {
+
+	// How message lengths are distributed between the minimum and maximum
+	public static enum SizeDistribution {
+		Fixed, Uniform, Exponential
+	}
+
+	// Commands that can be part of the mix, with their property names
+	private static final Command[] MIX_COMMANDS = { Command.Deposit, Command.DepositBatch, Command.Retrieve,
+			Command.RetrieveWait, Command.Inquire };
+
+	// Server under test
+	private final String serverAddress;
+	private final String serverTransport;
+	private final int serverPort;
+	private final long serverTimeoutMillis;
+
+	// Clients and timing
+	private final int clients;
+	private final long warmupSeconds;
+	private final long durationSeconds;
+	private final long heartbeatSeconds;
+	private final int pipelineDepth;
+
+	// Command mix, as the commands with a weight and their cumulative weights
+	private final List<Command> mixCommands = new ArrayList<Command>();
+	private final List<Integer> mixCumulativeWeights = new ArrayList<Integer>();
+	private final int mixTotalWeight;
+
+	// Recipients, messages and think time
+	private final double recipientSkew;
+	private final int batchSize;
+	private final int retrieveWaitMillis;
+	private final SizeDistribution sizeDistribution;
+	private final int minMessageLength;
+	private final int maxMessageLength;
+	private final double meanMessageLength;
+	private final double meanThinkMillis;
+
+	/**
+	 * Loads a scenario.
+	 *
+	 * @param config
+	 *            The scenario properties.
+	 * @throws IllegalArgumentException
+	 *             If a value is missing or invalid.
+	 */
+	public Scenario(Properties config) {
+		serverAddress = config.getProperty("server.address", "localhost").trim();
+		serverTransport = config.getProperty("server.transport", "rmi").trim();
+		if (serverTransport.equals("nio"))
+			serverPort = getInt(config, "server.nio.port", null, 1);
+		else if (serverTransport.equals("rmi"))
+			serverPort = getInt(config, "server.port", null, 1);
+		else
+			throw new IllegalArgumentException("Unknown transport: " + serverTransport);
+		serverTimeoutMillis = getInt(config, "server.timeout", "0", 0);
+
+		clients = getInt(config, "load.clients", null, 1);
+		warmupSeconds = getInt(config, "load.warmup", "0", 0);
+		durationSeconds = getInt(config, "load.duration", null, 1);
+		heartbeatSeconds = getInt(config, "session.heartbeat", "0", 0);
+		pipelineDepth = getInt(config, "load.pipeline", "1", 1);
+
+		int totalWeight = 0;
+		for (Command command : MIX_COMMANDS) {
+			int weight = getInt(config, "load.mix." + command.getName(), "0", 0);
+			if (weight > 0) {
+				totalWeight += weight;
+				mixCommands.add(command);
+				mixCumulativeWeights.add(totalWeight);
+			}
+		}
+		if (totalWeight == 0)
+			throw new IllegalArgumentException("The command mix needs at least one command with a weight above 0");
+		mixTotalWeight = totalWeight;
+
+		recipientSkew = getDouble(config, "load.recipients.zipf", "0");
+		batchSize = getInt(config, "load.batch.size", "10", 1);
+		retrieveWaitMillis = getInt(config, "load.retrieve.wait", "1000", 0);
+
+		String distribution = config.getProperty("load.message.distribution", "uniform").trim();
+		if (distribution.equalsIgnoreCase("fixed"))
+			sizeDistribution = SizeDistribution.Fixed;
+		else if (distribution.equalsIgnoreCase("uniform"))
+			sizeDistribution = SizeDistribution.Uniform;
+		else if (distribution.equalsIgnoreCase("exponential"))
+			sizeDistribution = SizeDistribution.Exponential;
+		else
+			throw new IllegalArgumentException("Unknown message length distribution: " + distribution);
+		minMessageLength = getInt(config, "load.message.min", "1", 1);
+		maxMessageLength = getInt(config, "load.message.max", String.valueOf(minMessageLength), minMessageLength);
+		meanMessageLength = getDouble(config, "load.message.mean", String.valueOf(minMessageLength));
+		if (meanMessageLength < minMessageLength || meanMessageLength > maxMessageLength)
+			throw new IllegalArgumentException("load.message.mean must be between load.message.min and load.message.max");
+
+		meanThinkMillis = getDouble(config, "load.think", "0");
+	}
+
+	// Read a whole number of at least the given minimum
+	private static int getInt(Properties config, String key, String defaultValue, int minimum) {
+		String value = config.getProperty(key, defaultValue);
+		if (value == null)
+			throw new IllegalArgumentException(key + " is missing");
+		try {
+			int number = Integer.parseInt(value.trim());
+			if (number < minimum)
+				throw new IllegalArgumentException(key + " must be at least " + minimum);
+			return number;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + " is not a number: " + value);
+		}
+	}
+
+	// Read a number that must not be negative
+	private static double getDouble(Properties config, String key, String defaultValue) {
+		String value = config.getProperty(key, defaultValue);
+		try {
+			double number = Double.parseDouble(value.trim());
+			if (number < 0 || Double.isNaN(number))
+				throw new IllegalArgumentException(key + " must not be negative");
+			return number;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + " is not a number: " + value);
+		}
+	}
+
+	/**
+	 * Returns the address of the server under test.
+	 *
+	 * @return The host name or IP address.
+	 */
+	public String getServerAddress() {
+		return serverAddress;
+	}
+
+	/**
+	 * Returns how the clients reach the server.
+	 *
+	 * @return "rmi" or "nio".
+	 */
+	public String getServerTransport() {
+		return serverTransport;
+	}
+
+	/**
+	 * Returns how long the clients wait for a response, over the NIO transport.
+	 *
+	 * @return The timeout in milliseconds (0 to wait as long as it takes).
+	 */
+	public long getServerTimeoutMillis() {
+		return serverTimeoutMillis;
+	}
+
+	/**
+	 * Returns the port of the server under test, for the transport used.
+	 *
+	 * @return The port.
+	 */
+	public int getServerPort() {
+		return serverPort;
+	}
+
+	/**
+	 * Returns the number of simulated clients.
+	 *
+	 * @return The count.
+	 */
+	public int getClients() {
+		return clients;
+	}
+
+	/**
+	 * Returns how long the clients run before results are recorded.
+	 *
+	 * @return The warmup in seconds.
+	 */
+	public long getWarmupSeconds() {
+		return warmupSeconds;
+	}
+
+	/**
+	 * Returns how long results are recorded for.
+	 *
+	 * @return The duration in seconds.
+	 */
+	public long getDurationSeconds() {
+		return durationSeconds;
+	}
+
+	/**
+	 * Returns how often each client sends heartbeats.
+	 *
+	 * @return The interval in seconds (0 for none).
+	 */
+	public long getHeartbeatSeconds() {
+		return heartbeatSeconds;
+	}
+
+	/**
+	 * Returns the most commands each client has in flight at once.
+	 *
+	 * @return The count (1 for a command at a time).
+	 */
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	/**
+	 * Returns the Zipf exponent of the recipient popularity.
+	 *
+	 * @return The exponent (0 for uniform).
+	 */
+	public double getRecipientSkew() {
+		return recipientSkew;
+	}
+
+	/**
+	 * Returns the number of messages in each batch deposit.
+	 *
+	 * @return The count.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Returns how long each long poll waits for mail.
+	 *
+	 * @return The timeout in milliseconds.
+	 */
+	public int getRetrieveWaitMillis() {
+		return retrieveWaitMillis;
+	}
+
+	/**
+	 * Returns the length of the longest messages.
+	 *
+	 * @return The length in characters.
+	 */
+	public int getMaxMessageLength() {
+		return maxMessageLength;
+	}
+
+	/**
+	 * Returns the commands in the mix, in the order they are reported.
+	 *
+	 * @return The commands with a weight above 0.
+	 */
+	public List<Command> getMixCommands() {
+		return mixCommands;
+	}
+
+	/**
+	 * Pick the next command, following the weights of the mix.
+	 *
+	 * @param random
+	 *            Source of randomness.
+	 * @return The command.
+	 */
+	public Command nextCommand(Random random) {
+		int value = random.nextInt(mixTotalWeight);
+		for (int i = 0; i < mixCommands.size(); i++)
+			if (value < mixCumulativeWeights.get(i))
+				return mixCommands.get(i);
+		return mixCommands.get(mixCommands.size() - 1);
+	}
+
+	/**
+	 * Pick the length of the next message.
+	 *
+	 * @param random
+	 *            Source of randomness.
+	 * @return The length in characters, between the minimum and maximum.
+	 */
+	public int nextMessageLength(Random random) {
+		switch (sizeDistribution) {
+		case Fixed:
+			return (int) Math.round(meanMessageLength);
+		case Exponential:
+			// Exponential above the minimum with the given mean, cut off at the maximum
+			long length = minMessageLength + Math.round(nextExponential(random, meanMessageLength - minMessageLength));
+			return (int) Math.min(length, maxMessageLength);
+		default:
+			return minMessageLength + random.nextInt(maxMessageLength - minMessageLength + 1);
+		}
+	}
+
+	/**
+	 * Pick how long to wait before the next command.
+	 * Exponential waits make the commands of each client a Poisson process.
+	 *
+	 * @param random
+	 *            Source of randomness.
+	 * @return The wait in milliseconds (0 for none).
+	 */
+	public long nextThinkMillis(Random random) {
+		if (meanThinkMillis == 0)
+			return 0;
+		return Math.round(nextExponential(random, meanThinkMillis));
+	}
+
+	// Exponentially distributed value with the given mean
+	private static double nextExponential(Random random, double mean) {
+		return -mean * Math.log(1 - random.nextDouble());
+	}
+}
@@ -0,0 +1,227 @@
+/* A single simulated user of the chat system, driven by a Scenario.
+ * Has its own connection to the server (a quiet Communication, as used by ChatClient), so it
+ * goes through the same path (RMI or NIO) as a real client. Once connected, it issues commands picked
+ * from the scenario's mix until the test is over, pausing for the think time in between,
+ * and records the round trip of each command in the shared LoadReport.
+ * With a pipeline depth above 1 the commands are sent without waiting (see Communication.sendOperationAsync(...)),
+ * up to that many at once, and recorded as their responses come back.
+ *
+ * Usage:
+ * 1. Create one per client using SimulatedClient(...), and run each on its own thread
+ * 2. The LoadGenerator coordinates when they start recording and stop
+ */
+package client.loadtest;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+import client.network.Communication;
+import client.network.OperationResult;
+
+import components.Commands.Command;
+import components.messages.ChatMessage;
+import components.notices.Status;
+import components.utilities.IDGenerator;
+import components.utilities.Log;
+
+public class SimulatedClient implements Runnable {
+
+	private final LoadGenerator generator;
+	private final Scenario scenario;
+	private final LoadReport report;
+
+	// Content that messages are cut from
+	private final String content;
+
+	// Connection to the server, and the ID it gave on connecting
+	private Communication comm = null;
+	private long clientID = IDGenerator.NULL_ID;
+
+	// Commands started before this are part of the warmup
+	private long measureFrom = 0;
+
+	/**
+	 * Creates a client that is not connected yet.
+	 *
+	 * @param generator
+	 *            The load generator coordinating the clients.
+	 * @param scenario
+	 *            What the client does.
+	 * @param report
+	 *            Where the results are recorded.
+	 * @param content
+	 *            Text that messages are cut from, at least as long as the longest message.
+	 */
+	public SimulatedClient(LoadGenerator generator, Scenario scenario, LoadReport report, String content) {
+		this.generator = generator;
+		this.scenario = scenario;
+		this.report = report;
+		this.content = content;
+	}
+
+	@Override
+	public void run() {
+		comm = new Communication(scenario.getServerAddress(), scenario.getServerPort(),
+				scenario.getServerTransport());
+		comm.setQuiet(true);
+		comm.setTimeout(scenario.getServerTimeoutMillis());
+		comm.setHeartbeatInterval(scenario.getHeartbeatSeconds());
+
+		// Connect, then wait for all the other clients to do so too
+		try {
+			if (comm.isActive() && comm.sendOperation(Command.Connect, new ArrayList<String>()))
+				clientID = comm.getClientID();
+			else
+				Log.error("SimulatedClient", "run", "Could not connect: " + Status.getDescription(comm.getStatus()),
+						null);
+		} catch (RemoteException e) {
+			Log.error("SimulatedClient", "run", "Could not connect", e);
+		}
+		generator.connected(clientID);
+		if (!generator.awaitStart() || clientID == IDGenerator.NULL_ID)
+			return;
+
+		Random random = ThreadLocalRandom.current();
+		measureFrom = generator.getMeasureFromNanos();
+		long stopAt = generator.getStopAtNanos();
+
+		// Permits for the commands in flight, when not waiting for each
+		int pipelineDepth = scenario.getPipelineDepth();
+		final Semaphore inFlight = pipelineDepth > 1 ? new Semaphore(pipelineDepth) : null;
+
+		while (System.nanoTime() < stopAt) {
+			final Command command = scenario.nextCommand(random);
+			List<String> args = null;
+			List<ChatMessage> batch = null;
+			if (command.equals(Command.DepositBatch))
+				batch = createBatch(random);
+			else
+				args = createArguments(command, random);
+
+			if (inFlight != null) {
+				// Wait for room in the pipeline only
+				try {
+					inFlight.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				final long startNanos = System.nanoTime();
+				CompletableFuture<OperationResult> result;
+				if (batch != null)
+					result = comm.depositBatchAsync(batch);
+				else
+					result = comm.sendOperationAsync(command, args);
+				result.whenComplete(new BiConsumer<OperationResult, Throwable>() {
+					@Override
+					public void accept(OperationResult result, Throwable error) {
+						// Unwrap the RemoteException that failed the future
+						Exception cause = null;
+						if (error != null)
+							cause = error.getCause() instanceof Exception ? (Exception) error.getCause() : new Exception(error);
+						record(command, startNanos, result, cause);
+						inFlight.release();
+					}
+				});
+
+			} else {
+				long startNanos = System.nanoTime();
+				try {
+					if (batch != null)
+						comm.depositBatch(batch);
+					else
+						comm.sendOperation(command, args);
+					record(command, startNanos, comm.getLastResult(), null);
+				} catch (RemoteException e) {
+					record(command, startNanos, null, e);
+				}
+			}
+
+			// Take some time before the next command, like a user would
+			long thinkMillis = scenario.nextThinkMillis(random);
+			if (thinkMillis > 0)
+				try {
+					Thread.sleep(thinkMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+		}
+
+		// Let the commands still in flight complete
+		if (inFlight != null)
+			inFlight.acquireUninterruptibly(pipelineDepth);
+
+		// Leave, so that the server is not left with the session
+		try {
+			List<String> args = new ArrayList<String>();
+			args.add(String.valueOf(clientID));
+			comm.sendOperation(Command.Disconnect, args);
+		} catch (RemoteException e) {
+			Log.error("SimulatedClient", "run", "Could not disconnect", e);
+		}
+	}
+
+	// Record the round trip of a command, leaving out the results from the warmup
+	private void record(Command command, long startNanos, OperationResult result, Exception error) {
+		long nanos = System.nanoTime() - startNanos;
+		if (startNanos < measureFrom)
+			return;
+
+		if (error != null) {
+			report.recordError(command);
+			Log.error("SimulatedClient", "record", "Could not reach the server", error);
+		} else {
+			report.record(command, result.getStatus(), nanos);
+			if (result.isSuccessful())
+				recordMessages(result);
+		}
+	}
+
+	// Count the messages deposited or retrieved by a successful command
+	private void recordMessages(OperationResult result) {
+		Command command = result.getCommand();
+		if (command.equals(Command.Deposit))
+			report.recordDeposited(1);
+		else if (command.equals(Command.DepositBatch)) {
+			int stored = 0;
+			for (short status : result.getBatchStatuses())
+				if (status == Status.SUCCESS)
+					stored++;
+			report.recordDeposited(stored);
+		} else if (command.equals(Command.Retrieve) || command.equals(Command.RetrieveWait)) {
+			List<ChatMessage> messages = result.getChatMessages();
+			if (messages != null)
+				report.recordRetrieved(messages.size());
+		}
+	}
+
+	// Messages for a batch deposit, each to a recipient of its own
+	private List<ChatMessage> createBatch(Random random) {
+		List<ChatMessage> batch = new ArrayList<ChatMessage>(scenario.getBatchSize());
+		for (int i = 0; i < scenario.getBatchSize(); i++)
+			batch.add(new ChatMessage(IDGenerator.NULL_ID, clientID, generator.nextRecipient(random), content.substring(0,
+					scenario.nextMessageLength(random)), null));
+		return batch;
+	}
+
+	// Arguments for a command, as a user would type them
+	private List<String> createArguments(Command command, Random random) {
+		List<String> args = new ArrayList<String>(3);
+		args.add(String.valueOf(clientID));
+		if (command.equals(Command.Deposit)) {
+			args.add(String.valueOf(generator.nextRecipient(random)));
+			args.add(content.substring(0, scenario.nextMessageLength(random)));
+		} else if (command.equals(Command.Inquire))
+			args.add(String.valueOf(generator.nextRecipient(random)));
+		else if (command.equals(Command.RetrieveWait))
+			args.add(String.valueOf(scenario.getRetrieveWaitMillis()));
+		return args;
+	}
+}
@@ -0,0 +1,73 @@
+/* Picks ranks following a Zipf distribution, as for the popularity of chat recipients:
+ * rank k (from 1) is picked with a probability proportional to 1 / k^exponent.
+ * An exponent of 0 picks all ranks equally; around 1 a few ranks get most of the picks.
+ * The cumulative probabilities are computed once, so each pick is a binary search.
+ *
+ * Usage:
+ * 1. Create using ZipfDistribution(...)
+ * 2. Pick a rank using next(...); safe to share between threads
+ */
+package client.loadtest;
+
+import java.util.Random;
+
+public class ZipfDistribution {
+
+	// Probability of picking rank (index + 1) or below
+	private final double[] cumulative;
+
+	/**
+	 * Creates the distribution over the given number of ranks.
+	 *
+	 * @param ranks
+	 *            Number of ranks, at least 1.
+	 * @param exponent
+	 *            Skew of the distribution, 0 or more.
+	 */
+	public ZipfDistribution(int ranks, double exponent) {
+		if (ranks < 1)
+			throw new IllegalArgumentException("At least one rank is needed");
+		if (exponent < 0)
+			throw new IllegalArgumentException("The exponent must not be negative");
+
+		cumulative = new double[ranks];
+		double total = 0;
+		for (int k = 1; k <= ranks; k++) {
+			total += 1 / Math.pow(k, exponent);
+			cumulative[k - 1] = total;
+		}
+		for (int i = 0; i < ranks; i++)
+			cumulative[i] /= total;
+	}
+
+	/**
+	 * Returns the number of ranks.
+	 *
+	 * @return The count.
+	 */
+	public int getRanks() {
+		return cumulative.length;
+	}
+
+	/**
+	 * Pick a rank.
+	 *
+	 * @param random
+	 *            Source of randomness, eg. ThreadLocalRandom.current().
+	 * @return The rank, from 0 (most likely) to getRanks() - 1.
+	 */
+	public int next(Random random) {
+		double value = random.nextDouble();
+		int low = 0;
+		int high = cumulative.length - 1;
+		// Find the first rank whose cumulative probability exceeds the value
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (cumulative[middle] <= value)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+}
@@ -2,32 +2,62 @@
  * Abstracts the method of calling server functions.
  * 
  * Usage:
- * 1. Establish connection to the server by creating a new Communication object.
+ * 1. Establish connection to the server by creating a new Communication object,
+ * 		over RMI or over the NIO transport (see FrameConnection).
  * 2. Check if the connection is active and usable using isActive()
  * 3. Send a command using sendOperation(...)
  * 4. Use the various getter functions to get the results from the response.
  * Note: Only use a function when you are sure that is the result of the operation.
+ * 
+ * Alternatively, send commands without waiting using sendOperationAsync(...) or depositBatchAsync(...);
+ * many of them may then be in flight at once, each completing with its own OperationResult.
+ * Over the NIO transport they are pipelined on the one connection; over RMI each takes a thread
+ * (and a connection of its own) until its response is back.
+ * 
+ * To have new messages pushed as they arrive, set a listener using setMailboxListener(...) and send
+ * the listen command after connecting (RMI only). It is exported while registered, until the
+ * client disconnects or calls close().
+ * 
+ * While connected, heartbeats are sent in the background (see setHeartbeatInterval(...))
+ * so that the server keeps the session open even when the user is idle.
+ * Requests and responses are shown to the user unless setQuiet(true) is used, eg. for load tests.
  */
 package client.network;
 
+import java.io.IOException;
 import java.rmi.AccessException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import client.input.UserInput;
 
 import components.Commands.Command;
+import components.communication.MailboxListener;
 import components.communication.RPCMessage;
 import components.communication.ServerInterface;
-import components.communication.marshalling.SimpleMarshaller;
+import components.communication.marshalling.MessageListCodec;
 import components.messages.ChatMessage;
 import components.notices.Status;
 import components.utilities.CSVUtility;
 import components.utilities.IDGenerator;
 import components.utilities.Log;
+import components.utilities.RPCIDGenerator;
 
 public class Communication {
 
@@ -37,36 +67,86 @@ public class Communication {
 	// Handle for the server
 	private ServerInterface server = null;
 
+	// The same handle, if it is the NIO transport, which can pipeline requests
+	private FrameConnection frameConnection = null;
+
+	// Runs the RMI calls sent without waiting, as each blocks a thread
+	private ExecutorService asyncExecutor = null;
+
 	// Handle for the ID generator
 	private IDGenerator idGenerator = null;
 
-	// Stores the response for further scrutiny by the client
-	private RPCMessage response = null;
+	// Generates the globally unique RPC IDs locally, saving a round trip to the server per operation
+	private RPCIDGenerator rpcIDGenerator = new RPCIDGenerator();
+
+	// Stores the result of the last operation waited for, for further scrutiny by the client
+	private OperationResult lastResult = null;
+
+	// Receives the messages pushed by the server, and its exported stub while registered
+	private MailboxListener mailboxListener = null;
+	private MailboxListener exportedListener = null;
+	private final Object listenerLock = new Object();
+
+	// Whether to hide the requests and responses from the user
+	private boolean isQuiet = false;
+
+	// Background heartbeats to keep the session alive
+	private long heartbeatIntervalSeconds = 0;
+	private ScheduledExecutorService heartbeatTimer = null;
+	private ScheduledFuture<?> heartbeats = null;
+	// Guards the heartbeats, separately from the calls (responses may start or stop them on another thread)
+	private final Object heartbeatLock = new Object();
 
 	/**
-	 * Initializes the communication layer by establishing a connection to the server.
+	 * Initializes the communication layer by establishing a connection to the server over RMI.
 	 */
 	public Communication(String serverAddress, int serverPort) {
+		this(serverAddress, serverPort, "rmi");
+	}
+
+	/**
+	 * Initializes the communication layer by establishing a connection to the server.
+	 * 
+	 * @param serverAddress
+	 *            Host name or IP address of the server.
+	 * @param serverPort
+	 *            Port of the RMI registry, or of the NIO transport.
+	 * @param transport
+	 *            "rmi", or "nio" for the framed binary protocol (see FrameConnection).
+	 */
+	public Communication(String serverAddress, int serverPort, String transport) {
 		Log.debug("Communication", "constructor", "Connecting to the server...");
 
 		// Create a new ID generator
 		idGenerator = new IDGenerator();
 
 		// Connect to the server
-		try {
-			// Get the RMI registry
-			Registry reg = LocateRegistry.getRegistry(serverAddress, serverPort);
-			server = (ServerInterface) reg.lookup("Server");
-			// Mark connection as active
-			isActive = true;
-			Log.debug("Communication", "constructor", "Connected to the server");
-		} catch (AccessException e) {
-			Log.error("Communication", "constructor", "Could not access the server registry", e);
-		} catch (RemoteException e) {
-			Log.error("Communication", "constructor", "Could not find the RMI registry on the server", e);
-		} catch (NotBoundException e) {
-			Log.error("Communication", "constructor", "Could not bind to the provided RMI address", e);
-		}
+		if (transport.equals("nio"))
+			try {
+				frameConnection = new FrameConnection(serverAddress, serverPort);
+				server = frameConnection;
+				// Mark connection as active
+				isActive = true;
+				Log.debug("Communication", "constructor", "Connected to the server over NIO");
+			} catch (IOException e) {
+				Log.error("Communication", "constructor", "Could not reach the NIO transport on the server", e);
+			}
+		else
+			try {
+				// Get the RMI registry
+				Registry reg = LocateRegistry.getRegistry(serverAddress, serverPort);
+				server = (ServerInterface) reg.lookup("Server");
+				asyncExecutor = createAsyncExecutor();
+				// Mark connection as active
+				isActive = true;
+				Log.debug("Communication", "constructor", "Connected to the server");
+			} catch (AccessException e) {
+				Log.error("Communication", "constructor", "Could not access the server registry", e);
+			} catch (RemoteException e) {
+				Log.error("Communication", "constructor", "Could not find the RMI registry on the server", e);
+			} catch (NotBoundException e) {
+				Log.error("Communication", "constructor", "Could not bind to the provided RMI address", e);
+			}
 	}
 
 	/**
@@ -78,6 +158,66 @@ public class Communication {
 		return isActive;
 	}
 
+	/**
+	 * Set how often heartbeats are sent while connected.
+	 * Should be well within the session lease configured on the server.
+	 * 
+	 * @param seconds
+	 *            Interval between heartbeats, or 0 to send none.
+	 */
+	public void setHeartbeatInterval(long seconds) {
+		heartbeatIntervalSeconds = seconds;
+	}
+
+	/**
+	 * Set how long to wait for the server to respond, over the NIO transport.
+	 * Over RMI, the timeouts of the RMI runtime apply instead.
+	 * 
+	 * @param millis
+	 *            The timeout in milliseconds, or 0 to wait as long as it takes.
+	 */
+	public void setTimeout(long millis) {
+		if (frameConnection != null)
+			frameConnection.setTimeout(millis);
+	}
+
+	/**
+	 * Set whether requests and responses are shown to the user.
+	 * Quiet instances never touch the UI, so several can be used from different threads.
+	 * 
+	 * @param quiet
+	 *            True to hide them.
+	 */
+	public void setQuiet(boolean quiet) {
+		isQuiet = quiet;
+	}
+
+	/**
+	 * Set the listener that the listen command registers with the server, to have new messages pushed to it.
+	 * 
+	 * @param listener
+	 *            The listener, or null to stop pushes on the next listen command.
+	 */
+	public void setMailboxListener(MailboxListener listener) {
+		synchronized (listenerLock) {
+			unexportListener();
+			mailboxListener = listener;
+		}
+	}
+
+	/**
+	 * Stop all background activity: heartbeats, pushes to the listener and the NIO connection.
+	 * Call this before exiting without disconnecting, as an exported listener keeps the process running.
+	 */
+	public void close() {
+		stopHeartbeats();
+		synchronized (listenerLock) {
+			unexportListener();
+		}
+		if (frameConnection != null)
+			frameConnection.close();
+	}
+
 	/**
 	 * Issue the command to the server. The response, if any,
 	 * can be queried using other functions offered by this class.
@@ -89,62 +229,260 @@ public class Communication {
 	 * @return True if the operation executed successfully on the server.
 	 * @throws RemoteException
 	 */
-	public boolean sendOperation(Command command, List<String> args) throws RemoteException {
-		// Get the next globally unique RPC ID
-		long RPCID = server.getNextRPCID(idGenerator.getCurrentInSequence("RPC"));
+	public synchronized boolean sendOperation(Command command, List<String> args) throws RemoteException {
+		return send(command, createRequest(command, CSVUtility.toCSV(args), null));
+	}
+
+	/**
+	 * Send many messages in one call, each with its own sender and recipient.
+	 * The status of each message can then be queried using getBatchStatuses().
+	 * 
+	 * @param messages
+	 *            The messages to send; only their sender, recipient and content are used.
+	 * @return True if the server handled the batch (even if some messages were refused).
+	 * @throws RemoteException
+	 */
+	public synchronized boolean depositBatch(List<ChatMessage> messages) throws RemoteException {
+		// Carry the messages as a binary payload, which saves the server a CSV parse per message
+		return send(Command.DepositBatch, createRequest(Command.DepositBatch, "", MessageListCodec.encode(messages)));
+	}
+
+	/**
+	 * Issue the command to the server without waiting for the response.
+	 * Any number of operations may be in flight at once; the results of the others, and those
+	 * returned by the getters of this class, are left untouched. The requests and responses are
+	 * never shown to the user.
+	 * 
+	 * @param command
+	 *            The Command object corresponding to the operation.
+	 * @param args
+	 *            A list of arguments, if any, associated with the command.
+	 * @return Completes with the result of the operation, or exceptionally with a RemoteException
+	 *         if the server could not be reached.
+	 */
+	public CompletableFuture<OperationResult> sendOperationAsync(Command command, List<String> args) {
+		return sendAsync(command, createRequest(command, CSVUtility.toCSV(args), null));
+	}
 
-		// Construct an RPC Message request object
-		RPCMessage request = new RPCMessage(RPCMessage.MessageType.REQUEST,
-				idGenerator.getNextInSequence("transaction"), RPCID, idGenerator.getNextInSequence("request"),
-				command.getID(), CSVUtility.toCSV(args), Status.UNSET);
+	/**
+	 * Send many messages in one call, without waiting for the response (see sendOperationAsync(...)).
+	 * 
+	 * @param messages
+	 *            The messages to send; only their sender, recipient and content are used.
+	 * @return Completes with the result of the batch, or exceptionally with a RemoteException
+	 *         if the server could not be reached.
+	 */
+	public CompletableFuture<OperationResult> depositBatchAsync(List<ChatMessage> messages) {
+		return sendAsync(Command.DepositBatch, createRequest(Command.DepositBatch, "", MessageListCodec.encode(messages)));
+	}
 
+	// Construct an RPC Message request object
+	private RPCMessage createRequest(Command command, String csvData, byte[] payload) {
+		return new RPCMessage(RPCMessage.MessageType.REQUEST, idGenerator.getNextInSequence("transaction"),
+				rpcIDGenerator.getNextID(), idGenerator.getNextInSequence("request"), command.getID(), csvData,
+				payload, Status.UNSET);
+	}
+
+	// Send the request, and keep the result
+	private boolean send(Command command, RPCMessage request) throws RemoteException {
 		// Show the request message for understanding the "behind-the-scenes"
-		UserInput.getInstance().display("\t" + request.toString());
+		if (!isQuiet)
+			UserInput.getInstance().display("\t" + request.toString());
+
+		RPCMessage response = invoke(command, request);
+
+		// Show the response message for understanding the "behind-the-scenes"
+		if (!isQuiet)
+			UserInput.getInstance().display("\t" + response.toString());
+
+		// Was the operation successful?
+		lastResult = complete(command, request, response);
+		return lastResult.isSuccessful();
+	}
+
+	// Send the request, completing with the result once the response is back
+	private CompletableFuture<OperationResult> sendAsync(final Command command, final RPCMessage request) {
+		CompletableFuture<RPCMessage> response;
+		if (frameConnection != null)
+			// Pipelined on the connection
+			response = frameConnection.callAsync(request);
+		else
+			response = CompletableFuture.supplyAsync(new Supplier<RPCMessage>() {
+				@Override
+				public RPCMessage get() {
+					try {
+						return invoke(command, request);
+					} catch (RemoteException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, asyncExecutor);
+
+		return response.thenApply(new Function<RPCMessage, OperationResult>() {
+			@Override
+			public OperationResult apply(RPCMessage message) {
+				return complete(command, request, message);
+			}
+		});
+	}
 
-		// Call the corresponding remote functions
+	// Call the corresponding remote function
+	private RPCMessage invoke(Command command, RPCMessage request) throws RemoteException {
 		if (command.equals(Command.Connect)) {
 			// Connect to the server
-			response = server.connect(request);
+			return server.connect(request);
 
 		} else if (command.equals(Command.Disconnect)) {
 			// Disconnect from the server
-			response = server.disconnect(request);
+			return server.disconnect(request);
 
 		} else if (command.equals(Command.Deposit)) {
 			// Send the message
-			response = server.deposit(request);
+			return server.deposit(request);
+
+		} else if (command.equals(Command.DepositBatch)) {
+			// Send many messages
+			return server.depositBatch(request);
 
 		} else if (command.equals(Command.Retrieve)) {
 			// Get all messages
-			response = server.retrieve(request);
+			return server.retrieve(request);
+
+		} else if (command.equals(Command.RetrieveWait)) {
+			// Get all messages, waiting for some if there are none yet
+			return server.retrieveWait(request);
+
+		} else if (command.equals(Command.Listen)) {
+			// Have new messages pushed to the listener
+			return server.registerListener(request, exportListener());
 
 		} else if (command.equals(Command.Inquire)) {
 			// Check if a user is online
-			response = server.inquire(request);
+			return server.inquire(request);
+
+		} else if (command.equals(Command.Heartbeat)) {
+			// Keep the session alive
+			return server.heartbeat(request);
+
+		} else
+			throw new RemoteException("Command not supported by the server: " + command.getName());
+	}
+
+	// Validate the response, and start or stop the heartbeats along with the session
+	private OperationResult complete(Command command, RPCMessage request, RPCMessage response) {
+		OperationResult result = new OperationResult(command, request, response);
+		if (result.isSuccessful()) {
+			if (command.equals(Command.Connect)) {
+				// The server never hands out a client ID twice, so it makes a unique node number
+				rpcIDGenerator.setNodeID(result.getClientID());
+				startHeartbeats(result.getClientID());
+			} else if (command.equals(Command.Disconnect)) {
+				stopHeartbeats();
+				// The server no longer pushes to it
+				synchronized (listenerLock) {
+					unexportListener();
+				}
+			}
 		}
+		return result;
+	}
 
-		// Show the response message for understanding the "behind-the-scenes"
-		UserInput.getInstance().display("\t" + response.toString());
-		
-		// Validate response
-		if (response.validateResponse(request)) {
+	// Export the listener, if any, so that the server can call it
+	private MailboxListener exportListener() throws RemoteException {
+		synchronized (listenerLock) {
+			if (mailboxListener != null && exportedListener == null)
+				exportedListener = (MailboxListener) UnicastRemoteObject.exportObject(mailboxListener, 0);
+			return exportedListener;
+		}
+	}
 
-			// Was the operation successful?
-			return isOperationSuccessful();
+	// Stop accepting calls to the listener; call with the listener lock held
+	private void unexportListener() {
+		if (exportedListener != null) {
+			try {
+				UnicastRemoteObject.unexportObject(mailboxListener, true);
+			} catch (NoSuchObjectException e) {
+				Log.error("Communication", "unexportListener", "Listener was not exported", e);
+			}
+			exportedListener = null;
+		}
+	}
 
-		} else {
-			// No, not valid
-			return false;
+	// Threads for the RMI calls sent without waiting, created as needed
+	private static ExecutorService createAsyncExecutor() {
+		// Daemon threads, so that they never keep the client running
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "Communication-async-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	// Send heartbeats for the client in the background
+	private void startHeartbeats(final long clientID) {
+		synchronized (heartbeatLock) {
+			stopHeartbeats();
+			if (heartbeatIntervalSeconds <= 0)
+				return;
+
+			if (heartbeatTimer == null)
+				// Daemon thread, so that it never keeps the client running
+				heartbeatTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "Communication-heartbeat");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+			heartbeats = heartbeatTimer.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					sendHeartbeat(clientID);
+				}
+			}, heartbeatIntervalSeconds, heartbeatIntervalSeconds, TimeUnit.SECONDS);
 		}
 	}
 
-	// Check for a success status in the response
-	private boolean isOperationSuccessful() {
-		if (response != null)
-			// Is the status a success notice?
-			return response.getStatus() == Status.SUCCESS;
-		else
-			return false;
+	// Stop sending heartbeats
+	private void stopHeartbeats() {
+		synchronized (heartbeatLock) {
+			if (heartbeats != null) {
+				heartbeats.cancel(false);
+				heartbeats = null;
+			}
+		}
+	}
+
+	// Send a single heartbeat, quietly and without touching the stored response
+	// (nor waiting for the calls in progress, eg. a retrievewait holding this object for its whole wait)
+	private void sendHeartbeat(long clientID) {
+		try {
+			RPCMessage request = createRequest(Command.Heartbeat, new CSVUtility.Builder().add(clientID).build(), null);
+			RPCMessage heartbeatResponse = server.heartbeat(request);
+
+			// The session is gone (eg. it expired while the connection was down); no point carrying on
+			if (heartbeatResponse.validateResponse(request) && heartbeatResponse.getStatus() == Status.INVALID_CLIENT)
+				stopHeartbeats();
+
+		} catch (RemoteException e) {
+			Log.error("Communication", "sendHeartbeat", "Could not reach the server", e);
+		}
+	}
+
+	/**
+	 * Returns the result of the last operation waited for, ie. sent using sendOperation(...) or depositBatch(...).
+	 * 
+	 * @return The result, or null if no operation was sent yet.
+	 */
+	public OperationResult getLastResult() {
+		return lastResult;
 	}
 
 	/**
@@ -153,8 +491,8 @@ public class Communication {
 	 * @return The status as specified by the Status class.
 	 */
 	public short getStatus() {
-		if (response != null)
-			return response.getStatus();
+		if (lastResult != null)
+			return lastResult.getStatus();
 		else
 			return Status.UNSET;
 	}
@@ -166,17 +504,17 @@ public class Communication {
 	 * @return The ID for the client.
 	 */
 	public Long getClientID() {
-		List<String> responseData = CSVUtility.fromCSV(response.getCsv_data());
-		if (responseData != null)
-			try {
-				return Long.parseLong(responseData.get(0));
-			} catch (NumberFormatException e) {
-				// Invalid IDs
-				Log.error("Communication", "getClientID", "Argument is not a number", e);
-				return IDGenerator.NULL_ID;
-			}
-		else
-			return IDGenerator.NULL_ID;
+		return lastResult.getClientID();
+	}
+
+	/**
+	 * Returns the status of each message sent in a batch.
+	 * Note: Only use this when you are sure this is the result of the operation.
+	 * 
+	 * @return The statuses as specified by the Status class, in the order of the messages.
+	 */
+	public short[] getBatchStatuses() {
+		return lastResult.getBatchStatuses();
 	}
 
 	/**
@@ -185,16 +523,8 @@ public class Communication {
 	 * 
 	 * @return A list of Chat Message objects.
 	 */
-	@SuppressWarnings("unchecked")
 	public List<ChatMessage> getChatMessages() {
-		// Get the CSV data
-		String responseData = response.getCsv_data();
-
-		Object unmarshalledData = SimpleMarshaller.unmarshallString(responseData);
-		if (unmarshalledData != null)
-			return (List<ChatMessage>) unmarshalledData;
-		else
-			return null;
+		return lastResult.getChatMessages();
 	}
 
 	/**
@@ -204,7 +534,7 @@ public class Communication {
 	 * @return True if the user is connected to the server.
 	 */
 	public boolean isUserOnline() {
-		return Boolean.parseBoolean(response.getCsv_data());
+		return lastResult.isUserOnline();
 	}
 
 	/**
@@ -217,6 +547,6 @@ public class Communication {
 	 * @return True if the response is marked for the expected operation.
 	 */
 	public boolean isResponseValidAsPerProcedure(Command command) {
-		return response.validateProcedure(command);
+		return lastResult.isValidAsPerProcedure(command);
 	}
 }
@@ -0,0 +1,278 @@
+/* Client side of the NIO transport: the server functions over a single TCP connection,
+ * carrying length-prefixed binary frames (see FrameCodec) instead of RMI calls.
+ * Offers the same ServerInterface as the RMI stub, so Communication can use either.
+ * Requests are pipelined: each is written as soon as it is made, without waiting for the
+ * responses of earlier ones, and a reader thread hands each response to the request with
+ * the same RPC ID. The connection is opened again on the next call if it fails.
+ * A call that gets no response within the timeout (see setTimeout(...)) fails with a
+ * RemoteException, so a response lost by the server never blocks the caller for good.
+ *
+ * Usage:
+ * 1. Connect using FrameConnection(...)
+ * 2. Call the server functions as with RMI, or without waiting using callAsync(...)
+ * 3. Close the connection using close()
+ */
+package client.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import components.communication.FrameCodec;
+import components.communication.MailboxListener;
+import components.communication.RPCMessage;
+import components.communication.ServerInterface;
+import components.utilities.CSVUtility;
+import components.utilities.Log;
+
+public class FrameConnection implements ServerInterface {
+
+	// An open connection, with the requests waiting for their responses on it
+	private class Link implements Runnable {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final OutputStream out;
+		private final ConcurrentHashMap<Long, CompletableFuture<RPCMessage>> pending = new ConcurrentHashMap<Long, CompletableFuture<RPCMessage>>();
+
+		private Link() throws IOException {
+			socket = new Socket();
+			// Frames are small and latency matters more than packet count
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(serverAddress, serverPort));
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new BufferedOutputStream(socket.getOutputStream());
+
+			Thread reader = new Thread(this, "FrameConnection-reader");
+			// Never keeps the client running
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		// Read the responses until the connection is closed
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					int length = in.readInt();
+					if (length < 0 || length > FrameCodec.MAX_FRAME_LENGTH)
+						throw new IOException("Invalid frame length: " + length);
+					byte[] packet = new byte[length];
+					in.readFully(packet);
+					RPCMessage response = FrameCodec.decode(packet);
+
+					CompletableFuture<RPCMessage> request = pending.remove(response.getRPCId());
+					if (request != null)
+						request.complete(response);
+					else
+						Log.debug("FrameConnection", "run", "Dropping a response to no request: %d", response.getRPCId());
+				}
+			} catch (IOException e) {
+				fail(this, e);
+			}
+		}
+	}
+
+	private final String serverAddress;
+	private final int serverPort;
+
+	// The open connection, if any
+	private Link link = null;
+
+	// Longest wait for a response, in milliseconds (0 to wait as long as it takes)
+	private volatile long timeoutMillis = 0;
+
+	/**
+	 * Connect to the server.
+	 *
+	 * @param serverAddress
+	 *            Host name or IP address of the server.
+	 * @param serverPort
+	 *            Port of the server's NIO transport.
+	 * @throws IOException
+	 *             If the server could not be reached.
+	 */
+	public FrameConnection(String serverAddress, int serverPort) throws IOException {
+		this.serverAddress = serverAddress;
+		this.serverPort = serverPort;
+		link = new Link();
+	}
+
+	/**
+	 * Close the connection.
+	 * Requests still waiting for their responses fail.
+	 */
+	public synchronized void close() {
+		if (link != null)
+			try {
+				// The reader then fails the requests still waiting
+				link.socket.close();
+			} catch (IOException e) {
+				Log.error("FrameConnection", "close", "Could not close the connection", e);
+			} finally {
+				link = null;
+			}
+	}
+
+	/**
+	 * Set how long calls wait for their responses.
+	 * A retrieveWait call waits this long on top of the time it asks the server to wait.
+	 *
+	 * @param millis
+	 *            The timeout in milliseconds, or 0 to wait as long as it takes.
+	 */
+	public void setTimeout(long millis) {
+		timeoutMillis = millis;
+	}
+
+	// Give up on a connection that failed, along with the requests waiting on it
+	private void fail(Link failed, IOException e) {
+		synchronized (this) {
+			// Start afresh on the next call, rather than reading from the middle of a frame
+			if (link == failed)
+				close();
+		}
+		RemoteException error = new RemoteException("Could not reach the server over the NIO transport", e);
+		for (Long rpcID : failed.pending.keySet()) {
+			CompletableFuture<RPCMessage> request = failed.pending.remove(rpcID);
+			if (request != null)
+				request.completeExceptionally(error);
+		}
+	}
+
+	/**
+	 * Send a request without waiting for its response.
+	 * Any number of requests may be waiting at once, as long as their RPC IDs differ.
+	 *
+	 * @param request
+	 *            The request packet.
+	 * @return Completes with the response packet, or with a RemoteException if the server could not be reached.
+	 */
+	public CompletableFuture<RPCMessage> callAsync(RPCMessage request) {
+		CompletableFuture<RPCMessage> response = new CompletableFuture<RPCMessage>();
+		Link current = null;
+		try {
+			ByteBuffer frame = FrameCodec.encode(request);
+			synchronized (this) {
+				if (link == null)
+					link = new Link();
+				current = link;
+				// Registered before writing, as the response may come back before write() returns
+				current.pending.put(request.getRPCId(), response);
+				current.out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+				current.out.flush();
+			}
+		} catch (IOException e) {
+			if (current != null)
+				fail(current, e);
+			else
+				response.completeExceptionally(new RemoteException("Could not reach the server over the NIO transport", e));
+		}
+		return response;
+	}
+
+	// Send a request and wait for its response, for at most the timeout plus the given time
+	private RPCMessage call(RPCMessage request, long extraMillis) throws RemoteException {
+		CompletableFuture<RPCMessage> response = callAsync(request);
+		long timeout = timeoutMillis;
+		try {
+			if (timeout <= 0)
+				return response.get();
+			return response.get(timeout + extraMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			// Stop waiting for it; a response arriving later is dropped
+			forget(request.getRPCId(), response);
+			throw new RemoteException("No response from the server within " + (timeout + extraMillis) + " ms");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RemoteException)
+				throw (RemoteException) e.getCause();
+			throw new RemoteException("Could not complete the call", e.getCause());
+		} catch (InterruptedException e) {
+			forget(request.getRPCId(), response);
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for the server", e);
+		}
+	}
+
+	private RPCMessage call(RPCMessage request) throws RemoteException {
+		return call(request, 0);
+	}
+
+	// Drop a request that is no longer waited for
+	private synchronized void forget(long rpcID, CompletableFuture<RPCMessage> response) {
+		// If the connection has failed since, its requests are already gone
+		if (link != null)
+			link.pending.remove(rpcID, response);
+	}
+
+	@Override
+	public RPCMessage connect(RPCMessage request) throws RemoteException {
+		return call(request);
+	}
+
+	@Override
+	public RPCMessage disconnect(RPCMessage request) throws RemoteException {
+		return call(request);
+	}
+
+	@Override
+	public RPCMessage deposit(RPCMessage request) throws RemoteException {
+		return call(request);
+	}
+
+	@Override
+	public RPCMessage depositBatch(RPCMessage request) throws RemoteException {
+		return call(request);
+	}
+
+	@Override
+	public RPCMessage retrieve(RPCMessage request) throws RemoteException {
+		return call(request);
+	}
+
+	@Override
+	public RPCMessage retrieveWait(RPCMessage request) throws RemoteException {
+		// The server holds the response back for as long as the request asks, up to its own limit
+		long waitMillis = 0;
+		CSVUtility.Fields data = CSVUtility.parse(request.getCsv_data());
+		if (data != null && data.size() > 1)
+			try {
+				waitMillis = Math.max(0, data.getLong(1));
+			} catch (NumberFormatException e) {
+				// The server turns the request down at once
+			}
+		return call(request, waitMillis);
+	}
+
+	@Override
+	public RPCMessage registerListener(RPCMessage request, MailboxListener listener) throws RemoteException {
+		// The server cannot call back over this connection; use retrieveWait to be told of new mail instead
+		throw new RemoteException("Listeners are not available over the NIO transport");
+	}
+
+	@Override
+	public RPCMessage inquire(RPCMessage request) throws RemoteException {
+		return call(request);
+	}
+
+	@Override
+	public RPCMessage heartbeat(RPCMessage request) throws RemoteException {
+		return call(request);
+	}
+
+	@Override
+	public long getNextRPCID(long clientsLargestRPCIDSent) throws RemoteException {
+		// Only kept for older RMI clients; the RPC IDs are generated locally (see RPCIDGenerator)
+		throw new RemoteException("getNextRPCID is not available over the NIO transport");
+	}
+}
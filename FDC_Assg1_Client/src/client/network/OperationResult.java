@@ -0,0 +1,168 @@
+/* Result of a single operation sent to the server.
+ * Holds the response of that operation only, so results of operations issued concurrently
+ * (see Communication.sendOperationAsync(...)) never get mixed up.
+ *
+ * Usage:
+ * 1. Get a result from Communication, either from a future or using getLastResult()
+ * 2. Check the outcome using isSuccessful() or getStatus()
+ * 3. Use the getter matching the operation to read what the server sent back.
+ * Note: Only use a getter when you are sure that is the result of the operation.
+ */
+package client.network;
+
+import java.io.IOException;
+import java.util.List;
+
+import components.Commands.Command;
+import components.communication.RPCMessage;
+import components.communication.marshalling.MessageListCodec;
+import components.communication.marshalling.SimpleMarshaller;
+import components.messages.ChatMessage;
+import components.notices.Status;
+import components.utilities.CSVUtility;
+import components.utilities.IDGenerator;
+import components.utilities.Log;
+
+public class OperationResult {
+
+	private final Command command;
+	private final RPCMessage response;
+	private final boolean isValid;
+
+	/**
+	 * Creates the result of an operation.
+	 *
+	 * @param command
+	 *            The operation requested.
+	 * @param request
+	 *            The request packet sent.
+	 * @param response
+	 *            The response packet received.
+	 */
+	OperationResult(Command command, RPCMessage request, RPCMessage response) {
+		this.command = command;
+		this.response = response;
+		isValid = response != null && response.validateResponse(request);
+	}
+
+	/**
+	 * Returns the operation requested.
+	 *
+	 * @return The command.
+	 */
+	public Command getCommand() {
+		return command;
+	}
+
+	/**
+	 * Check if the response matches the request.
+	 *
+	 * @return True if the response is a valid reply to the request.
+	 */
+	public boolean isValid() {
+		return isValid;
+	}
+
+	/**
+	 * Check if the operation executed successfully on the server.
+	 *
+	 * @return True if the response is valid and has a success status.
+	 */
+	public boolean isSuccessful() {
+		return isValid && response.getStatus() == Status.SUCCESS;
+	}
+
+	/**
+	 * Returns the status of the operation.
+	 *
+	 * @return The status as specified by the Status class.
+	 */
+	public short getStatus() {
+		if (response != null)
+			return response.getStatus();
+		else
+			return Status.UNSET;
+	}
+
+	/**
+	 * Check if the response is valid as per the expected procedure.
+	 *
+	 * @param expectedCommand
+	 *            The expected operation.
+	 * @return True if the response is marked for the expected operation.
+	 */
+	public boolean isValidAsPerProcedure(Command expectedCommand) {
+		return response != null && response.validateProcedure(expectedCommand);
+	}
+
+	/**
+	 * Returns the client ID generated by the server, for a connect operation.
+	 *
+	 * @return The ID for the client.
+	 */
+	public long getClientID() {
+		CSVUtility.Fields responseData = CSVUtility.parse(response.getCsv_data());
+		if (responseData != null)
+			try {
+				return responseData.getLong(0);
+			} catch (NumberFormatException e) {
+				// Invalid IDs
+				Log.error("OperationResult", "getClientID", "Argument is not a number", e);
+				return IDGenerator.NULL_ID;
+			}
+		else
+			return IDGenerator.NULL_ID;
+	}
+
+	/**
+	 * Returns the messages retrieved from the server, for a retrieve operation.
+	 *
+	 * @return A list of Chat Message objects, or null if they could not be read.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<ChatMessage> getChatMessages() {
+		// Get the raw payload, if the server sent one
+		if (response.getPayload() != null)
+			try {
+				return MessageListCodec.decode(response.getPayload());
+			} catch (IOException e) {
+				Log.error("OperationResult", "getChatMessages", "Could not decode the messages", e);
+				return null;
+			}
+
+		// Get the CSV data
+		String responseData = response.getCsv_data();
+
+		Object unmarshalledData = SimpleMarshaller.unmarshallString(responseData);
+		if (unmarshalledData != null)
+			return (List<ChatMessage>) unmarshalledData;
+		else
+			return null;
+	}
+
+	/**
+	 * Check whether the inquired user is currently online, for an inquire operation.
+	 *
+	 * @return True if the user is connected to the server.
+	 */
+	public boolean isUserOnline() {
+		return Boolean.parseBoolean(response.getCsv_data());
+	}
+
+	/**
+	 * Returns the status of each message sent, for a batch deposit.
+	 *
+	 * @return The statuses as specified by the Status class, in the order of the messages.
+	 */
+	public short[] getBatchStatuses() {
+		CSVUtility.Fields responseData = CSVUtility.parse(response.getCsv_data());
+		short[] statuses = new short[responseData.size()];
+		try {
+			for (int i = 0; i < statuses.length; i++)
+				statuses[i] = (short) responseData.getLong(i);
+		} catch (NumberFormatException e) {
+			Log.error("OperationResult", "getBatchStatuses", "Status is not a number", e);
+		}
+		return statuses;
+	}
+}
@@ -19,7 +19,8 @@ public class Commands {
 	public static enum Command {
 		Connect((short) 1, "connect", 0), Disconnect((short) 2, "disconnect", 1), Deposit((short) 3, "deposit", 3), Retrieve(
 				(short) 4, "retrieve", 1), Inquire((short) 5, "inquire", 2), Exit((short) 6, "exit", 0), Quit(
-				(short) 7, "quit", 0);
+				(short) 7, "quit", 0), Heartbeat((short) 8, "heartbeat", 1), DepositBatch((short) 9, "depositbatch", 3), RetrieveWait(
+				(short) 10, "retrievewait", 2), Listen((short) 11, "listen", 1);
 		private short id;
 		private String name;
 		private int argumentCount;
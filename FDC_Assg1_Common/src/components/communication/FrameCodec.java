@@ -0,0 +1,84 @@
+/* Length-prefixed binary frames for sending RPCMessages over a plain TCP connection,
+ * as done by the NIO transport (an alternative to RMI).
+ * Each frame is a 4-byte big-endian length followed by that many bytes holding a single
+ * packet in its compact serialized form (see RPCMessage.writeTo(...)).
+ * The packet carries the procedure ID, so frames need no other header to be dispatched.
+ *
+ * Usage:
+ * 1. Turn a packet into a frame ready to be written using encode(...)
+ * 2. On the receiving side, use getFrameLength(...) to find out when a whole frame has arrived,
+ * 		then read the packet using decode(...)
+ */
+package components.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class FrameCodec {
+
+	// Bytes taken by the length at the start of each frame
+	public static final int HEADER_LENGTH = 4;
+
+	// Longest frame accepted, so that a corrupt length cannot make the receiver allocate gigabytes
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	/**
+	 * Turn a packet into a frame.
+	 *
+	 * @param message
+	 *            The packet.
+	 * @return The frame, including its length, ready to be written.
+	 * @throws IOException
+	 *             If the packet is too long for a frame.
+	 */
+	public static ByteBuffer encode(RPCMessage message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		// Room for the length, filled in once it is known
+		out.writeInt(0);
+		message.writeTo(out);
+		out.flush();
+
+		ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+		int length = frame.remaining() - HEADER_LENGTH;
+		if (length > MAX_FRAME_LENGTH)
+			throw new IOException("RPC message too long for a frame: " + length + " bytes");
+		frame.putInt(0, length);
+		return frame;
+	}
+
+	/**
+	 * Returns the length of the frame at the start of the buffer, if enough of it has arrived.
+	 *
+	 * @param buffer
+	 *            The received bytes, between its position and limit.
+	 * @return The length of the packet, not counting the header, or -1 if the header is incomplete.
+	 * @throws IOException
+	 *             If the length is invalid.
+	 */
+	public static int getFrameLength(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < HEADER_LENGTH)
+			return -1;
+		int length = buffer.getInt(buffer.position());
+		if (length < 0 || length > MAX_FRAME_LENGTH)
+			throw new IOException("Invalid frame length: " + length);
+		return length;
+	}
+
+	/**
+	 * Read the packet of a frame.
+	 *
+	 * @param packet
+	 *            The bytes of the frame, without its length.
+	 * @return The packet.
+	 * @throws IOException
+	 *             If the bytes do not hold a packet.
+	 */
+	public static RPCMessage decode(byte[] packet) throws IOException {
+		return RPCMessage.readFrom(new DataInputStream(new ByteArrayInputStream(packet)), packet.length);
+	}
+}
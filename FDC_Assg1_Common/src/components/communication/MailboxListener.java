@@ -0,0 +1,33 @@
+/* Callback through which the server pushes new messages to a client, instead of the client
+ * polling for them using retrieve(...).
+ * The client exports an implementation over RMI and hands it to the server using
+ * ServerInterface.registerListener(...), usually right after connecting.
+ *
+ * Usage:
+ * 1. Implement messagesArrived(...)
+ * 2. Register it with the server (see Communication.setMailboxListener(...) on the client)
+ * 3. Messages are then pushed as they arrive, in batches, until the client disconnects.
+ * If a push fails, the server stops pushing and keeps the messages for retrieve(...).
+ * Delivery is at-least-once: if a push fails after the messages were received (eg. the
+ * connection drops before the call returns), they are retrieved again; skip known message IDs.
+ */
+package components.communication;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+import components.messages.ChatMessage;
+
+public interface MailboxListener extends Remote {
+
+	/**
+	 * Receive the messages sent to the client.
+	 * The next batch is only pushed once this returns, so it should return quickly.
+	 *
+	 * @param messages
+	 *            The messages, in deposit order.
+	 * @throws RemoteException
+	 */
+	public void messagesArrived(List<ChatMessage> messages) throws RemoteException;
+}
@@ -8,10 +8,23 @@
  * 		4.1 validateRequest() on the server side.
  * 		4.2 validateResponse(...) on the client side.
  * 		4.3 validateProcedure(...) on either side, before beginning any operation.
+ * 
+ * Bulky or binary results (such as retrieved messages) can be carried as a raw payload
+ * instead of CSV, which saves encoding them as text; see createResponse(byte[], ...)
+ * Requests can carry a payload too (eg. a batch of messages to deposit).
+ * 
+ * Packets have a compact hand-written serialized form (see writeTo(...) and readFrom(...)),
+ * used by RMI through Externalizable, and usable directly on any byte stream.
  */
 package components.communication;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
 
 import components.Commands;
 import components.Commands.Command;
@@ -20,9 +33,20 @@ import components.utilities.CSVUtility;
 import components.utilities.IDGenerator;
 import components.utilities.Log;
 
-public class RPCMessage implements Serializable {
+public class RPCMessage implements Externalizable {
 	private static final long serialVersionUID = 6307407935412844886L;
 
+	// Version of the serialized form
+	private static final byte FORMAT_VERSION = 1;
+
+	// Flags in the serialized form
+	private static final int FLAG_REPLY = 1;
+	private static final int FLAG_CSV_DATA = 2;
+	private static final int FLAG_PAYLOAD = 4;
+
+	// Bytes taken by the fields before the CSV data and payload in the compact form
+	private static final int FIXED_LENGTH = 1 + 1 + 8 + 8 + 8 + 2 + 2;
+
 	// Message type
 	public static final short REQUEST = 0;
 	public static final short REPLY = 1;
@@ -43,9 +67,18 @@ public class RPCMessage implements Serializable {
 	private short procedureID; /* e.g.(1,2,3,4) */
 	// Arguments for this command as CSV
 	private String csv_data; /* data as comma separated values */
+	// Raw binary data, if any, carried alongside the CSV
+	private byte[] payload;
 	// Success/error status
 	private short status;
 
+	/**
+	 * Create an empty RPCMessage packet.
+	 * Only for use by deserialization; use readFrom(...) when reading packets directly.
+	 */
+	public RPCMessage() {
+	}
+
 	/**
 	 * Create a new RPCMessage packet.
 	 * 
@@ -77,6 +110,19 @@ public class RPCMessage implements Serializable {
 		this.status = status;
 	}
 
+	/**
+	 * Create a new RPCMessage packet carrying raw binary data along with the CSV.
+	 * Same as RPCMessage(messageType, transactionID, RPCId, requestID, procedureID, csv_data, status).
+	 * 
+	 * @param payload
+	 *            Arguments for this operation as raw bytes (eg. a batch of messages), or null.
+	 */
+	public RPCMessage(MessageType messageType, long transactionID, long RPCId, long requestID, short procedureID,
+			String csv_data, byte[] payload, short status) {
+		this(messageType, transactionID, RPCId, requestID, procedureID, csv_data, status);
+		this.payload = payload;
+	}
+
 	/**
 	 * Create a response packet for this request.
 	 * This is a convenience function supplied to quickly generate an appropriate
@@ -94,6 +140,23 @@ public class RPCMessage implements Serializable {
 		return new RPCMessage(MessageType.REPLY, transactionID, RPCId, requestID, procedureID, resultData, resultStatus);
 	}
 
+	/**
+	 * Create a response packet for this request, carrying a raw binary result.
+	 * Same as createResponse(String, short), with an empty CSV.
+	 * 
+	 * @param resultPayload
+	 *            The result of the operation, as raw bytes.
+	 * @param resultStatus
+	 *            The status of the operation.
+	 * @return The new RPCMessage object ready to be sent as a response.
+	 * @see {@link Status}
+	 */
+	public RPCMessage createResponse(byte[] resultPayload, short resultStatus) {
+		RPCMessage response = createResponse("", resultStatus);
+		response.payload = resultPayload;
+		return response;
+	}
+
 	/**
 	 * Returns the type of the message.
 	 * 
@@ -155,6 +218,15 @@ public class RPCMessage implements Serializable {
 		return csv_data;
 	}
 
+	/**
+	 * Returns the raw binary data, if any, supplied along with the CSV.
+	 * 
+	 * @return The payload, or null if there is none.
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+
 	/**
 	 * Returns the status supplied with the RPC message.
 	 * In responses, use this to check whether the operation was successful.
@@ -173,8 +245,8 @@ public class RPCMessage implements Serializable {
 	 * @return True if the packet is explicitly typed as a request.
 	 */
 	public boolean validateRequest() {
-		Log.debug("RPCMessage", "validateRequest", "request has type " + messageType + " and should be "
-				+ MessageType.REQUEST);
+		Log.debug("RPCMessage", "validateRequest", "request has type %s and should be %s", messageType,
+				MessageType.REQUEST);
 		return messageType == MessageType.REQUEST;
 	}
 
@@ -194,27 +266,27 @@ public class RPCMessage implements Serializable {
 
 		// Step 1: check if the response is correctly typed
 		isValid = isValid && (messageType == MessageType.REPLY);
-		Log.debug("RPCMessage", "validateResponse", "request has type " + messageType + ", should be "
-				+ MessageType.REPLY);
+		Log.debug("RPCMessage", "validateResponse", "request has type %s, should be %s", messageType,
+				MessageType.REPLY);
 
 		// Step 2: check if the transaction ID is the same as that in the request
 		isValid = isValid && (transactionID == request.getTransactionID());
-		Log.debug("RPCMessage", "validateResponse",
-				"transaction ID is " + transactionID + ", should be " + request.getTransactionID());
+		Log.debug("RPCMessage", "validateResponse", "transaction ID is %d, should be %d", transactionID,
+				request.getTransactionID());
 
 		// Step 3: check if the RPC ID is the same as that in the request
 		isValid = isValid && (RPCId == request.getRPCId());
-		Log.debug("RPCMessage", "validateResponse", "RPC ID is " + RPCId + ", should be " + request.getRPCId());
+		Log.debug("RPCMessage", "validateResponse", "RPC ID is %d, should be %d", RPCId, request.getRPCId());
 
 		// Step 4: check if the request ID in the response is the same as that in the request
 		isValid = isValid && (requestID == request.getRequestID());
-		Log.debug("RPCMessage", "validateResponse",
-				"Request ID is " + requestID + ", should be " + request.getRequestID());
+		Log.debug("RPCMessage", "validateResponse", "Request ID is %d, should be %d", requestID,
+				request.getRequestID());
 
 		// Step 5: check if the procedure ID is the same as that in the request
 		isValid = isValid && (procedureID == request.getProcedureID());
-		Log.debug("RPCMessage", "validateResponse",
-				"Procedure ID is " + procedureID + ", should be " + request.getProcedureID());
+		Log.debug("RPCMessage", "validateResponse", "Procedure ID is %d, should be %d", procedureID,
+				request.getProcedureID());
 
 		return isValid;
 	}
@@ -229,8 +301,8 @@ public class RPCMessage implements Serializable {
 	 * @return True if the packet is intended for the expected procedure.
 	 */
 	public boolean validateProcedure(Command expectedCommand) {
-		Log.debug("RPCMessage", "validateProcedure", "expected: " + expectedCommand.getID() + " response: "
-				+ procedureID);
+		Log.debug("RPCMessage", "validateProcedure", "expected: %d response: %d", expectedCommand.getID(),
+				procedureID);
 		return procedureID == expectedCommand.getID();
 	}
 
@@ -247,8 +319,114 @@ public class RPCMessage implements Serializable {
 		prettyPrint.append(" Request ID " + requestID);
 		prettyPrint.append(" Procedure " + procedureID);
 		prettyPrint.append(" CSV Data " + csv_data);
+		if (payload != null)
+			prettyPrint.append(" Payload " + payload.length + " bytes");
 		prettyPrint.append(" Status " + status);
 		
 		return prettyPrint.toString();
 	}
+
+	/**
+	 * Write the packet in its compact serialized form.
+	 * 
+	 * @param out
+	 *            The stream to write to.
+	 * @throws IOException
+	 *             If the stream fails.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		int flags = (messageType == MessageType.REPLY ? FLAG_REPLY : 0) | (csv_data != null ? FLAG_CSV_DATA : 0)
+				| (payload != null ? FLAG_PAYLOAD : 0);
+		out.writeByte(FORMAT_VERSION);
+		out.writeByte(flags);
+		out.writeLong(transactionID);
+		out.writeLong(RPCId);
+		out.writeLong(requestID);
+		out.writeShort(procedureID);
+		out.writeShort(status);
+
+		// Length-prefixed, since the CSV may be longer than writeUTF(...) allows
+		if (csv_data != null) {
+			byte[] csvBytes = csv_data.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(csvBytes.length);
+			out.write(csvBytes);
+		}
+		if (payload != null) {
+			out.writeInt(payload.length);
+			out.write(payload);
+		}
+	}
+
+	/**
+	 * Read a packet from its compact serialized form.
+	 * 
+	 * @param in
+	 *            The stream to read from.
+	 * @return The packet read.
+	 * @throws IOException
+	 *             If the stream fails, or does not hold a packet.
+	 */
+	public static RPCMessage readFrom(DataInput in) throws IOException {
+		return readFrom(in, FrameCodec.MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 * Read a packet from its compact serialized form, when the most bytes it can take are known
+	 * (eg. the length of its frame), so that a corrupt length is caught before allocating anything.
+	 * 
+	 * @param in
+	 *            The stream to read from.
+	 * @param maxLength
+	 *            The most bytes the packet can take.
+	 * @return The packet read.
+	 * @throws IOException
+	 *             If the stream fails, or does not hold a packet within that many bytes.
+	 */
+	public static RPCMessage readFrom(DataInput in, int maxLength) throws IOException {
+		RPCMessage message = new RPCMessage();
+		message.readFields(in, maxLength);
+		return message;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		writeTo(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		readFields(in, FrameCodec.MAX_FRAME_LENGTH);
+	}
+
+	// Fill in the fields from the serialized form, taking at most maxLength bytes
+	private void readFields(DataInput in, int maxLength) throws IOException {
+		if (in.readByte() != FORMAT_VERSION)
+			throw new IOException("Unknown RPC message format");
+		int flags = in.readByte();
+		messageType = (flags & FLAG_REPLY) != 0 ? MessageType.REPLY : MessageType.REQUEST;
+		transactionID = in.readLong();
+		RPCId = in.readLong();
+		requestID = in.readLong();
+		procedureID = in.readShort();
+		status = in.readShort();
+
+		long remaining = maxLength - FIXED_LENGTH;
+		csv_data = null;
+		if ((flags & FLAG_CSV_DATA) != 0) {
+			byte[] csvBytes = readBytes(in, remaining);
+			remaining -= 4 + csvBytes.length;
+			csv_data = new String(csvBytes, StandardCharsets.UTF_8);
+		}
+		payload = (flags & FLAG_PAYLOAD) != 0 ? readBytes(in, remaining) : null;
+	}
+
+	// Read a length-prefixed block of bytes, which must fit in the bytes remaining (counting its length)
+	private static byte[] readBytes(DataInput in, long remaining) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > remaining - 4)
+			throw new IOException("Invalid length in RPC message: " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
 }
\ No newline at end of file
@@ -5,13 +5,19 @@
  * This returns an ID that must be used for all succeeding interactions.
  * 
  * 2. Interact with the system:
- * 		2.1 Send messages using deposit(...)
- * 		2.2 Retrieve messages using retrieve(...)
+ * 		2.1 Send messages using deposit(...), or many at once using depositBatch(...)
+ * 		2.2 Retrieve messages using retrieve(...), or wait for them to arrive using retrieveWait(...)
+ * 			or have them pushed as they arrive using registerListener(...)
  * 		2.3 Find out about other users using inquire(...)
  * 
  * 3. Track the latest available globally unique RPC ID using getNextRPCID(...)
+ * Note: this costs an extra round trip per operation; clients should rather generate
+ * their own IDs using RPCIDGenerator. It is kept for older clients.
  * 
- * 4. Disconnect from the system using disconnect(...)
+ * 4. Keep the session alive while idle using heartbeat(...)
+ * Sessions that are not used for a while are closed by the server.
+ * 
+ * 5. Disconnect from the system using disconnect(...)
  */
 package components.communication;
 
@@ -50,6 +56,19 @@ public interface ServerInterface extends Remote {
 	 */
 	public RPCMessage deposit(RPCMessage request) throws RemoteException;
 
+	/**
+	 * Send many messages in one call, each with its own sender and recipient.
+	 * The whole batch is stored with a single durable commit.
+	 * 
+	 * @param request
+	 *            The request packet containing the messages, either as a payload encoded by
+	 *            MessageListCodec (IDs and dates unset), or as CSV (sender ID, recipient ID, message)
+	 *            triples, with single-word messages.
+	 * @throws RemoteException 
+	 * @returns The reply packet with the status of the operation, and the status of each message as CSV.
+	 */
+	public RPCMessage depositBatch(RPCMessage request) throws RemoteException;
+
 	/**
 	 * Check and retrieve any messages available for the current user from the server.
 	 * 
@@ -60,6 +79,34 @@ public interface ServerInterface extends Remote {
 	 */
 	public RPCMessage retrieve(RPCMessage request) throws RemoteException;
 
+	/**
+	 * Retrieve the messages available for the current user, waiting for some to arrive if there are none yet.
+	 * Replies as soon as the user has mail, or with no messages once the timeout is over.
+	 * Over RMI each wait holds a server thread, so the server only lets a limited number wait at once and
+	 * replies Status.SERVER_BUSY to the rest; over the NIO transport (see FrameConnection) waits hold no thread.
+	 * 
+	 * @param request
+	 *            The request packet containing the client's ID and the longest time to wait, in milliseconds
+	 *            (capped by the server).
+	 * @throws RemoteException 
+	 * @returns The reply packet with the success status of the operation and all messages, as for retrieve(...).
+	 */
+	public RPCMessage retrieveWait(RPCMessage request) throws RemoteException;
+
+	/**
+	 * Have the messages for the current user pushed to a listener as they arrive, instead of polling for them.
+	 * Messages already waiting are pushed too. If a push fails, pushing stops and the messages stay
+	 * available to retrieve(...). Pushing also stops when the user disconnects.
+	 * 
+	 * @param request
+	 *            The request packet containing the client's ID.
+	 * @param listener
+	 *            The listener, exported by the client (replacing any registered before), or null to stop pushing.
+	 * @throws RemoteException 
+	 * @returns The reply packet with the success status of the operation.
+	 */
+	public RPCMessage registerListener(RPCMessage request, MailboxListener listener) throws RemoteException;
+
 	/**
 	 * Check if a particular user is connected to the system.
 	 * 
@@ -70,8 +117,19 @@ public interface ServerInterface extends Remote {
 	 */
 	public RPCMessage inquire(RPCMessage request) throws RemoteException;
 
+	/**
+	 * Renew the client's session lease without doing anything else.
+	 * 
+	 * @param request
+	 *            The request packet containing the client's ID.
+	 * @throws RemoteException 
+	 * @returns The reply packet with the success status of the operation.
+	 */
+	public RPCMessage heartbeat(RPCMessage request) throws RemoteException;
+
 	/**
 	 * Get a globally unique RPC ID.
+	 * Note: IDs from this function are unique among themselves, but not with those from RPCIDGenerator.
 	 * 
 	 * @param clientsLargestRPCIDSent
 	 *            The largest RPC ID the client has seen/generated/observed.
@@ -0,0 +1,191 @@
+/* Compact binary format for lists of chat messages.
+ * Unlike Java serialization, no class descriptors or Calendar object graphs are written;
+ * each message is only its fields, with the numbers as variable-length integers:
+ *
+ * 		[version] [message count] { [id] [sender] [recipient] [receive date] [content length + 1] [content] }*
+ *
+ * The receive date is in epoch milliseconds (-1 when not set) and the content is UTF-8
+ * (a length of 0 stands for no content at all). All numbers are LEB128 varints,
+ * with the receive date zigzag-encoded so that -1 takes up a single byte.
+ *
+ * The version byte comes first, so that the format can evolve; it never takes the value
+ * 0xAC that Java serialization streams start with, so both can be told apart.
+ *
+ * Usage:
+ * 1. Encode a list of messages using encode(...)
+ * 2. Decode it back using decode(...)
+ */
+package components.communication.marshalling;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import components.messages.ChatMessage;
+
+public class MessageListCodec {
+
+	/**
+	 * The version byte of the current format.
+	 */
+	public static final byte VERSION = 1;
+
+	/**
+	 * The first byte of a Java serialization stream (part of its 0xACED magic number).
+	 */
+	public static final byte JAVA_SERIALIZATION = (byte) 0xAC;
+
+	/**
+	 * Encode a list of messages.
+	 *
+	 * @param messages
+	 *            The messages to encode; none of them may be null.
+	 * @return The encoded bytes.
+	 */
+	public static byte[] encode(List<ChatMessage> messages) {
+		// Start with a rough guess of the size, and grow as needed
+		Output out = new Output(16 + messages.size() * 48);
+		out.writeByte(VERSION);
+		out.writeVarLong(messages.size());
+
+		for (ChatMessage message : messages) {
+			out.writeVarLong(message.getID());
+			out.writeVarLong(message.getSenderID());
+			out.writeVarLong(message.getRecipientID());
+			long receiveMillis = message.getReceiveDate() != null ? message.getReceiveDate().getTimeInMillis() : -1;
+			out.writeVarLong(receiveMillis << 1 ^ receiveMillis >> 63);
+
+			if (message.getMessage() != null) {
+				byte[] content = message.getMessage().getBytes(StandardCharsets.UTF_8);
+				out.writeVarLong(content.length + 1);
+				out.writeBytes(content);
+			} else
+				out.writeVarLong(0);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode a list of messages.
+	 *
+	 * @param data
+	 *            The encoded bytes.
+	 * @return The decoded messages, in their original order.
+	 * @throws IOException
+	 *             If the data is not a message list in a known version of the format.
+	 */
+	public static List<ChatMessage> decode(byte[] data) throws IOException {
+		Input in = new Input(data);
+		if (data.length == 0 || in.readByte() != VERSION)
+			throw new IOException("Not a message list, or an unknown version of the format");
+
+		long count = in.readVarLong();
+		// Never trust the count to size the list; each message takes at least 5 bytes
+		if (count < 0 || count > data.length / 5)
+			throw new IOException("Invalid message count " + count);
+		List<ChatMessage> messages = new ArrayList<ChatMessage>((int) count);
+
+		// Cloning a calendar is much cheaper than looking up the default time zone and locale each time
+		Calendar calendarPrototype = Calendar.getInstance();
+		for (long i = 0; i < count; i++) {
+			long id = in.readVarLong();
+			long senderID = in.readVarLong();
+			long recipientID = in.readVarLong();
+			long zigzagMillis = in.readVarLong();
+			long receiveMillis = zigzagMillis >>> 1 ^ -(zigzagMillis & 1);
+			long contentLength = in.readVarLong() - 1;
+			// Only -1 stands for null content; anything lower is corrupt
+			if (contentLength < -1)
+				throw new IOException("Invalid content length " + contentLength);
+
+			String content = null;
+			if (contentLength >= 0)
+				content = in.readString((int) Math.min(contentLength, Integer.MAX_VALUE));
+			Calendar receiveDate = null;
+			if (receiveMillis >= 0) {
+				receiveDate = (Calendar) calendarPrototype.clone();
+				receiveDate.setTimeInMillis(receiveMillis);
+			}
+			messages.add(new ChatMessage(id, senderID, recipientID, content, receiveDate));
+		}
+		return messages;
+	}
+
+	// Growable byte buffer, without the synchronization of ByteArrayOutputStream
+	private static class Output {
+		private byte[] buffer;
+		private int length = 0;
+
+		private Output(int initialCapacity) {
+			buffer = new byte[initialCapacity];
+		}
+
+		private void ensureCapacity(int extra) {
+			if (length + extra > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+		}
+
+		private void writeByte(int value) {
+			ensureCapacity(1);
+			buffer[length++] = (byte) value;
+		}
+
+		private void writeVarLong(long value) {
+			ensureCapacity(10);
+			// 7 bits at a time, lowest first, with the top bit set while more follow
+			while ((value & ~0x7FL) != 0) {
+				buffer[length++] = (byte) (value & 0x7F | 0x80);
+				value >>>= 7;
+			}
+			buffer[length++] = (byte) value;
+		}
+
+		private void writeBytes(byte[] bytes) {
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, length, bytes.length);
+			length += bytes.length;
+		}
+
+		private byte[] toByteArray() {
+			return Arrays.copyOf(buffer, length);
+		}
+	}
+
+	// Reader over the encoded bytes, failing with an IOException on truncated data
+	private static class Input {
+		private final byte[] buffer;
+		private int position = 0;
+
+		private Input(byte[] buffer) {
+			this.buffer = buffer;
+		}
+
+		private byte readByte() throws IOException {
+			if (position >= buffer.length)
+				throw new IOException("Message list is truncated");
+			return buffer[position++];
+		}
+
+		private long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+					return value;
+			}
+			throw new IOException("Malformed number in the message list");
+		}
+
+		private String readString(int length) throws IOException {
+			if (length > buffer.length - position)
+				throw new IOException("Message list is truncated");
+			String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+	}
+}
@@ -6,9 +6,13 @@
  * Useful for passing lists of Message objects, when conversion to CSV 
  * would be a nightmare!
  * 
+ * Lists of messages have a compact binary format of their own (see MessageListCodec),
+ * which is several times smaller and faster than Java serialization.
+ * 
  * Usage:
  * 1. Compress an object into a string using marshallToString(...)
- * 2. Restore the object back using unmarshallString(...)
+ * 		or a list of messages using marshallMessages(...)
+ * 2. Restore the object back using unmarshallString(...), whichever way it was marshalled
  */
 package components.communication.marshalling;
 
@@ -17,9 +21,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.List;
 
 import org.apache.commons.codec.binary.Base64;
 
+import components.messages.ChatMessage;
 import components.utilities.Log;
 
 public class SimpleMarshaller {
@@ -55,6 +61,23 @@ public class SimpleMarshaller {
 		}
 	}
 
+	/**
+	 * Convert a list of messages into a string.
+	 * Uses the compact binary format of MessageListCodec,
+	 * along with a third-party base64 encoder from Apache Commons library
+	 * to ensure the bytes are encoded in the proper format.
+	 * 
+	 * @param messages
+	 *            The messages to be marshalled.
+	 * @return The string representing all the messages.
+	 */
+	public static String marshallMessages(List<ChatMessage> messages) {
+		byte[] data = MessageListCodec.encode(messages);
+		Log.debug("Marshaller", "marshallMessages", "%d messages marshalled into %d bytes", messages.size(),
+				data.length);
+		return new String(Base64.encodeBase64(data));
+	}
+
 	/**
 	 * Restore an object back from a marshalled string.
 	 * Uses inbuilt Java features to stream bytes into of an object,
@@ -70,6 +93,13 @@ public class SimpleMarshaller {
 		byte[] data = Base64.decodeBase64(rawData.getBytes());
 		ObjectInputStream ois;
 		try {
+			// Lists of messages in the compact format can be told apart by their version byte
+			if (data.length > 0 && data[0] != MessageListCodec.JAVA_SERIALIZATION) {
+				List<ChatMessage> messages = MessageListCodec.decode(data);
+				Log.debug("Marshaller", "unmarshall", "Successfully reconstructed %d messages", messages.size());
+				return messages;
+			}
+
 			// Unmarshalling step 2: read string as object
 			ois = new ObjectInputStream(new ByteArrayInputStream(data));
 			Object reconstitutedObject = ois.readObject();
@@ -0,0 +1,129 @@
+/* Time-bucketed index of message expiry deadlines.
+ * Message IDs are grouped into buckets of a fixed width by their deadline, kept in
+ * deadline order, so collecting the expired messages only touches the buckets that
+ * have run out, rather than scanning every stored message.
+ *
+ * Messages that are retrieved before their deadline are not taken out of their bucket;
+ * they are simply skipped when the bucket expires.
+ *
+ * Usage:
+ * 1. Register a message deadline using schedule(...)
+ * 2. Periodically collect the IDs whose deadlines have passed using takeExpired(...)
+ */
+package components.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+class ExpiryIndex {
+
+	// Lock-free bag of the IDs expiring within a bucket: IDs are pushed onto a linked stack with a
+	// compare-and-set, and taken out all at once
+	private static class Bucket {
+		private static class Node {
+			private final long messageID;
+			private final Node next;
+
+			private Node(long messageID, Node next) {
+				this.messageID = messageID;
+				this.next = next;
+			}
+		}
+
+		private final AtomicReference<Node> head = new AtomicReference<Node>();
+
+		private void add(long messageID) {
+			Node current;
+			Node added;
+			do {
+				current = head.get();
+				added = new Node(messageID, current);
+			} while (!head.compareAndSet(current, added));
+		}
+
+		// Take out every ID added so far
+		private long[] drain() {
+			Node top = head.getAndSet(null);
+			int count = 0;
+			for (Node node = top; node != null; node = node.next)
+				count++;
+			long[] messageIDs = new long[count];
+			for (Node node = top; node != null; node = node.next)
+				messageIDs[--count] = node.messageID;
+			return messageIDs;
+		}
+	}
+
+	// Width of each bucket in milliseconds
+	private final long bucketMillis;
+
+	// Bucket start time -> IDs of the messages expiring within that bucket
+	private final ConcurrentSkipListMap<Long, Bucket> buckets = new ConcurrentSkipListMap<Long, Bucket>();
+
+	/**
+	 * Creates an empty index.
+	 *
+	 * @param bucketMillis
+	 *            Width of each bucket; messages may expire up to this much later than their deadline.
+	 */
+	public ExpiryIndex(long bucketMillis) {
+		this.bucketMillis = Math.max(1, bucketMillis);
+	}
+
+	/**
+	 * Returns the width of each bucket.
+	 *
+	 * @return The bucket width in milliseconds.
+	 */
+	public long getBucketMillis() {
+		return bucketMillis;
+	}
+
+	/**
+	 * Register the deadline of a message.
+	 *
+	 * @param messageID
+	 *            The ID of the message.
+	 * @param deadlineMillis
+	 *            The time (epoch millis) after which the message expires.
+	 */
+	public void schedule(long messageID, long deadlineMillis) {
+		Long bucketStart = Long.valueOf(deadlineMillis - deadlineMillis % bucketMillis);
+		while (true) {
+			Bucket bucket = buckets.get(bucketStart);
+			if (bucket == null) {
+				Bucket newBucket = new Bucket();
+				bucket = buckets.putIfAbsent(bucketStart, newBucket);
+				if (bucket == null)
+					bucket = newBucket;
+			}
+			bucket.add(messageID);
+
+			// If the bucket was taken away meanwhile, the ID may have been missed; add it again
+			// (expiring a message twice is harmless)
+			if (buckets.get(bucketStart) == bucket)
+				return;
+		}
+	}
+
+	/**
+	 * Take out all message IDs whose buckets have fully run out.
+	 *
+	 * @param nowMillis
+	 *            The current time (epoch millis).
+	 * @return The expired message IDs, one array per bucket (may include messages that are already gone).
+	 */
+	public List<long[]> takeExpired(long nowMillis) {
+		List<long[]> expired = new ArrayList<long[]>();
+		Map.Entry<Long, Bucket> entry;
+		while ((entry = buckets.firstEntry()) != null && entry.getKey().longValue() + bucketMillis <= nowMillis) {
+			// Only the thread that removes a bucket gets to drain it
+			if (buckets.remove(entry.getKey(), entry.getValue()))
+				expired.add(entry.getValue().drain());
+		}
+		return expired;
+	}
+}
@@ -0,0 +1,291 @@
+/* Lock-free inbox of message IDs waiting for a single recipient.
+ * New IDs are pushed onto a linked stack with a compare-and-set, and the whole
+ * pending batch is detached in one atomic swap, so concurrent deposits and
+ * retrievals never block each other and no message is handed out twice.
+ * 
+ * Usage:
+ * 1. Add message IDs as they are deposited using add(...), or several at once using addAll(...)
+ * 2. Take all waiting IDs (in deposit order) using drain()
+ * 3. Look at the waiting IDs without taking them using peek()
+ * 4. Account for the space used by the recipient's stored messages using reserve(...), and give it back
+ * 		using releaseStored(...) once a message is removed, or release(...) if it could not be stored
+ * 5. Be told when the next message arrives using addWaiter(...)
+ * 6. Drop the IDs of messages removed by other means (eg. expiry) using prune(...)
+ * 7. Before removing an empty inbox from the mailbox, retire it using retire(...)
+ *
+ * IDs of messages removed other than by drain() stay in the stack until the next drain or prune,
+ * so whether the inbox is empty is decided by the count of stored messages whose IDs have been added
+ * instead (space reserved for a deposit still being logged does not count, so waiters are not woken early).
+ *
+ * A retired inbox takes no more messages or waiters: reserve(...) and addWaiter(...) fail on it,
+ * and the caller should look up the recipient's inbox again, which gets a fresh one.
+ */
+package components.messages;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.LongPredicate;
+
+class Inbox {
+
+	// A single entry in the stack; entries are never modified once published
+	private static class Node {
+		private final long messageID;
+		private final Node next;
+		// Number of entries from this one down
+		private final int depth;
+
+		private Node(long messageID, Node next) {
+			this.messageID = messageID;
+			this.next = next;
+			depth = next != null ? next.depth + 1 : 1;
+		}
+	}
+
+	// Most recently added entry (top of the stack)
+	private final AtomicReference<Node> head = new AtomicReference<Node>();
+
+	// Number and total size of the recipient's messages still stored
+	// (the count is RETIRED once the inbox has been retired)
+	private final AtomicInteger storedMessages = new AtomicInteger();
+	private static final int RETIRED = Integer.MIN_VALUE;
+
+	// Number of those messages whose IDs have been added, ie. that are ready to be drained
+	private final AtomicInteger addedMessages = new AtomicInteger();
+	private final AtomicLong storedBytes = new AtomicLong();
+
+	// Waiting for the next message to be added
+	private final ConcurrentLinkedQueue<CompletableFuture<Void>> waiters = new ConcurrentLinkedQueue<CompletableFuture<Void>>();
+
+	/**
+	 * Add a message ID to the inbox.
+	 * 
+	 * @param messageID
+	 *            The ID of the deposited message.
+	 */
+	public void add(long messageID) {
+		Node current;
+		Node added;
+		do {
+			current = head.get();
+			added = new Node(messageID, current);
+		} while (!head.compareAndSet(current, added));
+		addedMessages.incrementAndGet();
+		wakeWaiters();
+	}
+
+	/**
+	 * Add several message IDs to the inbox in one step.
+	 * 
+	 * @param messageIDs
+	 *            The IDs of the messages, in deposit order.
+	 */
+	public void addAll(long[] messageIDs) {
+		Node current;
+		Node added;
+		do {
+			current = head.get();
+			added = current;
+			for (long messageID : messageIDs)
+				added = new Node(messageID, added);
+		} while (!head.compareAndSet(current, added));
+		addedMessages.addAndGet(messageIDs.length);
+		wakeWaiters();
+	}
+
+	/**
+	 * Have a future completed once a message ID is added (or at once, if the inbox is not empty).
+	 * It is completed on the thread adding the message, so its dependent actions should be quick.
+	 * A waiter completed elsewhere, eg. on a timeout, is forgotten.
+	 * 
+	 * @param waiter
+	 *            The future to complete.
+	 * @return True if the waiter was added, false if the inbox has been retired.
+	 */
+	public boolean addWaiter(final CompletableFuture<Void> waiter) {
+		waiters.add(waiter);
+		waiter.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable error) {
+				waiters.remove(waiter);
+			}
+		});
+
+		// Retired before it could see the waiter
+		if (isRetired()) {
+			waiters.remove(waiter);
+			return false;
+		}
+
+		// A message may have been added just before the waiter was
+		if (!isEmpty())
+			wakeWaiters();
+		return true;
+	}
+
+	// Complete all waiters
+	private void wakeWaiters() {
+		CompletableFuture<Void> waiter;
+		while ((waiter = waiters.poll()) != null)
+			waiter.complete(null);
+	}
+
+	/**
+	 * Atomically detach every waiting message ID.
+	 * Each ID is returned by exactly one drain, even with concurrent callers.
+	 * 
+	 * @return The waiting IDs in the order they were added (may be empty).
+	 */
+	public long[] drain() {
+		return toArray(head.getAndSet(null));
+	}
+
+	/**
+	 * Returns the waiting message IDs without removing them.
+	 * 
+	 * @return The waiting IDs in the order they were added (may be empty).
+	 */
+	public long[] peek() {
+		return toArray(head.get());
+	}
+
+	/**
+	 * Check if any messages are waiting.
+	 * IDs left behind by messages that were removed by other means do not count, nor do
+	 * messages that have space reserved but are not added yet.
+	 * 
+	 * @return True if the inbox has nothing in it.
+	 */
+	public boolean isEmpty() {
+		// Counted once an ID is added, and no longer once its message is removed
+		return head.get() == null || addedMessages.get() <= 0;
+	}
+
+	/**
+	 * Drop the IDs of messages that are no longer stored, once they make up over half the stack.
+	 * Costs as much as the number of IDs in the stack, so it is only done once the dropped ones
+	 * pay for it. Gives up if an ID is added or drained meanwhile; the next call tries again.
+	 * 
+	 * @param isStored
+	 *            Tells whether the message with a given ID is still stored.
+	 * @return The number of IDs dropped.
+	 */
+	public int prune(LongPredicate isStored) {
+		Node top = head.get();
+		if (top == null || top.depth <= 2L * getStoredMessages())
+			return 0;
+
+		// Rebuild the stack from the bottom up with the IDs still stored
+		Node kept = null;
+		for (long messageID : toArray(top))
+			if (isStored.test(messageID))
+				kept = new Node(messageID, kept);
+		if (!head.compareAndSet(top, kept))
+			return 0;
+		return top.depth - (kept != null ? kept.depth : 0);
+	}
+
+	/**
+	 * Account for a new message, unless it would take the inbox over its quota.
+	 * 
+	 * @param bytes
+	 *            The size of the message.
+	 * @param maxMessages
+	 *            The most messages the inbox may hold, or 0 for no limit.
+	 * @param maxBytes
+	 *            The most bytes the inbox may hold, or 0 for no limit.
+	 * @return True if the space was reserved, false if the inbox is full or retired.
+	 */
+	public boolean reserve(long bytes, int maxMessages, long maxBytes) {
+		// Claim a message slot
+		int messageCount;
+		do {
+			messageCount = storedMessages.get();
+			if (messageCount == RETIRED || (maxMessages > 0 && messageCount >= maxMessages))
+				return false;
+		} while (!storedMessages.compareAndSet(messageCount, messageCount + 1));
+
+		// Claim the bytes, giving the slot back if they do not fit
+		long byteCount;
+		do {
+			byteCount = storedBytes.get();
+			if (maxBytes > 0 && byteCount + bytes > maxBytes) {
+				storedMessages.decrementAndGet();
+				return false;
+			}
+		} while (!storedBytes.compareAndSet(byteCount, byteCount + bytes));
+		return true;
+	}
+
+	/**
+	 * Give back the space reserved for a message that could not be stored after all.
+	 * 
+	 * @param bytes
+	 *            The size of the message.
+	 */
+	public void release(long bytes) {
+		storedMessages.decrementAndGet();
+		storedBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * Give back the space of a message whose ID was added, once the message has been removed.
+	 * 
+	 * @param bytes
+	 *            The size of the message.
+	 */
+	public void releaseStored(long bytes) {
+		addedMessages.decrementAndGet();
+		release(bytes);
+	}
+
+	/**
+	 * Retire the inbox, if it stores no messages (nor has space reserved for any) and nobody waits on it,
+	 * so that it can be removed from the mailbox without losing a deposit or a waiter.
+	 * IDs left behind by removed messages go with it.
+	 * 
+	 * @return True if the inbox was retired.
+	 */
+	public boolean retire() {
+		if (!waiters.isEmpty() || !storedMessages.compareAndSet(0, RETIRED))
+			return false;
+
+		// A waiter may have been added meanwhile; nothing can be reserved while retired, so undoing is safe
+		if (!waiters.isEmpty()) {
+			storedMessages.set(0);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check if the inbox has been retired, ie. it no longer takes messages or waiters.
+	 * 
+	 * @return True if retired.
+	 */
+	public boolean isRetired() {
+		return storedMessages.get() == RETIRED;
+	}
+
+	/**
+	 * Returns the number of the recipient's messages still stored.
+	 * 
+	 * @return The message count.
+	 */
+	public int getStoredMessages() {
+		return Math.max(0, storedMessages.get());
+	}
+
+	// Flatten the stack into an array, reversing it back into deposit order
+	private static long[] toArray(Node top) {
+		int count = top != null ? top.depth : 0;
+		long[] messageIDs = new long[count];
+		for (Node node = top; node != null; node = node.next)
+			messageIDs[--count] = node.messageID;
+		return messageIDs;
+	}
+}
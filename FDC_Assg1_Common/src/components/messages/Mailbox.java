@@ -3,32 +3,132 @@
  * 
  * Usage:
  * 1. Retrieve the singleton instance using getInstance()
- * 2. Add messages using addMessage(...)
+ * 2. Add messages using addMessage(...), or many at once using addMessages(...)
  * 		2.1 You cannot remove messages explicitly. However, you can ask for them to be removed during retrieval.
  * 3. Retrieve messages by using:
  * 		3.1 getMessageById(...) to fetch a known message.
  * 		3.2 getMessagesBySender(...) to get all messages sent by a particular user.
  * 		3.3 getMessagesByRecipient(...) to get all messages set to be received by a particular user.
  * In all cases, you can set removeFromMailbox = true to delete the messages after retrieval.
+ * 4. Wait for messages to arrive for a recipient using awaitMessages(...)
+ * 5. Once a client has left, let go of its inbox using forgetClient(...)
+ * 
+ * Messages are also indexed per recipient in arrival order, so that fetching a user's
+ * messages only costs as much as the number of messages waiting for that user.
+ * A matching index of message IDs per sender keeps getMessagesBySender(...) just as cheap.
+ * A sender's index is dropped as soon as it empties; an inbox is dropped once its client has left,
+ * or its messages have expired, and nothing is waiting in it.
+ * Removal is claimed atomically against the store, so every message is handed out at most once
+ * even when several threads retrieve for the same recipient at the same time.
+ * 
+ * Quotas (optional):
+ * Limit the number and total size of the messages waiting for any one recipient using
+ * setInboxQuota(...); addMessage(...) then turns away messages for full inboxes.
+ * Messages handed out but not delivered after all go back using restoreMessages(...), which never does.
+ * 
+ * Expiry (optional):
+ * 1. Set a time-to-live for messages at startup using setMessageTTL(...)
+ * 2. Periodically remove the messages that have outlived it using expireMessages()
+ * 3. Track how many messages have expired using getExpiredCount()
+ * 
+ * Storage engine (optional):
+ * Messages are kept on the heap by default. To keep them off the heap instead (eg. in
+ * memory-mapped segment files), hand a different MessageStore to setMessageStore(...) at startup.
+ * 
+ * Persistence (optional):
+ * 1. Attach a write-ahead log at startup using setWriteAheadLog(...)
+ * 2. Restore the messages from the latest snapshot and the log using recover(...)
+ * 3. Periodically save a snapshot using takeSnapshot(...), which also discards the log behind it.
+ * Every addition and removal is then logged, and addMessage(...) only reports success
+ * once the message is durable under the log's sync policy.
  */
 package components.messages;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.LongPredicate;
+
+import components.messages.persistence.MailboxSnapshot;
+import components.messages.persistence.WriteAheadLog;
+import components.messages.storage.HeapMessageStore;
+import components.messages.storage.MessageStore;
+import components.notices.Status;
+import components.utilities.IDGenerator;
+import components.utilities.Log;
 
 public class Mailbox {
 	// Store for the messages
-	private Map<Long, ChatMessage> messages;
+	private volatile MessageStore messages;
+
+	// Index of messages waiting for each recipient, in the order they were deposited
+	private ConcurrentHashMap<Long, Inbox> inboxes;
+
+	// Index of the IDs of messages still stored for each sender, in ID (ie. deposit) order
+	private ConcurrentHashMap<Long, Set<Long>> outboxes;
+
+	// Durable log of all changes, if persistence is enabled
+	private volatile WriteAheadLog writeAheadLog = null;
+
+	// Held shared by deposits from logging until storing, and exclusively by a snapshot while it moves
+	// the log to a new segment, so that every deposit logged to the old segments is stored before the
+	// snapshot reads the store (new deposits only wait for the switch, not for the snapshot itself)
+	private final ReentrantReadWriteLock depositLock = new ReentrantReadWriteLock();
+
+	// Limits on the messages waiting for each recipient (0 for no limit)
+	private volatile int maxInboxMessages = 0;
+	private volatile long maxInboxBytes = 0;
+
+	// Deadlines of the stored messages, if they expire
+	private volatile ExpiryIndex expiryIndex = null;
+	private volatile long messageTTLMillis = 0;
+	private final AtomicLong expiredCount = new AtomicLong();
+
+	// Smallest batch of restored messages worth indexing on a separate thread
+	private static final int REBUILD_BATCH_SIZE = 4096;
+
+	// Orders messages by recipient, and then by ID (ie. deposit order)
+	private static final Comparator<ChatMessage> BY_RECIPIENT = new Comparator<ChatMessage>() {
+		@Override
+		public int compare(ChatMessage first, ChatMessage second) {
+			int order = Long.compare(first.getRecipientID(), second.getRecipientID());
+			return order != 0 ? order : Long.compare(first.getID(), second.getID());
+		}
+	};
+
+	// Tells whether a message is still in the store, for pruning the inboxes
+	private final LongPredicate isStored = new LongPredicate() {
+		@Override
+		public boolean test(long messageID) {
+			return messages.get(messageID) != null;
+		}
+	};
 
 	// Singleton instance of the mailbox
-	private static Mailbox instance = null;
+	// (created eagerly, so that concurrent callers can never end up with separate mailboxes)
+	private static final Mailbox instance = new Mailbox();
 
-	// Initialize the mailbox object
-	private Mailbox() {
+	// Initialize the mailbox object (package-private, so that tests can have a mailbox of their own)
+	Mailbox() {
+		messages = new HeapMessageStore();
 		// Use concurrent hash map for inbuilt concurrency measures
-		messages = new ConcurrentHashMap<Long, ChatMessage>();
+		inboxes = new ConcurrentHashMap<Long, Inbox>();
+		outboxes = new ConcurrentHashMap<Long, Set<Long>>();
 	}
 
 	/**
@@ -37,20 +137,416 @@ public class Mailbox {
 	 * @return The singleton, static instance of the mailbox.
 	 */
 	public static Mailbox getInstance() {
-		// Create a new instance if none exists, otherwise use the existing one
-		if (instance == null)
-			instance = new Mailbox();
 		return instance;
 	}
 
+	/**
+	 * Limit the messages that may wait for any one recipient.
+	 * 
+	 * @param maxMessages
+	 *            The most messages an inbox may hold, or 0 for no limit.
+	 * @param maxBytes
+	 *            The most bytes of message content an inbox may hold, or 0 for no limit.
+	 */
+	public void setInboxQuota(int maxMessages, long maxBytes) {
+		maxInboxMessages = maxMessages;
+		maxInboxBytes = maxBytes;
+	}
+
+	/**
+	 * Set how long messages are kept before they expire, counted from their receive date.
+	 * Call this once at startup, before recover(...) and before any messages are added.
+	 * 
+	 * @param ttlMillis
+	 *            The time-to-live in milliseconds, or 0 to keep messages until they are retrieved.
+	 */
+	public void setMessageTTL(long ttlMillis) {
+		// Aim for a few dozen buckets across the TTL, but no wider than a second
+		expiryIndex = ttlMillis > 0 ? new ExpiryIndex(Math.min(1000, ttlMillis / 32)) : null;
+		messageTTLMillis = ttlMillis;
+	}
+
+	/**
+	 * Returns how often expireMessages() should run to keep expiry on time.
+	 * 
+	 * @return The interval in milliseconds, or 0 if messages never expire.
+	 */
+	public long getExpiryInterval() {
+		ExpiryIndex index = expiryIndex;
+		return index != null ? index.getBucketMillis() : 0;
+	}
+
+	/**
+	 * Remove all messages that have outlived the time-to-live, along with their IDs in the inboxes.
+	 * Costs as much as the number of messages that expired (or were retrieved) since the last call,
+	 * plus an occasional rebuild of an inbox that is mostly made up of expired IDs.
+	 * 
+	 * @return The number of messages removed.
+	 */
+	public int expireMessages() {
+		ExpiryIndex index = expiryIndex;
+		if (index == null)
+			return 0;
+
+		List<ChatMessage> expiredMessages = new ArrayList<ChatMessage>();
+		Set<Long> recipientIDs = new HashSet<Long>();
+		for (long[] messageIDs : index.takeExpired(System.currentTimeMillis()))
+			for (long messageID : messageIDs) {
+				// Skip messages that were already retrieved
+				ChatMessage message = removeMessage(messageID);
+				if (message != null) {
+					expiredMessages.add(message);
+					recipientIDs.add(Long.valueOf(message.getRecipientID()));
+				}
+			}
+		logRemovals(expiredMessages);
+
+		// Their IDs would otherwise stay in the inboxes of recipients who never retrieve,
+		// and the inboxes themselves once emptied
+		for (Long recipientID : recipientIDs) {
+			Inbox inbox = inboxes.get(recipientID);
+			if (inbox == null)
+				continue;
+			inbox.prune(isStored);
+			if (inbox.getStoredMessages() == 0)
+				removeInbox(recipientID);
+		}
+
+		expiredCount.addAndGet(expiredMessages.size());
+		if (!expiredMessages.isEmpty())
+			Log.debug("Mailbox", "expireMessages", "Expired " + expiredMessages.size() + " messages");
+		return expiredMessages.size();
+	}
+
+	/**
+	 * Returns the number of messages currently stored, across all inboxes.
+	 * 
+	 * @return The stored message count.
+	 */
+	public int getMessageCount() {
+		return messages.size();
+	}
+
+	/**
+	 * Returns the total number of messages removed because they expired.
+	 * 
+	 * @return The expired message count since startup.
+	 */
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	/**
+	 * Replace the storage engine for the messages.
+	 * Call this once at startup, before recover(...) and before any messages are added.
+	 * 
+	 * @param messageStore
+	 *            The engine to keep the messages in.
+	 */
+	public void setMessageStore(MessageStore messageStore) {
+		this.messages = messageStore;
+	}
+
+	/**
+	 * Attach a write-ahead log, so that all further changes are persisted.
+	 * Call this once at startup, before recover(...) and before any messages are added.
+	 * 
+	 * @param writeAheadLog
+	 *            The log to record changes in, or null to keep messages in memory only.
+	 */
+	public void setWriteAheadLog(WriteAheadLog writeAheadLog) {
+		this.writeAheadLog = writeAheadLog;
+	}
+
+	/**
+	 * Restore the messages from the latest snapshot and the write-ahead log behind it.
+	 * The indexes are rebuilt in parallel on the common fork-join pool.
+	 * The supplied ID generator is moved past every message and client ID found,
+	 * so that newly generated IDs never clash with restored ones.
+	 * 
+	 * @param idGenerator
+	 *            The generator for the "message" and "client" sequences.
+	 * @return The number of messages restored.
+	 * @throws IOException
+	 *             If the log could not be read, or segments of it are missing.
+	 */
+	public int recover(IDGenerator idGenerator) throws IOException {
+		if (writeAheadLog == null)
+			return 0;
+
+		long largestMessageID = idGenerator.getCurrentInSequence("message");
+		long largestClientID = idGenerator.getCurrentInSequence("client");
+
+		// Start from the latest snapshot, if there is one
+		final Map<Long, ChatMessage> survivors;
+		long firstSegment = 0;
+		MailboxSnapshot snapshot = MailboxSnapshot.readLatest(writeAheadLog.getDirectory(),
+				writeAheadLog.getFirstSegment());
+		if (snapshot != null) {
+			survivors = new HashMap<Long, ChatMessage>(snapshot.getMessages().size() * 2);
+			for (ChatMessage message : snapshot.getMessages())
+				survivors.put(Long.valueOf(message.getID()), message);
+			firstSegment = snapshot.getWalSegment();
+			largestMessageID = Math.max(largestMessageID, snapshot.getMessageSequence());
+			largestClientID = Math.max(largestClientID, snapshot.getClientSequence());
+		} else
+			survivors = new HashMap<Long, ChatMessage>();
+
+		// Replay the log behind it, keeping only the messages that were never removed
+		writeAheadLog.replay(firstSegment, new WriteAheadLog.ReplayHandler() {
+			@Override
+			public void added(ChatMessage message) {
+				survivors.put(Long.valueOf(message.getID()), message);
+			}
+
+			@Override
+			public void removed(long messageID) {
+				survivors.remove(Long.valueOf(messageID));
+			}
+		});
+
+		// Group the messages by recipient, in their original order
+		ChatMessage[] restored = survivors.values().toArray(new ChatMessage[survivors.size()]);
+		Arrays.parallelSort(restored, BY_RECIPIENT);
+
+		// Find where each recipient's messages start
+		int[] runStarts = new int[restored.length + 1];
+		int runCount = 0;
+		for (int i = 0; i < restored.length; i++) {
+			if (i == 0 || restored[i].getRecipientID() != restored[i - 1].getRecipientID())
+				runStarts[runCount++] = i;
+			largestMessageID = Math.max(largestMessageID, restored[i].getID());
+			largestClientID = Math.max(largestClientID,
+					Math.max(restored[i].getSenderID(), restored[i].getRecipientID()));
+		}
+		runStarts[runCount] = restored.length;
+
+		// Index them again, a batch of recipients per task
+		ForkJoinPool.commonPool().invoke(new RebuildTask(restored, runStarts, 0, runCount));
+
+		idGenerator.getSequence("message").advanceTo(largestMessageID);
+		idGenerator.getSequence("client").advanceTo(largestClientID);
+
+		Log.debug("Mailbox", "recover", "Restored " + restored.length + " messages");
+		return restored.length;
+	}
+
+	/**
+	 * Save a snapshot of the mailbox and the ID sequences, then discard the log behind it.
+	 * Deposits and retrievals carry on while the snapshot is written; only deposits that
+	 * were already being logged when it started are waited for.
+	 * 
+	 * @param idGenerator
+	 *            The generator for the "message" and "client" sequences.
+	 * @return The number of messages saved.
+	 * @throws IOException
+	 *             If the snapshot could not be written.
+	 */
+	public synchronized long takeSnapshot(IDGenerator idGenerator) throws IOException {
+		WriteAheadLog log = writeAheadLog;
+		if (log == null)
+			return 0;
+
+		// Send all further changes to a new segment, once the deposits logged to the old ones are stored
+		long segment;
+		depositLock.writeLock().lock();
+		try {
+			segment = log.roll();
+		} finally {
+			depositLock.writeLock().unlock();
+		}
+
+		// Anything missed by the (weakly consistent) iteration is in the new segment
+		long messageCount = MailboxSnapshot.write(log.getDirectory(), segment,
+				idGenerator.getCurrentInSequence("message"), idGenerator.getCurrentInSequence("client"), messages
+						.iterator());
+
+		// The snapshot is durable (write(...) throws otherwise), so everything behind it can go
+		log.deleteSegmentsBefore(segment);
+		MailboxSnapshot.deleteBefore(log.getDirectory(), segment);
+		return messageCount;
+	}
+
 	/**
 	 * Insert a message into the mailbox.
+	 * If a write-ahead log is attached, the message is only stored once it is durable.
 	 * 
 	 * @param message
 	 *            The ChatMessage object to be inserted.
+	 * @return Status.SUCCESS if the message was stored, Status.INBOX_FULL if the recipient's
+	 *         inbox is over its quota, or Status.STORAGE_FAILED if it could not be persisted or stored.
+	 */
+	public short addMessage(ChatMessage message) {
+		// Turn away a message the store could never hold, before it is logged
+		if (!messages.fits(message))
+			return Status.STORAGE_FAILED;
+
+		// Make room in the recipient's inbox
+		long size = getSize(message);
+		Inbox inbox = reserveInbox(message.getRecipientID(), size, maxInboxMessages, maxInboxBytes);
+		if (inbox == null)
+			return Status.INBOX_FULL;
+
+		WriteAheadLog log = writeAheadLog;
+		if (log == null) {
+			if (storeMessage(message))
+				return Status.SUCCESS;
+
+		} else {
+			// Persist the message before anyone can see it
+			depositLock.readLock().lock();
+			try {
+				if (log.awaitDurable(log.logAdded(message))) {
+					if (storeMessage(message))
+						return Status.SUCCESS;
+					// Logged but refused by the store; cancel the record, or recovery would bring the message back
+					logRemovals(Collections.singletonList(message));
+				}
+
+			} catch (IOException e) {
+				Log.error("Mailbox", "addMessage", "Could not log the message", e);
+
+			} finally {
+				depositLock.readLock().unlock();
+			}
+		}
+
+		// Not stored after all
+		inbox.release(size);
+		return Status.STORAGE_FAILED;
+	}
+
+	/**
+	 * Insert several messages into the mailbox, as addMessage(...) would one by one.
+	 * If a write-ahead log is attached, all the messages are logged in one write and
+	 * waited for together, so the whole batch pays for a single durable commit.
+	 * 
+	 * @param batch
+	 *            The ChatMessage objects to be inserted.
+	 * @return The status of each message, in the same order, as for addMessage(...).
 	 */
-	public void addMessage(ChatMessage message) {
-		messages.put(new Long(message.getID()), message);
+	public short[] addMessages(List<ChatMessage> batch) {
+		return addMessages(batch, maxInboxMessages, maxInboxBytes);
+	}
+
+	/**
+	 * Put messages taken out of the mailbox back in, eg. after failing to deliver them.
+	 * Like restored messages, they count towards the inbox quotas but are never turned away,
+	 * as they were already accepted once. They are logged again, since their removal was.
+	 * 
+	 * @param batch
+	 *            The ChatMessage objects to be put back, with their IDs and receive dates.
+	 * @return The status of each message, in the same order: Status.SUCCESS, or Status.STORAGE_FAILED
+	 *         if it could not be persisted.
+	 */
+	public short[] restoreMessages(List<ChatMessage> batch) {
+		return addMessages(batch, 0, 0);
+	}
+
+	// Insert several messages, within the given inbox limits (0 for none)
+	private short[] addMessages(List<ChatMessage> batch, int maxMessages, long maxBytes) {
+		short[] statuses = new short[batch.size()];
+
+		// Make room in the recipients' inboxes, for the messages the store can hold
+		List<ChatMessage> accepted = new ArrayList<ChatMessage>(batch.size());
+		for (int i = 0; i < statuses.length; i++) {
+			ChatMessage message = batch.get(i);
+			if (!messages.fits(message))
+				statuses[i] = Status.STORAGE_FAILED;
+			else if (reserveInbox(message.getRecipientID(), getSize(message), maxMessages, maxBytes) != null) {
+				accepted.add(message);
+				statuses[i] = Status.SUCCESS;
+			} else
+				statuses[i] = Status.INBOX_FULL;
+		}
+
+		WriteAheadLog log = writeAheadLog;
+		if (log == null || accepted.isEmpty()) {
+			storeAccepted(batch, statuses);
+			return statuses;
+		}
+
+		// Persist the messages before anyone can see them
+		depositLock.readLock().lock();
+		try {
+			if (log.awaitDurable(log.logAdded(accepted))) {
+				// Cancel the records of any refused by the store, or recovery would bring them back
+				logRemovals(storeAccepted(batch, statuses));
+				return statuses;
+			}
+
+		} catch (IOException e) {
+			Log.error("Mailbox", "addMessages", "Could not log the messages", e);
+
+		} finally {
+			depositLock.readLock().unlock();
+		}
+
+		// Not stored after all
+		for (int i = 0; i < statuses.length; i++)
+			if (statuses[i] == Status.SUCCESS) {
+				ChatMessage message = batch.get(i);
+				getInbox(message.getRecipientID()).release(getSize(message));
+				statuses[i] = Status.STORAGE_FAILED;
+			}
+		return statuses;
+	}
+
+	// Store the messages of the batch marked Status.SUCCESS, marking any the store refuses as failed
+	// and giving back their inbox space; returns the refused messages
+	private List<ChatMessage> storeAccepted(List<ChatMessage> batch, short[] statuses) {
+		List<ChatMessage> refused = new ArrayList<ChatMessage>(0);
+		for (int i = 0; i < statuses.length; i++) {
+			ChatMessage message = batch.get(i);
+			if (statuses[i] == Status.SUCCESS && !storeMessage(message)) {
+				getInbox(message.getRecipientID()).release(getSize(message));
+				statuses[i] = Status.STORAGE_FAILED;
+				refused.add(message);
+			}
+		}
+		return refused;
+	}
+
+	/**
+	 * Returns the number of messages waiting for the specified recipient.
+	 * 
+	 * @param recipientID
+	 *            The client ID of the recipient.
+	 * @return The count of stored messages for the recipient.
+	 */
+	public int getInboxSize(long recipientID) {
+		Inbox inbox = inboxes.get(Long.valueOf(recipientID));
+		return inbox != null ? inbox.getStoredMessages() : 0;
+	}
+
+	/**
+	 * Wait for messages to arrive for the specified recipient, without holding a thread.
+	 * The returned future is completed on the thread depositing the next message, so any
+	 * work that follows (such as draining the inbox) should be moved to another thread.
+	 * Complete it yourself to stop waiting, eg. on a timeout.
+	 * 
+	 * @param recipientID
+	 *            The client ID of the recipient.
+	 * @return A future completed once the recipient has messages waiting (at once, if it already has).
+	 */
+	public CompletableFuture<Void> awaitMessages(long recipientID) {
+		CompletableFuture<Void> arrival = new CompletableFuture<Void>();
+		// The inbox may be removed meanwhile; wait on the one that replaces it
+		while (!getInbox(recipientID).addWaiter(arrival))
+			;
+		return arrival;
+	}
+
+	/**
+	 * Let go of the inbox of a client that has left (eg. disconnected, or whose session expired),
+	 * unless messages are still waiting in it or someone waits for them.
+	 * A later deposit for the same ID gets a fresh inbox.
+	 * 
+	 * @param clientID
+	 *            The ID of the client.
+	 */
+	public void forgetClient(long clientID) {
+		removeInbox(Long.valueOf(clientID));
 	}
 
 	/**
@@ -64,11 +560,16 @@ public class Mailbox {
 	 * @return The ChatMessage object representing the message and all associated details.
 	 */
 	public ChatMessage getMessageById(long messageID, boolean removeFromMailbox) {
-		ChatMessage message = null;
-		message = messages.get(new Long(messageID));
-		if (removeFromMailbox)
-			removeMessage(messageID);
-		return message;
+		if (removeFromMailbox) {
+			ChatMessage message = removeMessage(messageID);
+			if (message != null) {
+				List<ChatMessage> removedMessages = new ArrayList<ChatMessage>(1);
+				removedMessages.add(message);
+				logRemovals(removedMessages);
+			}
+			return message;
+		} else
+			return messages.get(messageID);
 	}
 
 	/**
@@ -85,13 +586,26 @@ public class Mailbox {
 			boolean removeFromMailbox) {
 		List<ChatMessage> filteredMessages = new ArrayList<ChatMessage>();
 
-		for (ChatMessage message : messages.values()) {
-			if (message.getSenderID() == senderID) {
-				filteredMessages.add(message);
-				if (removeFromMailbox)
-					removeMessage(message.getID());
+		// Nothing deposited by this sender yet
+		Set<Long> outbox = outboxes.get(Long.valueOf(senderID));
+		if (outbox == null)
+			return filteredMessages;
+
+		for (Long messageID : outbox) {
+			if (!removeFromMailbox) {
+				// Skip messages that are indexed but not stored just yet
+				ChatMessage message = messages.get(messageID.longValue());
+				if (message != null)
+					filteredMessages.add(message);
+			} else {
+				// Only return the message if this thread was the one to remove it
+				ChatMessage message = removeMessage(messageID.longValue());
+				if (message != null)
+					filteredMessages.add(message);
 			}
 		}
+		if (removeFromMailbox)
+			logRemovals(filteredMessages);
 		return filteredMessages;
 	}
 
@@ -107,24 +621,241 @@ public class Mailbox {
 	 */
 	public List<ChatMessage> getMessagesByRecipient(long recipientID,
 			boolean removeFromMailbox) {
+		if (removeFromMailbox)
+			return drainMessages(recipientID);
+
 		List<ChatMessage> filteredMessages = new ArrayList<ChatMessage>();
-		for (ChatMessage message : messages.values()) {
-			if (message.getRecipientID() == recipientID) {
+
+		// Nothing deposited for this recipient yet
+		Inbox inbox = inboxes.get(Long.valueOf(recipientID));
+		if (inbox == null)
+			return filteredMessages;
+
+		for (long messageID : inbox.peek()) {
+			// Skip messages that were already removed by other means
+			ChatMessage message = messages.get(messageID);
+			if (message != null)
 				filteredMessages.add(message);
-				if (removeFromMailbox)
-					removeMessage(message.getID());
-			}
 		}
 		return filteredMessages;
 	}
 
-	// Removes the message from the mailbox.
-	private boolean removeMessage(long messageID) {
-		Long messageIDAsObject = new Long(messageID);
-		if (messages.containsKey(messageIDAsObject)) {
-			messages.remove(messageIDAsObject);
-			return true;
-		} else
+	/**
+	 * Removes and returns all messages waiting for the specified recipient.
+	 * The pending batch is detached atomically, so concurrent callers for the
+	 * same recipient never receive the same message twice, and messages deposited
+	 * while draining are left in place for the next call.
+	 * 
+	 * @param recipientID
+	 *            The client ID of the recipient for the message(s).
+	 * @return A list of the recipient's messages in deposit order.
+	 */
+	public List<ChatMessage> drainMessages(long recipientID) {
+		// Nothing deposited for this recipient yet
+		Inbox inbox = inboxes.get(Long.valueOf(recipientID));
+		if (inbox == null || inbox.isEmpty())
+			return new ArrayList<ChatMessage>(0);
+
+		long[] messageIDs = inbox.drain();
+		List<ChatMessage> drainedMessages = new ArrayList<ChatMessage>(messageIDs.length);
+		for (long messageID : messageIDs) {
+			// Skip messages that were already removed by other means
+			ChatMessage message = removeMessage(messageID);
+			if (message != null)
+				drainedMessages.add(message);
+		}
+		logRemovals(drainedMessages);
+		return drainedMessages;
+	}
+
+	// Add the message to the store and all indexes.
+	// Returns false, leaving no index entry behind, if the store refused the message (eg. out of space).
+	private boolean storeMessage(ChatMessage message) {
+		// Index by sender first, so that a removal can never overtake the index entry
+		addToOutbox(message);
+		try {
+			messages.put(message);
+		} catch (RuntimeException e) {
+			Log.error("Mailbox", "storeMessage", "Could not store message " + message.getID(), e);
+			removeFromOutbox(message);
 			return false;
+		}
+		// Queue it up in the recipient's inbox
+		getInbox(message.getRecipientID()).add(message.getID());
+		scheduleExpiry(message);
+		return true;
+	}
+
+	// Register the message's deadline, if messages expire.
+	private void scheduleExpiry(ChatMessage message) {
+		ExpiryIndex index = expiryIndex;
+		if (index != null) {
+			long receiveMillis = message.getReceiveDate() != null ? message.getReceiveDate().getTimeInMillis()
+					: System.currentTimeMillis();
+			index.schedule(message.getID(), receiveMillis + messageTTLMillis);
+		}
+	}
+
+	// Indexes a range of restored messages, grouped by recipient, splitting the work between threads.
+	private class RebuildTask extends RecursiveAction {
+		private static final long serialVersionUID = 4527813860945151823L;
+
+		private final ChatMessage[] restored;
+		private final int[] runStarts;
+		private final int firstRun;
+		private final int lastRun;
+
+		// Covers the recipients (runs of messages) from firstRun up to, but excluding, lastRun
+		RebuildTask(ChatMessage[] restored, int[] runStarts, int firstRun, int lastRun) {
+			this.restored = restored;
+			this.runStarts = runStarts;
+			this.firstRun = firstRun;
+			this.lastRun = lastRun;
+		}
+
+		@Override
+		protected void compute() {
+			// Split while there is more than one recipient and enough messages to share out
+			int messageCount = runStarts[lastRun] - runStarts[firstRun];
+			if (lastRun - firstRun > 1 && messageCount > REBUILD_BATCH_SIZE) {
+				int middleRun = (firstRun + lastRun) >>> 1;
+				invokeAll(new RebuildTask(restored, runStarts, firstRun, middleRun), new RebuildTask(restored,
+						runStarts, middleRun, lastRun));
+				return;
+			}
+
+			for (int run = firstRun; run < lastRun; run++) {
+				int start = runStarts[run];
+				int end = runStarts[run + 1];
+				long[] messageIDs = new long[end - start];
+				for (int i = start; i < end; i++) {
+					ChatMessage message = restored[i];
+					addToOutbox(message);
+					messages.put(message);
+					scheduleExpiry(message);
+					messageIDs[i - start] = message.getID();
+				}
+
+				// Restored messages count towards the quota, but are never turned away
+				Inbox inbox = getInbox(restored[start].getRecipientID());
+				for (int i = start; i < end; i++)
+					inbox.reserve(getSize(restored[i]), 0, 0);
+				inbox.addAll(messageIDs);
+			}
+		}
+	}
+
+	// Record the removals in the write-ahead log, if any, and wait for them to be durable.
+	// A failure here is only logged: the messages are already gone from memory, and at worst
+	// they are delivered again after a restart.
+	private void logRemovals(List<ChatMessage> removedMessages) {
+		WriteAheadLog log = writeAheadLog;
+		if (log != null && !removedMessages.isEmpty()) {
+			try {
+				if (!log.awaitDurable(log.logRemoved(removedMessages)))
+					Log.error("Mailbox", "logRemovals", "Removals may not be durable", null);
+			} catch (IOException e) {
+				Log.error("Mailbox", "logRemovals", "Could not log the removals", e);
+			}
+		}
+	}
+
+	// Returns the size of the message content in bytes (as UTF-8), for the inbox quotas.
+	private static long getSize(ChatMessage message) {
+		String content = message.getMessage();
+		if (content == null)
+			return 0;
+
+		long size = 0;
+		for (int i = 0; i < content.length(); i++) {
+			char character = content.charAt(i);
+			if (character < 0x80)
+				size += 1;
+			else if (character < 0x800)
+				size += 2;
+			else if (Character.isHighSurrogate(character) && i + 1 < content.length()
+					&& Character.isLowSurrogate(content.charAt(i + 1))) {
+				// Surrogate pairs take four bytes together
+				size += 4;
+				i++;
+			} else if (Character.isSurrogate(character))
+				// Unpaired surrogates are encoded as a single '?'
+				size += 1;
+			else
+				size += 3;
+		}
+		return size;
+	}
+
+	// Returns the inbox for the recipient, creating one if needed.
+	private Inbox getInbox(long recipientID) {
+		Long recipientIDAsObject = Long.valueOf(recipientID);
+		Inbox inbox = inboxes.get(recipientIDAsObject);
+		if (inbox == null) {
+			Inbox newInbox = new Inbox();
+			inbox = inboxes.putIfAbsent(recipientIDAsObject, newInbox);
+			if (inbox == null)
+				inbox = newInbox;
+		}
+		return inbox;
+	}
+
+	// Reserves room for a message in the recipient's inbox, and returns the inbox (null if it is full).
+	private Inbox reserveInbox(long recipientID, long size, int maxMessages, long maxBytes) {
+		while (true) {
+			Inbox inbox = getInbox(recipientID);
+			if (inbox.reserve(size, maxMessages, maxBytes))
+				return inbox;
+			if (!inbox.isRetired())
+				return null;
+			// Removed meanwhile; try the one that replaces it
+		}
+	}
+
+	// Removes the recipient's inbox, if it can be retired.
+	private void removeInbox(Long recipientID) {
+		Inbox inbox = inboxes.get(recipientID);
+		if (inbox != null && inbox.retire())
+			inboxes.remove(recipientID, inbox);
+	}
+
+	// Adds the message to its sender's index of stored message IDs, creating the index if needed.
+	// Done atomically per sender, so that it cannot race with the index being dropped.
+	private void addToOutbox(ChatMessage message) {
+		final Long messageID = Long.valueOf(message.getID());
+		outboxes.compute(Long.valueOf(message.getSenderID()), new BiFunction<Long, Set<Long>, Set<Long>>() {
+			@Override
+			public Set<Long> apply(Long senderID, Set<Long> outbox) {
+				if (outbox == null)
+					outbox = new ConcurrentSkipListSet<Long>();
+				outbox.add(messageID);
+				return outbox;
+			}
+		});
+	}
+
+	// Removes the message from its sender's index, dropping the index once it is empty.
+	private void removeFromOutbox(ChatMessage message) {
+		final Long messageID = Long.valueOf(message.getID());
+		outboxes.computeIfPresent(Long.valueOf(message.getSenderID()), new BiFunction<Long, Set<Long>, Set<Long>>() {
+			@Override
+			public Set<Long> apply(Long senderID, Set<Long> outbox) {
+				outbox.remove(messageID);
+				return outbox.isEmpty() ? null : outbox;
+			}
+		});
+	}
+
+	// Removes the message from the mailbox, along with its sender index entry.
+	// Returns the removed message, or null if it had already been removed.
+	private ChatMessage removeMessage(long messageID) {
+		ChatMessage message = messages.remove(messageID);
+		if (message != null) {
+			removeFromOutbox(message);
+			Inbox inbox = inboxes.get(Long.valueOf(message.getRecipientID()));
+			if (inbox != null)
+				inbox.releaseStored(getSize(message));
+		}
+		return message;
 	}
 }
@@ -0,0 +1,314 @@
+/* Point-in-time copy of all stored messages and the ID sequences, written next to the write-ahead log.
+ * A snapshot records the first log segment that is not covered by it, so a restart only
+ * has to load the latest snapshot and replay the segments from that one onwards.
+ * Snapshots are written to a temporary file and renamed into place once complete,
+ * so a crash while writing never leaves a half-written snapshot behind. The directory is
+ * forced to disk after the rename, so the log segments behind a snapshot may only be
+ * deleted once write(...) has returned.
+ *
+ * Usage:
+ * 1. Save the mailbox using write(...)
+ * 2. Load the most recent complete snapshot using readLatest(...)
+ * 3. Remove snapshots that have been superseded using deleteBefore(...)
+ */
+package components.messages.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import components.messages.ChatMessage;
+import components.utilities.Log;
+
+public class MailboxSnapshot {
+
+	// File format markers
+	private static final int MAGIC = 0x4D424F58; // "MBOX"
+	private static final byte VERSION = 1;
+	private static final byte MORE_MESSAGES = 1;
+	private static final byte END_OF_MESSAGES = 0;
+
+	// Naming of the snapshot files
+	private static final String SNAPSHOT_PREFIX = "mailbox-";
+	private static final String SNAPSHOT_SUFFIX = ".snapshot";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	// Size of the read/write buffers
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final long walSegment;
+	private final long messageSequence;
+	private final long clientSequence;
+	private final List<ChatMessage> messages;
+
+	// Create a loaded snapshot
+	private MailboxSnapshot(long walSegment, long messageSequence, long clientSequence, List<ChatMessage> messages) {
+		this.walSegment = walSegment;
+		this.messageSequence = messageSequence;
+		this.clientSequence = clientSequence;
+		this.messages = messages;
+	}
+
+	/**
+	 * Returns the first write-ahead log segment that is not covered by this snapshot.
+	 *
+	 * @return The segment to start replaying from.
+	 */
+	public long getWalSegment() {
+		return walSegment;
+	}
+
+	/**
+	 * Returns the value of the "message" ID sequence when the snapshot was taken.
+	 *
+	 * @return The current message ID at the time.
+	 */
+	public long getMessageSequence() {
+		return messageSequence;
+	}
+
+	/**
+	 * Returns the value of the "client" ID sequence when the snapshot was taken.
+	 *
+	 * @return The current client ID at the time.
+	 */
+	public long getClientSequence() {
+		return clientSequence;
+	}
+
+	/**
+	 * Returns the messages held in the snapshot.
+	 *
+	 * @return The stored messages, in no particular order.
+	 */
+	public List<ChatMessage> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * Write a snapshot and make it durable, along with its place in the directory.
+	 *
+	 * @param directory
+	 *            The directory shared with the write-ahead log.
+	 * @param walSegment
+	 *            The first log segment not covered by this snapshot.
+	 * @param messageSequence
+	 *            The current value of the "message" ID sequence.
+	 * @param clientSequence
+	 *            The current value of the "client" ID sequence.
+	 * @param messages
+	 *            The messages to save. The iterator may be weakly consistent; changes it misses
+	 *            must be recorded in segments from walSegment onwards.
+	 * @return The number of messages written.
+	 * @throws IOException
+	 *             If the snapshot could not be written.
+	 */
+	public static long write(File directory, long walSegment, long messageSequence, long clientSequence,
+			Iterator<ChatMessage> messages) throws IOException {
+		File snapshotFile = getSnapshotFile(directory, walSegment);
+		File temporaryFile = new File(directory, snapshotFile.getName() + TEMPORARY_SUFFIX);
+		long messageCount = 0;
+
+		FileOutputStream fileOut = new FileOutputStream(temporaryFile);
+		try {
+			CheckedOutputStream checkedOut = new CheckedOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE),
+					new CRC32());
+			DataOutputStream out = new DataOutputStream(checkedOut);
+
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(walSegment);
+			out.writeLong(messageSequence);
+			out.writeLong(clientSequence);
+
+			while (messages.hasNext()) {
+				ChatMessage message = messages.next();
+				out.writeByte(MORE_MESSAGES);
+				out.writeLong(message.getID());
+				out.writeLong(message.getSenderID());
+				out.writeLong(message.getRecipientID());
+				out.writeLong(message.getReceiveDate() != null ? message.getReceiveDate().getTimeInMillis() : -1);
+				if (message.getMessage() != null) {
+					byte[] content = message.getMessage().getBytes(StandardCharsets.UTF_8);
+					out.writeInt(content.length);
+					out.write(content);
+				} else
+					out.writeInt(-1);
+				messageCount++;
+			}
+			out.writeByte(END_OF_MESSAGES);
+
+			// Close with the checksum of everything before it
+			out.flush();
+			long checksum = checkedOut.getChecksum().getValue();
+			out.writeLong(checksum);
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+
+		// Put the finished snapshot in place
+		if (!temporaryFile.renameTo(snapshotFile)) {
+			temporaryFile.delete();
+			throw new IOException("Could not move the snapshot into place: " + snapshotFile);
+		}
+		// Without this, a crash could undo the rename but not the deletion of the segments it covers
+		syncDirectory(directory);
+
+		Log.debug("MailboxSnapshot", "write", "Saved " + messageCount + " messages to " + snapshotFile);
+		return messageCount;
+	}
+
+	/**
+	 * Load the most recent complete snapshot in the directory.
+	 * Snapshots that turn out to be corrupt are skipped in favour of older ones, as long as
+	 * the log still holds every segment from the chosen snapshot onwards.
+	 *
+	 * @param directory
+	 *            The directory shared with the write-ahead log.
+	 * @param firstLogSegment
+	 *            The oldest segment still in the log (see WriteAheadLog.getFirstSegment()).
+	 * @return The loaded snapshot, or null if there is none and the log is complete from its first segment.
+	 * @throws IOException
+	 *             If the log segments behind the chosen snapshot (or behind no snapshot at all) have been deleted,
+	 *             so that recovering from it would silently bring back an older state.
+	 */
+	public static MailboxSnapshot readLatest(File directory, long firstLogSegment) throws IOException {
+		MailboxSnapshot latest = null;
+		List<Long> segments = listSnapshots(directory);
+		for (int i = segments.size() - 1; i >= 0 && latest == null; i--) {
+			File snapshotFile = getSnapshotFile(directory, segments.get(i).longValue());
+			try {
+				latest = read(snapshotFile);
+			} catch (IOException e) {
+				Log.error("MailboxSnapshot", "readLatest", "Skipping unreadable snapshot " + snapshotFile, e);
+			}
+		}
+
+		// Segments are only ever deleted behind a durable snapshot, so a gap means that snapshot was lost
+		long neededSegment = latest != null ? latest.getWalSegment() : 1;
+		if (neededSegment < firstLogSegment)
+			throw new IOException("The log segments from " + neededSegment + " to " + (firstLogSegment - 1)
+					+ " are missing, and no snapshot covers them");
+		return latest;
+	}
+
+	/**
+	 * Delete all snapshots older than the one for the given log segment.
+	 *
+	 * @param directory
+	 *            The directory shared with the write-ahead log.
+	 * @param walSegment
+	 *            The log segment of the snapshot to keep.
+	 */
+	public static void deleteBefore(File directory, long walSegment) {
+		for (Long segment : listSnapshots(directory))
+			if (segment.longValue() < walSegment && !getSnapshotFile(directory, segment.longValue()).delete())
+				Log.error("MailboxSnapshot", "deleteBefore", "Could not delete the snapshot for segment " + segment,
+						null);
+	}
+
+	// Force the directory entries (eg. a rename) to disk
+	private static void syncDirectory(File directory) throws IOException {
+		FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	// Read a single snapshot file, verifying its checksum
+	private static MailboxSnapshot read(File snapshotFile) throws IOException {
+		CheckedInputStream checkedIn = new CheckedInputStream(new BufferedInputStream(new FileInputStream(
+				snapshotFile), BUFFER_SIZE), new CRC32());
+		DataInputStream in = new DataInputStream(checkedIn);
+		try {
+			if (in.readInt() != MAGIC || in.readByte() != VERSION)
+				throw new IOException("Not a mailbox snapshot");
+			long walSegment = in.readLong();
+			long messageSequence = in.readLong();
+			long clientSequence = in.readLong();
+
+			List<ChatMessage> messages = new ArrayList<ChatMessage>();
+			byte[] content = new byte[256];
+			// Cloning a calendar is much cheaper than looking up the default time zone and locale each time
+			Calendar calendarPrototype = Calendar.getInstance();
+			while (in.readByte() == MORE_MESSAGES) {
+				long id = in.readLong();
+				long senderID = in.readLong();
+				long recipientID = in.readLong();
+				long receiveMillis = in.readLong();
+				int contentLength = in.readInt();
+
+				String text = null;
+				if (contentLength >= 0) {
+					if (content.length < contentLength)
+						content = new byte[contentLength];
+					in.readFully(content, 0, contentLength);
+					text = new String(content, 0, contentLength, StandardCharsets.UTF_8);
+				}
+				Calendar receiveDate = null;
+				if (receiveMillis >= 0) {
+					receiveDate = (Calendar) calendarPrototype.clone();
+					receiveDate.setTimeInMillis(receiveMillis);
+				}
+				messages.add(new ChatMessage(id, senderID, recipientID, text, receiveDate));
+			}
+
+			long expectedChecksum = checkedIn.getChecksum().getValue();
+			if (in.readLong() != expectedChecksum)
+				throw new IOException("Snapshot checksum mismatch");
+
+			Log.debug("MailboxSnapshot", "read", "Loaded " + messages.size() + " messages from " + snapshotFile);
+			return new MailboxSnapshot(walSegment, messageSequence, clientSequence, messages);
+		} finally {
+			in.close();
+		}
+	}
+
+	// Returns the log segments of all snapshots in the directory, in ascending order
+	private static List<Long> listSnapshots(File directory) {
+		List<Long> segments = new ArrayList<Long>();
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX);
+			}
+		});
+		if (names != null)
+			for (String name : names) {
+				try {
+					segments.add(Long.valueOf(name.substring(SNAPSHOT_PREFIX.length(), name.length()
+							- SNAPSHOT_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					Log.error("MailboxSnapshot", "listSnapshots", "Ignoring unexpected file " + name, e);
+				}
+			}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	// Returns the snapshot file for the given log segment
+	private static File getSnapshotFile(File directory, long walSegment) {
+		return new File(directory, SNAPSHOT_PREFIX + walSegment + SNAPSHOT_SUFFIX);
+	}
+}
@@ -0,0 +1,589 @@
+/* Durable, append-only log of every change made to the mailbox.
+ * Each record is written as [length][CRC32][type][payload], so a torn write at the
+ * end of the file (eg. after a crash) is detected and discarded during replay. Only the
+ * latest segment can end in one, since every other was forced to disk before the next
+ * began; a bad record anywhere else fails the replay.
+ * The log is split into numbered segment files in a single directory, so that segments
+ * already covered by a snapshot can be deleted without touching the one being written.
+ *
+ * How soon a record reaches the disk is controlled by the SyncPolicy:
+ * 		EVERY_WRITE - every caller forces the file to disk before returning.
+ * 		GROUP - a background thread forces the file every few milliseconds, or as soon as
+ * 				enough records are pending; callers wait for the next group commit.
+ * 		OS - the file is never forced explicitly; the operating system flushes it when it sees fit.
+ *
+ * Usage:
+ * 1. Open the log using WriteAheadLog(...)
+ * 2. Rebuild the state recorded so far using replay(...)
+ * 3. Record changes using logAdded(...) and logRemoved(...)
+ * 4. Wait for a record to be durable under the chosen policy using awaitDurable(...)
+ * 5. Start a new segment using roll(), and drop the ones before it using deleteSegmentsBefore(...)
+ * 6. Release the file using close()
+ */
+package components.messages.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import components.messages.ChatMessage;
+import components.utilities.Log;
+
+public class WriteAheadLog {
+
+	// All supported policies for forcing records to disk
+	public static enum SyncPolicy {
+		EVERY_WRITE, GROUP, OS
+	};
+
+	/**
+	 * Receives the records found in the log during replay, in the order they were written.
+	 */
+	public static interface ReplayHandler {
+
+		/**
+		 * A message was added to the mailbox.
+		 *
+		 * @param message
+		 *            The message, as it was stored.
+		 */
+		public void added(ChatMessage message);
+
+		/**
+		 * A message was removed from the mailbox.
+		 *
+		 * @param messageID
+		 *            The ID of the removed message.
+		 */
+		public void removed(long messageID);
+	}
+
+	// Record types
+	private static final byte ADDED = 1;
+	private static final byte REMOVED = 2;
+
+	// Size of the record header: length and checksum
+	private static final int HEADER_LENGTH = 8;
+
+	// Naming of the segment files
+	private static final String SEGMENT_PREFIX = "mailbox-";
+	private static final String SEGMENT_SUFFIX = ".wal";
+
+	// The directory holding the segments, and the segment currently being written
+	private final File directory;
+	private FileChannel channel; // guarded by writeLock
+	private long segment; // guarded by writeLock
+
+	// Sync settings
+	private final SyncPolicy policy;
+	private final long groupCommitMillis;
+	private final int groupCommitRecords;
+
+	// Number of records written to the file so far (guarded by writeLock)
+	private final Object writeLock = new Object();
+	private long writtenSequence = 0;
+
+	// Number of records known to be on disk (guarded by syncLock)
+	private final Object syncLock = new Object();
+	private long durableSequence = 0;
+
+	// Set once the file can no longer be written or synced
+	private volatile boolean isFailed = false;
+	private volatile boolean isClosed = false;
+
+	// Background thread for group commits, if any
+	private Thread groupCommitter = null;
+
+	/**
+	 * Opens (or creates) the log in the given directory and prepares the latest segment for appending.
+	 *
+	 * @param directory
+	 *            The directory for the segment files; created if missing.
+	 * @param policy
+	 *            How soon written records must be forced to disk.
+	 * @param groupCommitMillis
+	 *            For SyncPolicy.GROUP, the longest a record waits before being forced to disk.
+	 * @param groupCommitRecords
+	 *            For SyncPolicy.GROUP, the number of pending records that triggers an early commit.
+	 * @throws IOException
+	 *             If the directory or segment cannot be opened.
+	 */
+	public WriteAheadLog(File directory, SyncPolicy policy, long groupCommitMillis, int groupCommitRecords)
+			throws IOException {
+		this.directory = directory;
+		this.policy = policy;
+		this.groupCommitMillis = Math.max(1, groupCommitMillis);
+		this.groupCommitRecords = Math.max(1, groupCommitRecords);
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create the log directory " + directory);
+
+		// Continue writing the latest segment, or start the first one
+		List<Long> segments = listSegments();
+		segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).longValue();
+		channel = openSegment(segment);
+
+		if (policy == SyncPolicy.GROUP) {
+			groupCommitter = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					commitGroups();
+				}
+			}, "WriteAheadLog-group-commit");
+			groupCommitter.setDaemon(true);
+			groupCommitter.start();
+		}
+	}
+
+	/**
+	 * Returns the policy used to force records to disk.
+	 *
+	 * @return The sync policy.
+	 */
+	public SyncPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns the directory holding the segment files.
+	 *
+	 * @return The log directory.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the oldest segment still in the directory.
+	 *
+	 * @return The number of the first segment.
+	 */
+	public long getFirstSegment() {
+		List<Long> segments = listSegments();
+		if (!segments.isEmpty())
+			return segments.get(0).longValue();
+		synchronized (writeLock) {
+			return segment;
+		}
+	}
+
+	/**
+	 * Returns the number of records written since the log was opened.
+	 *
+	 * @return The sequence number of the latest record.
+	 */
+	public long getWrittenSequence() {
+		synchronized (writeLock) {
+			return writtenSequence;
+		}
+	}
+
+	/**
+	 * Read the log from the given segment onwards, passing every intact record to the handler.
+	 * Reading stops at the first incomplete or corrupt record of each segment, and the
+	 * segment being written is cut back to that point so that new records follow on from
+	 * the last good one. Call this before logging anything new.
+	 *
+	 * @param fromSegment
+	 *            The first segment to read; earlier segments are skipped.
+	 * @param handler
+	 *            Receives the records in the order they were written.
+	 * @return The number of records replayed.
+	 * @throws IOException
+	 *             If a segment cannot be read, a segment between fromSegment and the latest one is missing,
+	 *             or a segment other than the latest one holds a bad record.
+	 */
+	public long replay(long fromSegment, ReplayHandler handler) throws IOException {
+		long recordCount = 0;
+		long previousSegment = -1;
+		for (Long segmentNumber : listSegments())
+			if (segmentNumber.longValue() >= fromSegment) {
+				// Carrying on past a missing segment would bring back messages it removed
+				if (previousSegment >= 0 && segmentNumber.longValue() != previousSegment + 1)
+					throw new IOException("Segment " + (previousSegment + 1) + " of the log is missing");
+				recordCount += replaySegment(segmentNumber.longValue(), handler);
+				previousSegment = segmentNumber.longValue();
+			}
+
+		Log.debug("WriteAheadLog", "replay", "Replayed " + recordCount + " records");
+		return recordCount;
+	}
+
+	/**
+	 * Close the current segment and direct all further records to a new one.
+	 * Everything written before the switch is forced to disk first.
+	 *
+	 * @return The number of the new segment; every earlier record lies in a lower-numbered segment.
+	 * @throws IOException
+	 *             If the new segment cannot be created.
+	 */
+	public long roll() throws IOException {
+		synchronized (syncLock) {
+			synchronized (writeLock) {
+				try {
+					channel.force(false);
+					channel.close();
+					segment++;
+					channel = openSegment(segment);
+				} catch (IOException e) {
+					isFailed = true;
+					syncLock.notifyAll();
+					throw e;
+				}
+				durableSequence = writtenSequence;
+				syncLock.notifyAll();
+				return segment;
+			}
+		}
+	}
+
+	/**
+	 * Delete all segments numbered below the given one.
+	 * Use this once the changes they hold have been captured by a durable snapshot,
+	 * ie. only after MailboxSnapshot.write(...) has returned.
+	 *
+	 * @param keptSegment
+	 *            The first segment to keep.
+	 */
+	public void deleteSegmentsBefore(long keptSegment) {
+		for (Long segmentNumber : listSegments())
+			if (segmentNumber.longValue() < keptSegment && !getSegmentFile(segmentNumber.longValue()).delete())
+				Log.error("WriteAheadLog", "deleteSegmentsBefore", "Could not delete segment " + segmentNumber, null);
+	}
+
+	// Replay a single segment, truncating a torn tail if it is the one being written; any other segment must be whole
+	private long replaySegment(long segmentNumber, ReplayHandler handler) throws IOException {
+		File file = getSegmentFile(segmentNumber);
+		long fileLength = file.length();
+		long recordCount = 0;
+		long validLength = 0;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			byte[] payload = new byte[256];
+			CRC32 checksum = new CRC32();
+			while (true) {
+				// Read the record header
+				int length;
+				int expectedChecksum;
+				try {
+					length = in.readInt();
+					expectedChecksum = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (length <= 0 || length > fileLength - validLength - HEADER_LENGTH)
+					break;
+
+				// Read and verify the record body
+				if (payload.length < length)
+					payload = new byte[length];
+				try {
+					in.readFully(payload, 0, length);
+				} catch (EOFException e) {
+					break;
+				}
+				checksum.reset();
+				checksum.update(payload, 0, length);
+				if ((int) checksum.getValue() != expectedChecksum)
+					break;
+
+				decode(ByteBuffer.wrap(payload, 0, length), handler);
+				validLength += HEADER_LENGTH + length;
+				recordCount++;
+			}
+		} finally {
+			in.close();
+		}
+
+		if (validLength < fileLength) {
+			// Skipping the rest would lose the changes after the bad record, yet carry on with later ones
+			if (segmentNumber != segment)
+				throw new IOException("Segment " + segmentNumber + " of the log holds a bad record at byte " + validLength);
+
+			Log.error("WriteAheadLog", "replay", "Discarding " + (fileLength - validLength)
+					+ " bytes of incomplete records in segment " + segmentNumber, null);
+
+			// Drop the torn record at the end of the segment being written
+			synchronized (writeLock) {
+				channel.truncate(validLength);
+				channel.position(validLength);
+			}
+		}
+		return recordCount;
+	}
+
+	// Returns the numbers of all segments in the directory, in ascending order
+	private List<Long> listSegments() {
+		List<Long> segments = new ArrayList<Long>();
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (names != null)
+			for (String name : names) {
+				try {
+					segments.add(Long.valueOf(name.substring(SEGMENT_PREFIX.length(),
+							name.length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					Log.error("WriteAheadLog", "listSegments", "Ignoring unexpected file " + name, e);
+				}
+			}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	// Returns the file for the given segment number
+	private File getSegmentFile(long segmentNumber) {
+		return new File(directory, SEGMENT_PREFIX + segmentNumber + SEGMENT_SUFFIX);
+	}
+
+	// Open a segment for appending
+	private FileChannel openSegment(long segmentNumber) throws IOException {
+		@SuppressWarnings("resource")
+		FileChannel segmentChannel = new RandomAccessFile(getSegmentFile(segmentNumber), "rw").getChannel();
+		segmentChannel.position(segmentChannel.size());
+		return segmentChannel;
+	}
+
+	/**
+	 * Record the addition of a message to the mailbox.
+	 *
+	 * @param message
+	 *            The message being stored; its ID must already be set.
+	 * @return The sequence number of the record, to be used with awaitDurable(...)
+	 * @throws IOException
+	 *             If the record could not be written.
+	 */
+	public long logAdded(ChatMessage message) throws IOException {
+		return append(encodeAdded(message));
+	}
+
+	/**
+	 * Record the addition of several messages to the mailbox in one write.
+	 *
+	 * @param messages
+	 *            The messages being stored; their IDs must already be set.
+	 * @return The sequence number of the last record, to be used with awaitDurable(...)
+	 * @throws IOException
+	 *             If the records could not be written.
+	 */
+	public long logAdded(List<ChatMessage> messages) throws IOException {
+		ByteBuffer[] records = new ByteBuffer[messages.size()];
+		for (int i = 0; i < records.length; i++)
+			records[i] = encodeAdded(messages.get(i));
+		return append(records);
+	}
+
+	/**
+	 * Record the removal of messages from the mailbox.
+	 *
+	 * @param messages
+	 *            The messages that were removed.
+	 * @return The sequence number of the last record, to be used with awaitDurable(...)
+	 * @throws IOException
+	 *             If the records could not be written.
+	 */
+	public long logRemoved(List<ChatMessage> messages) throws IOException {
+		ByteBuffer[] records = new ByteBuffer[messages.size()];
+		for (int i = 0; i < records.length; i++)
+			records[i] = encodeRemoved(messages.get(i).getID());
+		return append(records);
+	}
+
+	/**
+	 * Wait until the record with the given sequence number is durable under the sync policy.
+	 * Returns immediately for SyncPolicy.OS.
+	 *
+	 * @param sequence
+	 *            The sequence number returned when the record was logged.
+	 * @return True if the record is durable, false if the log has failed.
+	 */
+	public boolean awaitDurable(long sequence) {
+		if (isFailed)
+			return false;
+
+		switch (policy) {
+		case EVERY_WRITE:
+			return sync();
+
+		case GROUP:
+			synchronized (syncLock) {
+				// Wake the committer early if enough records are pending
+				if (sequence - durableSequence >= groupCommitRecords)
+					syncLock.notifyAll();
+				while (durableSequence < sequence && !isFailed && !isClosed) {
+					try {
+						syncLock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				return durableSequence >= sequence;
+			}
+
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Force any pending records to disk and release the file.
+	 */
+	public void close() {
+		sync();
+		isClosed = true;
+		synchronized (syncLock) {
+			syncLock.notifyAll();
+		}
+		synchronized (writeLock) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Log.error("WriteAheadLog", "close", "Could not close the log file", e);
+			}
+		}
+	}
+
+	// Write the records to the end of the file
+	private long append(ByteBuffer... records) throws IOException {
+		if (isFailed || isClosed)
+			throw new IOException("The write-ahead log is not writable");
+
+		synchronized (writeLock) {
+			try {
+				for (ByteBuffer record : records)
+					while (record.hasRemaining())
+						channel.write(record);
+			} catch (IOException e) {
+				isFailed = true;
+				throw e;
+			}
+			writtenSequence += records.length;
+			return writtenSequence;
+		}
+	}
+
+	// Force everything written so far to disk
+	private boolean sync() {
+		synchronized (syncLock) {
+			long target;
+			FileChannel current;
+			synchronized (writeLock) {
+				target = writtenSequence;
+				current = channel;
+			}
+			if (durableSequence >= target)
+				return !isFailed;
+
+			// Segments are only rolled while holding syncLock, so this is still the current one
+			try {
+				current.force(false);
+				durableSequence = target;
+			} catch (IOException e) {
+				Log.error("WriteAheadLog", "sync", "Could not force the log to disk", e);
+				isFailed = true;
+			}
+			syncLock.notifyAll();
+			return !isFailed;
+		}
+	}
+
+	// Loop for the background thread under SyncPolicy.GROUP
+	private void commitGroups() {
+		while (!isClosed && !isFailed) {
+			synchronized (syncLock) {
+				try {
+					syncLock.wait(groupCommitMillis);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			sync();
+		}
+	}
+
+	// Build a record for an added message
+	private static ByteBuffer encodeAdded(ChatMessage message) {
+		byte[] content = message.getMessage() != null ? message.getMessage().getBytes(StandardCharsets.UTF_8) : null;
+		int length = 1 + 8 * 4 + 4 + (content != null ? content.length : 0);
+
+		ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + length);
+		record.position(HEADER_LENGTH);
+		record.put(ADDED);
+		record.putLong(message.getID());
+		record.putLong(message.getSenderID());
+		record.putLong(message.getRecipientID());
+		record.putLong(message.getReceiveDate() != null ? message.getReceiveDate().getTimeInMillis() : -1);
+		record.putInt(content != null ? content.length : -1);
+		if (content != null)
+			record.put(content);
+		return seal(record, length);
+	}
+
+	// Build a record for a removed message
+	private static ByteBuffer encodeRemoved(long messageID) {
+		int length = 1 + 8;
+
+		ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + length);
+		record.position(HEADER_LENGTH);
+		record.put(REMOVED);
+		record.putLong(messageID);
+		return seal(record, length);
+	}
+
+	// Fill in the record header and prepare the buffer for writing
+	private static ByteBuffer seal(ByteBuffer record, int length) {
+		CRC32 checksum = new CRC32();
+		checksum.update(record.array(), HEADER_LENGTH, length);
+		record.putInt(0, length);
+		record.putInt(4, (int) checksum.getValue());
+		record.rewind();
+		return record;
+	}
+
+	// Pass a single record body on to the replay handler
+	private static void decode(ByteBuffer payload, ReplayHandler handler) throws IOException {
+		byte type = payload.get();
+		if (type == ADDED) {
+			long id = payload.getLong();
+			long senderID = payload.getLong();
+			long recipientID = payload.getLong();
+			long receiveMillis = payload.getLong();
+			int contentLength = payload.getInt();
+
+			String content = null;
+			if (contentLength >= 0) {
+				content = new String(payload.array(), payload.position(), contentLength, StandardCharsets.UTF_8);
+				payload.position(payload.position() + contentLength);
+			}
+			Calendar receiveDate = null;
+			if (receiveMillis >= 0) {
+				receiveDate = Calendar.getInstance();
+				receiveDate.setTimeInMillis(receiveMillis);
+			}
+			handler.added(new ChatMessage(id, senderID, recipientID, content, receiveDate));
+
+		} else if (type == REMOVED) {
+			handler.removed(payload.getLong());
+
+		} else
+			throw new IOException("Unknown record type " + type);
+	}
+}
@@ -0,0 +1,45 @@
+/* Message store that keeps the ChatMessage objects themselves on the heap.
+ * Fastest option for small backlogs; this is the default storage engine.
+ */
+package components.messages.storage;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import components.messages.ChatMessage;
+
+public class HeapMessageStore implements MessageStore {
+
+	// Use concurrent hash map for inbuilt concurrency measures
+	private final ConcurrentHashMap<Long, ChatMessage> messages = new ConcurrentHashMap<Long, ChatMessage>();
+
+	@Override
+	public void put(ChatMessage message) {
+		messages.put(Long.valueOf(message.getID()), message);
+	}
+
+	@Override
+	public boolean fits(ChatMessage message) {
+		return true;
+	}
+
+	@Override
+	public ChatMessage get(long messageID) {
+		return messages.get(Long.valueOf(messageID));
+	}
+
+	@Override
+	public ChatMessage remove(long messageID) {
+		return messages.remove(Long.valueOf(messageID));
+	}
+
+	@Override
+	public int size() {
+		return messages.size();
+	}
+
+	@Override
+	public Iterator<ChatMessage> iterator() {
+		return messages.values().iterator();
+	}
+}
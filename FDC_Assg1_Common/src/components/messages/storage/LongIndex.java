@@ -0,0 +1,259 @@
+/* Map from long keys to non-negative long values, kept in plain arrays rather than as boxed entries.
+ * Serves as the in-heap index of MappedMessageStore: a slot takes 16 bytes, and the tables grow
+ * once three-quarters full and shrink once under a quarter full, so an entry costs 20 to 64 bytes
+ * against some 80 for a ConcurrentHashMap<Long, Long>, and creates no garbage.
+ * Keys are spread over a fixed number of stripes, each an open-addressing table with linear probing
+ * behind its own lock, so concurrent callers rarely wait for each other.
+ *
+ * Usage:
+ * 1. Create using LongIndex()
+ * 2. Change entries using put(...) and remove(...), and look them up using get(...)
+ * 3. Walk through the values using values()
+ */
+package components.messages.storage;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+class LongIndex {
+
+	/**
+	 * Walks through the values of an index, one stripe at a time.
+	 */
+	static class Cursor {
+		private final LongIndex index;
+		private int nextStripe = 0;
+		private long[] values = new long[0];
+		private int position = 0;
+
+		private Cursor(LongIndex index) {
+			this.index = index;
+		}
+
+		/**
+		 * Check whether there are more values.
+		 *
+		 * @return True if next() has a value to return.
+		 */
+		boolean hasNext() {
+			while (position == values.length && nextStripe < index.stripes.length) {
+				values = index.stripes[nextStripe++].copyValues();
+				position = 0;
+			}
+			return position < values.length;
+		}
+
+		/**
+		 * Returns the next value.
+		 *
+		 * @return The value.
+		 */
+		long next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return values[position++];
+		}
+	}
+
+	// Returned for missing keys; also marks the free slots
+	static final long NO_VALUE = -1;
+
+	// Number of independently locked tables (a power of two)
+	private static final int STRIPE_BITS = 6;
+	private static final int INITIAL_CAPACITY = 16;
+
+	// A single open-addressing table
+	private static class Stripe {
+		private long[] keys = new long[INITIAL_CAPACITY];
+		private long[] values = newValues(INITIAL_CAPACITY);
+		private int size = 0;
+
+		private synchronized long get(long key, int hash) {
+			int mask = keys.length - 1;
+			for (int slot = hash & mask; values[slot] != NO_VALUE; slot = (slot + 1) & mask)
+				if (keys[slot] == key)
+					return values[slot];
+			return NO_VALUE;
+		}
+
+		private synchronized long put(long key, int hash, long value) {
+			int mask = keys.length - 1;
+			int slot = hash & mask;
+			for (; values[slot] != NO_VALUE; slot = (slot + 1) & mask)
+				if (keys[slot] == key) {
+					long previous = values[slot];
+					values[slot] = value;
+					return previous;
+				}
+
+			keys[slot] = key;
+			values[slot] = value;
+			if (++size > keys.length / 4 * 3)
+				resize(keys.length * 2);
+			return NO_VALUE;
+		}
+
+		private synchronized long remove(long key, int hash) {
+			int mask = keys.length - 1;
+			int slot = hash & mask;
+			for (; values[slot] != NO_VALUE; slot = (slot + 1) & mask)
+				if (keys[slot] == key)
+					break;
+			long removed = values[slot];
+			if (removed == NO_VALUE)
+				return NO_VALUE;
+
+			// Shift the rest of the run back, so lookups never need tombstones to get past the gap
+			int gap = slot;
+			for (int next = (gap + 1) & mask; values[next] != NO_VALUE; next = (next + 1) & mask) {
+				int home = hash(keys[next]) & mask;
+				// Move an entry only if the gap lies between its home slot and where it is now
+				boolean canMove = gap <= next ? home <= gap || home > next : home <= gap && home > next;
+				if (canMove) {
+					keys[gap] = keys[next];
+					values[gap] = values[next];
+					gap = next;
+				}
+			}
+			values[gap] = NO_VALUE;
+
+			// Give back the room of a table that has mostly emptied out
+			if (--size < keys.length / 4 && keys.length > INITIAL_CAPACITY)
+				resize(keys.length / 2);
+			return removed;
+		}
+
+		private synchronized int size() {
+			return size;
+		}
+
+		private synchronized long[] copyValues() {
+			long[] copy = new long[size];
+			int count = 0;
+			for (long value : values)
+				if (value != NO_VALUE)
+					copy[count++] = value;
+			return copy;
+		}
+
+		private synchronized void clear() {
+			keys = new long[INITIAL_CAPACITY];
+			values = newValues(INITIAL_CAPACITY);
+			size = 0;
+		}
+
+		// Move all entries to tables of the given capacity
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			long[] oldValues = values;
+			keys = new long[capacity];
+			values = newValues(capacity);
+			int mask = capacity - 1;
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldValues[i] != NO_VALUE) {
+					int slot = hash(oldKeys[i]) & mask;
+					while (values[slot] != NO_VALUE)
+						slot = (slot + 1) & mask;
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+				}
+		}
+
+		private static long[] newValues(int capacity) {
+			long[] values = new long[capacity];
+			Arrays.fill(values, NO_VALUE);
+			return values;
+		}
+	}
+
+	private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+	/**
+	 * Creates an empty index.
+	 */
+	LongIndex() {
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i] = new Stripe();
+	}
+
+	/**
+	 * Returns the value stored under a key.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return The value, or NO_VALUE if there is none.
+	 */
+	long get(long key) {
+		int hash = hash(key);
+		return stripeFor(hash).get(key, hash);
+	}
+
+	/**
+	 * Store a value under a key, replacing any stored before.
+	 *
+	 * @param key
+	 *            The key.
+	 * @param value
+	 *            The value; must not be negative.
+	 * @return The value replaced, or NO_VALUE if there was none.
+	 */
+	long put(long key, long value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Negative value: " + value);
+		int hash = hash(key);
+		return stripeFor(hash).put(key, hash, value);
+	}
+
+	/**
+	 * Remove the value stored under a key.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return The value removed, or NO_VALUE if there was none (eg. it was already removed by someone else).
+	 */
+	long remove(long key) {
+		int hash = hash(key);
+		return stripeFor(hash).remove(key, hash);
+	}
+
+	/**
+	 * Returns the number of entries.
+	 *
+	 * @return The entry count.
+	 */
+	int size() {
+		int size = 0;
+		for (Stripe stripe : stripes)
+			size += stripe.size();
+		return size;
+	}
+
+	/**
+	 * Walk through all values.
+	 * Like the iterators of the concurrent collections, the cursor never fails due to concurrent
+	 * changes, but may or may not include entries added or removed while walking.
+	 *
+	 * @return A cursor over the values, in no particular order.
+	 */
+	Cursor values() {
+		return new Cursor(this);
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	void clear() {
+		for (Stripe stripe : stripes)
+			stripe.clear();
+	}
+
+	private Stripe stripeFor(int hash) {
+		return stripes[hash >>> (32 - STRIPE_BITS)];
+	}
+
+	// Spread the key over all bits: the top ones pick the stripe, the bottom ones the slot
+	private static int hash(long key) {
+		long mixed = key * 0x9E3779B97F4A7C15L;
+		return (int) (mixed ^ (mixed >>> 32));
+	}
+}
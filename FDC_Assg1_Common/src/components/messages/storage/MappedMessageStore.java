@@ -0,0 +1,322 @@
+/* Message store that keeps message records off the heap, in memory-mapped segment files.
+ * Records are appended to the current segment and never modified; the heap only holds
+ * a compact index (see LongIndex) from message ID to the segment and offset of its record.
+ * Each segment counts its live records, and once a full segment has had all of its
+ * messages removed its file is deleted, so disk usage follows the backlog rather than the
+ * total traffic. The mapping itself, and the address space behind it, is only released once
+ * the garbage collector reclaims the segment's buffer: Java offers no supported way to unmap
+ * a buffer, and forcing it (eg. through sun.misc.Unsafe.invokeCleaner) would crash the JVM
+ * if a reader still held a duplicate of it.
+ *
+ * The segment files are scratch space: durability is provided by the write-ahead log and
+ * snapshots, so any segments left over from a previous run are deleted on startup.
+ *
+ * Usage:
+ * 1. Create the store using MappedMessageStore(...) and hand it to the mailbox.
+ * 2. Use it through the MessageStore interface.
+ * 3. Release the segments using close()
+ */
+package components.messages.storage;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import components.messages.ChatMessage;
+import components.utilities.Log;
+
+public class MappedMessageStore implements MessageStore {
+
+	// Record layout: id, sender, recipient, receive date (epoch millis), content length, content (UTF-8)
+	private static final int RECORD_HEADER_LENGTH = 8 * 4 + 4;
+
+	// Naming of the segment files
+	private static final String SEGMENT_PREFIX = "messages-";
+	private static final String SEGMENT_SUFFIX = ".segment";
+
+	// A single memory-mapped segment file
+	private static class Segment {
+		private final long number;
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private final int capacity;
+
+		// Next free offset; once an allocation overflows it stays past the capacity
+		private final AtomicInteger writeOffset = new AtomicInteger();
+		// Records stored (or being stored) that have not been removed yet
+		private final AtomicInteger liveRecords = new AtomicInteger();
+		// Set once a newer segment has taken over
+		private volatile boolean isSealed = false;
+		private final AtomicBoolean isDeleted = new AtomicBoolean(false);
+
+		private Segment(long number, File file, int capacity) throws IOException {
+			this.number = number;
+			this.file = file;
+			this.capacity = capacity;
+
+			RandomAccessFile segmentFile = new RandomAccessFile(file, "rw");
+			try {
+				segmentFile.setLength(capacity);
+				buffer = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			} finally {
+				// The mapping stays valid after the file is closed
+				segmentFile.close();
+			}
+		}
+
+		// Reserve space for a record; returns its offset, or -1 if the segment is full
+		private int allocate(int length) {
+			int offset = writeOffset.getAndAdd(length);
+			return offset + length <= capacity && offset >= 0 ? offset : -1;
+		}
+	}
+
+	// Directory holding the segment files, and the size of each segment
+	private final File directory;
+	private final int segmentSize;
+
+	// All segments still holding live records, and the one currently appended to
+	private final ConcurrentHashMap<Long, Segment> segments = new ConcurrentHashMap<Long, Segment>();
+	private volatile Segment activeSegment;
+	private final Object rollLock = new Object();
+
+	// Message ID -> location of its record (segment number in the high half, offset in the low half)
+	private final LongIndex index = new LongIndex();
+
+	/**
+	 * Creates a store in the given directory, clearing out segments left from an earlier run.
+	 *
+	 * @param directory
+	 *            The directory for the segment files; created if missing.
+	 * @param segmentSize
+	 *            The size of each segment file in bytes.
+	 * @throws IOException
+	 *             If the directory or first segment cannot be created.
+	 */
+	public MappedMessageStore(File directory, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create the segment directory " + directory);
+
+		// Remove stale segments; their contents are restored from the write-ahead log instead
+		File[] staleFiles = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (staleFiles != null)
+			for (File staleFile : staleFiles)
+				if (!staleFile.delete())
+					Log.error("MappedMessageStore", "constructor", "Could not delete stale segment " + staleFile, null);
+
+		activeSegment = createSegment(1);
+	}
+
+	@Override
+	public void put(ChatMessage message) {
+		byte[] content = message.getMessage() != null ? message.getMessage().getBytes(StandardCharsets.UTF_8) : null;
+		int length = RECORD_HEADER_LENGTH + (content != null ? content.length : 0);
+		if (length > segmentSize)
+			throw new IllegalArgumentException("Message does not fit in a segment of " + segmentSize + " bytes");
+
+		while (true) {
+			Segment segment = activeSegment;
+
+			// Count the record as live first, so the segment cannot be deleted under us
+			segment.liveRecords.incrementAndGet();
+			int offset = segment.allocate(length);
+			if (offset >= 0) {
+				writeRecord(segment, offset, message, content);
+				index.put(message.getID(), segment.number << 32 | offset);
+				return;
+			}
+
+			// Full; move on to a new segment
+			releaseRecord(segment);
+			rollFrom(segment);
+		}
+	}
+
+	@Override
+	public boolean fits(ChatMessage message) {
+		long contentLength = message.getMessage() != null ? message.getMessage().length() : 0;
+		// A character takes at most three bytes in UTF-8 (a surrogate pair takes four for two)
+		if (RECORD_HEADER_LENGTH + contentLength * 3 <= segmentSize)
+			return true;
+		return RECORD_HEADER_LENGTH + message.getMessage().getBytes(StandardCharsets.UTF_8).length <= segmentSize;
+	}
+
+	@Override
+	public ChatMessage get(long messageID) {
+		long location = index.get(messageID);
+		return location != LongIndex.NO_VALUE ? readRecord(location) : null;
+	}
+
+	@Override
+	public ChatMessage remove(long messageID) {
+		long location = index.remove(messageID);
+		if (location == LongIndex.NO_VALUE)
+			return null;
+
+		// Read the record before giving up its space
+		ChatMessage message = readRecord(location);
+		Segment segment = segments.get(Long.valueOf(location >>> 32));
+		if (segment != null)
+			releaseRecord(segment);
+		return message;
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public Iterator<ChatMessage> iterator() {
+		final LongIndex.Cursor locations = index.values();
+
+		// Decode records lazily, skipping any whose segment has gone in the meantime
+		return new Iterator<ChatMessage>() {
+			private ChatMessage next = null;
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && locations.hasNext())
+					next = readRecord(locations.next());
+				return next != null;
+			}
+
+			@Override
+			public ChatMessage next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				ChatMessage current = next;
+				next = null;
+				return current;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of segment files currently in use.
+	 *
+	 * @return The segment count.
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Drop all segments and their files.
+	 */
+	public void close() {
+		for (Segment segment : segments.values())
+			deleteSegment(segment);
+		index.clear();
+	}
+
+	// Create and register a new segment
+	private Segment createSegment(long number) throws IOException {
+		Segment segment = new Segment(number, new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX),
+				segmentSize);
+		segments.put(Long.valueOf(number), segment);
+		return segment;
+	}
+
+	// Replace the full segment with a new one, unless another thread already has
+	private void rollFrom(Segment fullSegment) {
+		synchronized (rollLock) {
+			if (activeSegment != fullSegment)
+				return;
+			try {
+				activeSegment = createSegment(fullSegment.number + 1);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not create a new message segment", e);
+			}
+			fullSegment.isSealed = true;
+			compact(fullSegment);
+		}
+	}
+
+	// Give up a record's share of the segment, compacting the segment if it is now empty
+	private void releaseRecord(Segment segment) {
+		if (segment.liveRecords.decrementAndGet() == 0)
+			compact(segment);
+	}
+
+	// Delete a sealed segment once none of its messages are left
+	private void compact(Segment segment) {
+		if (segment.isSealed && segment.liveRecords.get() == 0)
+			deleteSegment(segment);
+	}
+
+	// Remove the segment and its file (the mapping itself is released once the buffer is garbage collected)
+	private void deleteSegment(Segment segment) {
+		if (segment.isDeleted.compareAndSet(false, true)) {
+			segments.remove(Long.valueOf(segment.number));
+			if (!segment.file.delete())
+				Log.error("MappedMessageStore", "deleteSegment", "Could not delete segment " + segment.file, null);
+			Log.debug("MappedMessageStore", "deleteSegment", "Compacted segment " + segment.number);
+		}
+	}
+
+	// Write a record at the reserved offset
+	private static void writeRecord(Segment segment, int offset, ChatMessage message, byte[] content) {
+		ByteBuffer record = segment.buffer.duplicate();
+		record.position(offset);
+		record.putLong(message.getID());
+		record.putLong(message.getSenderID());
+		record.putLong(message.getRecipientID());
+		record.putLong(message.getReceiveDate() != null ? message.getReceiveDate().getTimeInMillis() : -1);
+		record.putInt(content != null ? content.length : -1);
+		if (content != null)
+			record.put(content);
+	}
+
+	// Decode the record at the given location, or return null if its segment is gone
+	private ChatMessage readRecord(long location) {
+		Segment segment = segments.get(Long.valueOf(location >>> 32));
+		if (segment == null)
+			return null;
+
+		ByteBuffer record = segment.buffer.duplicate();
+		record.position((int) location);
+		long id = record.getLong();
+		long senderID = record.getLong();
+		long recipientID = record.getLong();
+		long receiveMillis = record.getLong();
+		int contentLength = record.getInt();
+
+		String content = null;
+		if (contentLength >= 0) {
+			byte[] contentBytes = new byte[contentLength];
+			record.get(contentBytes);
+			content = new String(contentBytes, StandardCharsets.UTF_8);
+		}
+		Calendar receiveDate = null;
+		if (receiveMillis >= 0) {
+			receiveDate = Calendar.getInstance();
+			receiveDate.setTimeInMillis(receiveMillis);
+		}
+		return new ChatMessage(id, senderID, recipientID, content, receiveDate);
+	}
+}
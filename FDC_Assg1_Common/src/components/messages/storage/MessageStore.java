@@ -0,0 +1,70 @@
+/* Storage engine behind the mailbox: keeps each message by its ID.
+ * The mailbox maintains its own indexes on top of the store, so an engine
+ * only needs to support lookups by message ID.
+ * 
+ * Usage:
+ * 1. Store a message using put(...), having checked that it can be stored at all using fits(...)
+ * 2. Look up a message using get(...)
+ * 3. Take a message out using remove(...); only one caller can ever remove a given message.
+ * 4. Walk through all stored messages using iterator(), eg. for snapshots.
+ */
+package components.messages.storage;
+
+import java.util.Iterator;
+
+import components.messages.ChatMessage;
+
+public interface MessageStore {
+
+	/**
+	 * Store a message under its ID.
+	 * 
+	 * @param message
+	 *            The message to store; its ID must already be set.
+	 */
+	public void put(ChatMessage message);
+
+	/**
+	 * Check whether a message can be stored at all, eg. that it is not larger than the engine allows.
+	 * put(...) may still fail for other reasons, such as running out of space.
+	 * 
+	 * @param message
+	 *            The message to check.
+	 * @return True if the engine can hold the message.
+	 */
+	public boolean fits(ChatMessage message);
+
+	/**
+	 * Returns the message stored under the given ID.
+	 * 
+	 * @param messageID
+	 *            The ID of the message.
+	 * @return The message, or null if there is none.
+	 */
+	public ChatMessage get(long messageID);
+
+	/**
+	 * Remove the message stored under the given ID.
+	 * 
+	 * @param messageID
+	 *            The ID of the message.
+	 * @return The removed message, or null if there is none (eg. it was already removed by someone else).
+	 */
+	public ChatMessage remove(long messageID);
+
+	/**
+	 * Returns the number of stored messages.
+	 * 
+	 * @return The message count.
+	 */
+	public int size();
+
+	/**
+	 * Walk through all stored messages.
+	 * The iterator is weakly consistent: it never fails due to concurrent changes,
+	 * but may or may not include messages added or removed while iterating.
+	 * 
+	 * @return An iterator over the stored messages, in no particular order.
+	 */
+	public Iterator<ChatMessage> iterator();
+}
@@ -9,7 +9,7 @@ public class NoticeMessages {
 	
 	// User Interface
 	public static final String WELCOME = "Hello.";
-	public static final String INVALID_INPUT = "Invalid input provided. Valid commands are: \n\t connect \n\t disconnect (your id) \n\t deposit (your id) (recipient id) (message) \n\t retrieve (your id) \n\t inquire (your id) (user's id) \n\t exit or quit";
+	public static final String INVALID_INPUT = "Invalid input provided. Valid commands are: \n\t connect \n\t disconnect (your id) \n\t deposit (your id) (recipient id) (message) \n\t depositbatch {(sender id) (recipient id) (one-word message)}... \n\t retrieve (your id) \n\t retrievewait (your id) (milliseconds to wait) \n\t listen (your id) \n\t inquire (your id) (user's id) \n\t exit or quit";
 	public static final String GOODBYE = "Have a nice day.";
 	
 	// Connect/Disconnect
@@ -20,9 +20,11 @@ public class NoticeMessages {
 	// Deposit/Retrieval
 	public static final String DEPOSIT_SUCCESS = "Message saved.";
 	public static final String DEPOSIT_FAILURE = "Message could not be saved.";
+	public static final String DEPOSIT_BATCH_RESULT = "Message %d: %s";
 	public static final String RETRIEVE_SUCCESS = "Messages retrieved.";
 	public static final String RETRIEVE_EMPTY = "No messages for you.";
 	public static final String RETRIEVE_FAILED = "System error: the messages were corrupted.";
+	public static final String LISTEN_SUCCESS = "New messages will be shown as they arrive.";
 
 	// Inquire
 	public static final String INQUIRE_SUCCESS = "The user is currently connected.";
@@ -19,6 +19,9 @@ public class Status {
 	public static final short MARSHAL_FAILED = 5;
 	public static final short INVALID_REQUEST = 6;
 	public static final short MAX_CLIENTS_REACHED = 7;
+	public static final short STORAGE_FAILED = 8;
+	public static final short INBOX_FULL = 9;
+	public static final short SERVER_BUSY = 10;
 
 	// Map of the status with their full descriptive texts
 	private HashMap<Short, String> descriptions = new HashMap<Short, String>();
@@ -54,5 +57,8 @@ public class Status {
 		descriptions.put(Status.MARSHAL_FAILED, "System error: the messages could not be loaded.");
 		descriptions.put(Status.INVALID_REQUEST, "The request information was invalid.");
 		descriptions.put(Status.MAX_CLIENTS_REACHED, "The server is at full capacity (cannot handle any more clients unless someone disconnects).");
+		descriptions.put(Status.STORAGE_FAILED, "System error: the message could not be stored safely.");
+		descriptions.put(Status.INBOX_FULL, "The recipient's inbox is full. Please try again later.");
+		descriptions.put(Status.SERVER_BUSY, "The server is too busy to handle the request. Please try again later.");
 	}
 }
@@ -0,0 +1,167 @@
+/* Background writer for log messages.
+ * Messages are put in a bounded queue and printed by a single writer thread,
+ * so that logging never makes the caller wait for the console or a file.
+ * When the queue is full, the message is either dropped (and counted) or
+ * the caller waits for space, as chosen by the overflow policy.
+ *
+ * Usage:
+ * 1. Create the writer using AsyncAppender(...) and pass it to Log.setAppender(...)
+ * 2. Check how many messages were lost using getDroppedCount()
+ * 3. Write out the pending messages and stop the writer using close()
+ */
+package components.utilities;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AsyncAppender {
+
+	/**
+	 * What to do with a message when the queue is full.
+	 */
+	public static enum OverflowPolicy {
+		/** Discard the message; the caller never waits. */
+		DROP,
+		/** Wait until the writer has made space; no message is lost. */
+		BLOCK
+	}
+
+	// A queued message, and where it goes
+	private static class Entry {
+		private final String line;
+		private final boolean isError;
+
+		private Entry(String line, boolean isError) {
+			this.line = line;
+			this.isError = isError;
+		}
+	}
+
+	// Queued to stop the writer once everything before it is written
+	private static final Entry END = new Entry(null, false);
+
+	private final PrintStream out;
+	private final PrintStream err;
+	private final OverflowPolicy policy;
+	private final ArrayBlockingQueue<Entry> queue;
+	private final Thread writer;
+	private final AtomicLong droppedCount = new AtomicLong();
+	private volatile boolean isClosed = false;
+
+	/**
+	 * Creates a writer for the console.
+	 *
+	 * @param capacity
+	 *            Most messages waiting to be written.
+	 * @param policy
+	 *            What to do with a message when the queue is full.
+	 */
+	public AsyncAppender(int capacity, OverflowPolicy policy) {
+		this(System.out, System.err, capacity, policy);
+	}
+
+	/**
+	 * Creates a writer for the given streams, and starts its thread.
+	 *
+	 * @param out
+	 *            Destination of regular messages.
+	 * @param err
+	 *            Destination of error details (may be the same as out).
+	 * @param capacity
+	 *            Most messages waiting to be written.
+	 * @param policy
+	 *            What to do with a message when the queue is full.
+	 */
+	public AsyncAppender(PrintStream out, PrintStream err, int capacity, OverflowPolicy policy) {
+		this.out = out;
+		this.err = err;
+		this.policy = policy;
+		this.queue = new ArrayBlockingQueue<Entry>(Math.max(1, capacity));
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "Log-writer");
+		// Never keep the program alive just for logging
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queue a message for writing.
+	 *
+	 * @param line
+	 *            The full line to write.
+	 * @param isError
+	 *            True to write it to the error stream.
+	 * @return True if the message was queued, false if it was dropped.
+	 */
+	public boolean append(String line, boolean isError) {
+		Entry entry = new Entry(line, isError);
+		if (!isClosed) {
+			if (policy == OverflowPolicy.DROP) {
+				if (queue.offer(entry))
+					return true;
+			} else
+				try {
+					queue.put(entry);
+					return true;
+				} catch (InterruptedException e) {
+					// Keep the interrupt for the caller, and give up on the message
+					Thread.currentThread().interrupt();
+				}
+		}
+		droppedCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Returns the number of messages lost, because the queue was full or the writer was closed.
+	 *
+	 * @return The dropped message count.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Write out the pending messages and stop the writer thread.
+	 * Messages appended afterwards are dropped.
+	 */
+	public void close() {
+		if (isClosed)
+			return;
+		isClosed = true;
+		try {
+			queue.put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Writer loop: print messages as they come, flushing whenever the queue runs dry
+	private void write() {
+		try {
+			while (true) {
+				Entry entry = queue.take();
+				do {
+					if (entry == END) {
+						out.flush();
+						err.flush();
+						return;
+					}
+					(entry.isError ? err : out).println(entry.line);
+				} while ((entry = queue.poll()) != null);
+
+				out.flush();
+				err.flush();
+			}
+		} catch (InterruptedException e) {
+			// Stopped without being closed; nothing more to do
+		}
+	}
+}
@@ -7,10 +7,16 @@
  * 
  * 2. To convert a CSV string back into a list, use fromCSV(...)
  * It is up to the programmer to convert the strings into the necessary data types.
+ * 
+ * On busy paths, avoid the intermediate lists:
+ * 3. Build a CSV string directly using a CSVUtility.Builder
+ * 4. Read the fields of a CSV string in place using parse(...),
+ * 		which also converts numeric fields without creating strings for them.
  */
 package components.utilities;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -27,7 +33,8 @@ public class CSVUtility {
 	 * @return A single string as CSV.
 	 */
 	public static String toCSV(List<String> data) {
-		Log.debug("CSVUtility", "toCSV", "working with list " + data);
+		if (Log.isDebugEnabled())
+			Log.debug("CSVUtility", "toCSV", "working with list " + data);
 
 		if (data != null) {
 			StringBuilder csvBuilder = new StringBuilder();
@@ -43,8 +50,10 @@ public class CSVUtility {
 					isFirst = false;
 			}
 
-			Log.debug("CSVUtility", "toCSV", "result: " + csvBuilder.toString());
-			return csvBuilder.toString();
+			String csvData = csvBuilder.toString();
+			if (Log.isDebugEnabled())
+				Log.debug("CSVUtility", "toCSV", "result: " + csvData);
+			return csvData;
 
 		} else
 			return "";
@@ -58,20 +67,218 @@ public class CSVUtility {
 	 * @return The list of strings developed from the supplied CSV.
 	 */
 	public static List<String> fromCSV(String csvData) {
-		Log.debug("CSVUtility", "fromCSV", "working with string " + csvData);
+		if (Log.isDebugEnabled())
+			Log.debug("CSVUtility", "fromCSV", "working with string " + csvData);
 
 		if (csvData != null) {
-			List<String> data = new ArrayList<String>();
-			// Split the csv into an array of strings
-			String[] splitData = csvData.split(separator);
+			// Split the csv into its fields
+			Fields fields = parse(csvData);
 			// Populate the list
-			for (String splitDataItem : splitData)
-				data.add(splitDataItem);
+			List<String> data = new ArrayList<String>(fields.size());
+			for (int i = 0; i < fields.size(); i++)
+				data.add(fields.getString(i));
 
-			Log.debug("CSVUtility", "fromCSV", "result list: " + data);
+			if (Log.isDebugEnabled())
+				Log.debug("CSVUtility", "fromCSV", "result list: " + data);
 			return data;
 
 		} else
 			return null;
 	}
+
+	/**
+	 * Locate the fields of a CSV string, without copying any of them.
+	 * Splits the same way as fromCSV(...): empty fields at the end are dropped.
+	 * 
+	 * @param csvData
+	 *            Single string to read the fields from.
+	 * @return The fields of the CSV, or null if no string is supplied.
+	 */
+	public static Fields parse(String csvData) {
+		if (csvData == null)
+			return null;
+
+		Fields fields = new Fields(csvData);
+		int start = 0;
+		int end;
+		// Plain text search for the separator; no regular expression involved
+		while ((end = csvData.indexOf(separator, start)) >= 0) {
+			fields.add(start, end);
+			start = end + separator.length();
+		}
+		fields.add(start, csvData.length());
+
+		// Drop the empty fields at the end (but keep the only one of an empty string)
+		while (fields.count > 1 && fields.starts[fields.count - 1] == fields.ends[fields.count - 1])
+			fields.count--;
+		if (fields.count == 1 && fields.ends[0] == 0 && csvData.length() > 0)
+			fields.count = 0;
+		return fields;
+	}
+
+	/**
+	 * The fields of a CSV string, located in place.
+	 * Fields are only copied out of the string when they are asked for as strings.
+	 */
+	public static class Fields {
+		private final String csvData;
+
+		// Start and end (exclusive) of each field within the string
+		private int[] starts = new int[4];
+		private int[] ends = new int[4];
+		private int count = 0;
+
+		private Fields(String csvData) {
+			this.csvData = csvData;
+		}
+
+		// Record the next field
+		private void add(int start, int end) {
+			if (count == starts.length) {
+				starts = Arrays.copyOf(starts, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+			}
+			starts[count] = start;
+			ends[count] = end;
+			count++;
+		}
+
+		/**
+		 * Returns the number of fields.
+		 * 
+		 * @return The field count.
+		 */
+		public int size() {
+			return count;
+		}
+
+		/**
+		 * Returns a field as a string.
+		 * 
+		 * @param index
+		 *            The position of the field, starting from 0.
+		 * @return The text of the field.
+		 * @throws IndexOutOfBoundsException
+		 *             If there is no such field.
+		 */
+		public String getString(int index) {
+			checkIndex(index);
+			return csvData.substring(starts[index], ends[index]);
+		}
+
+		/**
+		 * Returns a field as a number, parsed in place.
+		 * 
+		 * @param index
+		 *            The position of the field, starting from 0.
+		 * @return The number in the field.
+		 * @throws NumberFormatException
+		 *             If there is no such field, or it is not a (decimal) long.
+		 */
+		public long getLong(int index) {
+			if (index < 0 || index >= count)
+				throw new NumberFormatException("No field " + index + " in the CSV");
+
+			int position = starts[index];
+			int end = ends[index];
+			boolean isNegative = position < end && csvData.charAt(position) == '-';
+			if (position < end && (isNegative || csvData.charAt(position) == '+'))
+				position++;
+			if (position == end)
+				throw new NumberFormatException("Field " + index + " is not a number");
+
+			// Accumulate negatively, so that Long.MIN_VALUE fits as well
+			long limit = isNegative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+			long value = 0;
+			for (; position < end; position++) {
+				int digit = csvData.charAt(position) - '0';
+				if (digit < 0 || digit > 9 || value < limit / 10 || value * 10 < limit + digit)
+					throw new NumberFormatException("Field " + index + " is not a number: \""
+							+ csvData.substring(starts[index], end) + "\"");
+				value = value * 10 - digit;
+			}
+			return isNegative ? value : -value;
+		}
+
+		/**
+		 * Join a field with all the fields that follow it.
+		 * 
+		 * @param fromIndex
+		 *            The position of the first field to join, starting from 0.
+		 * @param delimiter
+		 *            The text to put between the fields.
+		 * @return The joined fields.
+		 * @throws IndexOutOfBoundsException
+		 *             If there is no such field.
+		 */
+		public String join(int fromIndex, String delimiter) {
+			checkIndex(fromIndex);
+			if (fromIndex == count - 1)
+				return getString(fromIndex);
+
+			StringBuilder joined = new StringBuilder(ends[count - 1] - starts[fromIndex]);
+			for (int i = fromIndex; i < count; i++) {
+				if (i > fromIndex)
+					joined.append(delimiter);
+				joined.append(csvData, starts[i], ends[i]);
+			}
+			return joined.toString();
+		}
+
+		// Fail like a list would for a missing field
+		private void checkIndex(int index) {
+			if (index < 0 || index >= count)
+				throw new IndexOutOfBoundsException("No field " + index + " in the CSV");
+		}
+	}
+
+	/**
+	 * Builds a CSV string field by field, without an intermediate list.
+	 */
+	public static class Builder {
+		private final StringBuilder csvBuilder = new StringBuilder();
+		private boolean isFirst = true;
+
+		/**
+		 * Add a text field.
+		 * 
+		 * @param element
+		 *            The text of the field.
+		 * @return This builder.
+		 */
+		public Builder add(String element) {
+			startField();
+			csvBuilder.append(element);
+			return this;
+		}
+
+		/**
+		 * Add a numeric field.
+		 * 
+		 * @param element
+		 *            The number in the field.
+		 * @return This builder.
+		 */
+		public Builder add(long element) {
+			startField();
+			csvBuilder.append(element);
+			return this;
+		}
+
+		/**
+		 * Returns the CSV string built so far.
+		 * 
+		 * @return A single string as CSV.
+		 */
+		public String build() {
+			return csvBuilder.toString();
+		}
+
+		// Add the separator before all items except the first
+		private void startField() {
+			if (!isFirst)
+				csvBuilder.append(separator);
+			isFirst = false;
+		}
+	}
 }
@@ -1,15 +1,31 @@
 /* Utility for generating unique identifiers that are totally ordered.
  * Maintains separate tracks for each sequence, so that you can create 
  * sequences for clients, messages, transactions etc. as needed
+ * All functions are safe to call from several threads at once.
+ * 
+ * Optionally, the generator can keep IDs unique across restarts. It then records a
+ * high-water mark for each sequence in a file, a block of IDs ahead of the last ID
+ * handed out, and continues from the recorded marks when it is created again.
+ * The file is only written once per block, not once per ID.
  * 
  * Usage:
  * 1. Use getNextInSequence(...) to get the next ID in the sequence.
  * 2. Use getCurrentInSequence(...) to get the current ID in the sequence, if needed.
  * 3. Use setNextInSequence(...) to override and set the sequence to a desired ID.
+ * 4. On hot paths, keep the handle from getSequence(...) and use its functions instead,
+ * 		which avoids looking up the sequence by name each time.
  */
 package components.utilities;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class IDGenerator {
 
@@ -18,7 +34,152 @@ public class IDGenerator {
 	 */
 	public static final long NULL_ID = -1;
 
-	private HashMap<String, Long> counters = new HashMap<String, Long>();
+	/**
+	 * A single sequence of IDs.
+	 */
+	public static class Sequence {
+		private final IDGenerator generator;
+		private final String name;
+
+		// The last ID handed out
+		private final AtomicLong counter;
+
+		// IDs up to this one are covered by the recorded high-water mark
+		private volatile long reservedUpTo;
+
+		private Sequence(IDGenerator generator, String name, long start, long reservedUpTo) {
+			this.generator = generator;
+			this.name = name;
+			this.counter = new AtomicLong(start);
+			this.reservedUpTo = reservedUpTo;
+		}
+
+		/**
+		 * Returns the next unique (total ordered) ID in the sequence.
+		 * 
+		 * @return A unique ID for the sequence.
+		 */
+		public long next() {
+			long id = counter.incrementAndGet();
+			// Only the first ID past each block has to wait for the high-water mark to be recorded
+			if (id > reservedUpTo)
+				generator.reserve(this, id);
+			return id;
+		}
+
+		/**
+		 * Returns the current ID in the sequence, which means it may have already been used.
+		 * 
+		 * @return The current ID in the sequence.
+		 */
+		public long current() {
+			return counter.get();
+		}
+
+		/**
+		 * Manually update the sequence count.
+		 * 
+		 * @param newValue
+		 *            The new value to override the current counter for this sequence.
+		 */
+		public void set(long newValue) {
+			if (newValue > reservedUpTo)
+				generator.reserve(this, newValue);
+			counter.set(newValue);
+		}
+
+		/**
+		 * Move the sequence past the given ID, if it is not already.
+		 * Unlike set(...), this never moves the sequence backwards.
+		 * 
+		 * @param usedValue
+		 *            An ID known to be in use.
+		 */
+		public void advanceTo(long usedValue) {
+			if (usedValue > reservedUpTo)
+				generator.reserve(this, usedValue);
+			long current;
+			do {
+				current = counter.get();
+				if (current >= usedValue)
+					return;
+			} while (!counter.compareAndSet(current, usedValue));
+		}
+	}
+
+	// All sequences by name
+	private final ConcurrentHashMap<String, Sequence> sequences = new ConcurrentHashMap<String, Sequence>();
+
+	// File holding the high-water marks, and how many IDs each mark runs ahead (null and 0 when not persisted)
+	private final File highWaterFile;
+	private final long blockSize;
+
+	// High-water marks loaded from the file, for sequences not used yet
+	private final Properties highWaterMarks = new Properties();
+
+	/**
+	 * Creates a generator whose sequences start from scratch.
+	 */
+	public IDGenerator() {
+		highWaterFile = null;
+		blockSize = 0;
+	}
+
+	/**
+	 * Creates a generator that keeps its IDs unique across restarts,
+	 * continuing from the high-water marks recorded in the file, if any.
+	 * 
+	 * @param highWaterFile
+	 *            The file recording the high-water marks.
+	 * @param blockSize
+	 *            How many IDs to reserve each time the file is written.
+	 *            Up to this many IDs per sequence are skipped after a restart.
+	 * @throws IOException
+	 *             If the existing file could not be read.
+	 */
+	public IDGenerator(File highWaterFile, long blockSize) throws IOException {
+		this.highWaterFile = highWaterFile;
+		this.blockSize = Math.max(1, blockSize);
+
+		if (highWaterFile.exists()) {
+			FileInputStream in = new FileInputStream(highWaterFile);
+			try {
+				highWaterMarks.load(in);
+			} finally {
+				in.close();
+			}
+			Log.debug("IDGenerator", "constructor", "Loaded the high-water marks " + highWaterMarks);
+		}
+	}
+
+	/**
+	 * Returns the handle for a sequence, starting it if it doesn't exist yet.
+	 * 
+	 * @param sequenceName
+	 *            The name of this sequence of IDs, example "client", "transaction", etc.
+	 * @return The sequence, or null if no name is given.
+	 */
+	public Sequence getSequence(String sequenceName) {
+		// Validate sequence name
+		if (sequenceName == null)
+			return null;
+
+		Sequence sequence = sequences.get(sequenceName);
+		if (sequence == null) {
+			Sequence newSequence;
+			if (highWaterFile != null) {
+				// Continue after the recorded mark; the first ID then records a new one
+				long start = Long.parseLong(highWaterMarks.getProperty(sequenceName, "0").trim());
+				newSequence = new Sequence(this, sequenceName, start, start);
+			} else
+				newSequence = new Sequence(this, sequenceName, 0, Long.MAX_VALUE);
+
+			sequence = sequences.putIfAbsent(sequenceName, newSequence);
+			if (sequence == null)
+				sequence = newSequence;
+		}
+		return sequence;
+	}
 
 	/**
 	 * Returns a unique (total ordered) ID for the sequence.
@@ -31,17 +192,9 @@ public class IDGenerator {
 	 */
 	public long getNextInSequence(String sequenceName) {
 		// Validate sequence name
-		if (sequenceName != null) {
-			// Get the last ID
-			Long sequenceCount = 0l;
-			if (counters.containsKey(sequenceName))
-				sequenceCount = counters.get(sequenceName);
-			// Increment the count
-			sequenceCount++;
-			counters.put(sequenceName, sequenceCount);
-
-			return sequenceCount.longValue();
-		} else
+		if (sequenceName != null)
+			return getSequence(sequenceName).next();
+		else
 			return NULL_ID;
 	}
 
@@ -57,7 +210,7 @@ public class IDGenerator {
 	public void setNextInSequence(String sequenceName, long newValue) {
 		// Validate sequence name
 		if (sequenceName != null)
-			counters.put(sequenceName, newValue);
+			getSequence(sequenceName).set(newValue);
 	}
 
 	/**
@@ -71,17 +224,40 @@ public class IDGenerator {
 	 */
 	public long getCurrentInSequence(String sequenceName) {
 		// Validate sequence name
-		if (sequenceName != null) {
-			// Get the last ID
-			Long sequenceCount = 0l;
-			if (counters.containsKey(sequenceName))
-				sequenceCount = counters.get(sequenceName);
-			else
-				// We don't have one, so add this to start this sequence
-				counters.put(sequenceName, sequenceCount);
-
-			return sequenceCount.longValue();
-		} else
+		if (sequenceName != null)
+			return getSequence(sequenceName).current();
+		else
 			return NULL_ID;
 	}
+
+	// Record a new high-water mark for the sequence, covering the given ID and a block beyond it
+	private synchronized void reserve(Sequence sequence, long id) {
+		// Another thread may have recorded a mark covering it meanwhile
+		if (id <= sequence.reservedUpTo)
+			return;
+
+		highWaterMarks.setProperty(sequence.name, "" + (id + blockSize));
+		try {
+			writeHighWaterMarks();
+		} catch (IOException e) {
+			// Keep handing out IDs; only their uniqueness across a restart is at risk
+			Log.error("IDGenerator", "reserve", "Could not record the high-water marks", e);
+		}
+		sequence.reservedUpTo = id + blockSize;
+	}
+
+	// Replace the file with the current marks, durably
+	private void writeHighWaterMarks() throws IOException {
+		File temporaryFile = new File(highWaterFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temporaryFile);
+		try {
+			highWaterMarks.store(out, "ID sequence high-water marks");
+			out.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(temporaryFile.toPath(), highWaterFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
 }
@@ -0,0 +1,110 @@
+/* Lock-free histogram of latencies, for percentiles at a fixed relative precision.
+ * Each power of two is split into 8 buckets, so a reported percentile is at most
+ * 12.5% above the true value, whatever the scale (nanoseconds to minutes).
+ * Recording is a couple of atomic increments and never blocks; percentiles are
+ * computed from a snapshot of the buckets when they are asked for.
+ *
+ * Usage:
+ * 1. Record each latency using record(...)
+ * 2. Read the results using getCount(), getSumNanos() and getPercentile(...)
+ */
+package components.utilities;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+	// Buckets per power of two, as bits
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Longest latency told apart (about 18 minutes); longer ones share the last bucket
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	// Striped counters, so that concurrent requests do not fight over a single value
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumNanos = new LongAdder();
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos
+	 *            The latency in nanoseconds (negative values count as 0).
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		buckets.incrementAndGet(getBucket(value));
+		count.increment();
+		sumNanos.add(value);
+	}
+
+	/**
+	 * Returns the number of latencies recorded.
+	 *
+	 * @return The count.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the total of all latencies recorded.
+	 *
+	 * @return The sum in nanoseconds.
+	 */
+	public long getSumNanos() {
+		return sumNanos.sum();
+	}
+
+	/**
+	 * Returns the latency below which the given fraction of the recorded latencies fall.
+	 *
+	 * @param fraction
+	 *            The percentile as a fraction, eg. 0.99 for p99.
+	 * @return The upper bound of the bucket holding the percentile, in nanoseconds (0 if nothing was recorded).
+	 */
+	public long getPercentile(double fraction) {
+		long[] snapshot = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+
+		// Rank of the percentile, counting from 1
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return getBucketUpperBound(i);
+		}
+		return getBucketUpperBound(BUCKET_COUNT - 1);
+	}
+
+	// Bucket for a value: small values get one each, larger ones 8 per power of two
+	private static int getBucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT)
+			return BUCKET_COUNT - 1;
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	// Largest value that falls in the bucket
+	private static long getBucketUpperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (SUB_BUCKETS + subBucket) * width + width - 1;
+	}
+}
@@ -11,9 +11,16 @@
  * 2. To call the logger, use:
  * 		2.1 Log.debug(...) for logging a debug message.
  * 		2.2 Log.error(...) for logging an error message.
+ * On busy paths, pass a format and its arguments, or a Supplier, instead of a ready-made message:
+ * the message is then only built if it is actually displayed.
+ * 
+ * 3. Optionally, hand the printing over to a background thread using setAppender(...),
+ * so that callers never wait for the console or a file. Remove it again with setAppender(null).
  */
 package components.utilities;
 
+import java.util.function.Supplier;
+
 public class Log {
 
 	// All supported debug levels
@@ -32,6 +39,9 @@ public class Log {
 	// Currently set verbosity; controls the amount of metadata supplied with messages
 	public static Verbosity VERBOSE = Verbosity.Low;
 
+	// Background writer for the messages, if any; otherwise they are printed directly
+	private static volatile AsyncAppender appender = null;
+
 	/**
 	 * Print a debug message.
 	 * Only displayed if debug mode is set to Debug.
@@ -44,11 +54,52 @@ public class Log {
 	 *            Descriptive message to be printed.
 	 */
 	public static void debug(String caller, String context, String message) {
-		if (LEVEL.compareTo(Level.Debug) >= 0) {
-			if (VERBOSE.equals(Verbosity.High))
-				System.out.print(caller + "." + context + "\t");
-			System.out.println("Debug: " + message);
-		}
+		if (LEVEL.compareTo(Level.Debug) >= 0)
+			print(caller, context, "Debug: " + message, false);
+	}
+
+	/**
+	 * Print a debug message, formatted as by String.format(...) only if it is displayed.
+	 * Only displayed if debug mode is set to Debug.
+	 * 
+	 * @param caller
+	 *            Identify the calling class. Only displayed if verbosity is high.
+	 * @param context
+	 *            Identify the context (eg. the current function). Only displayed if verbosity is high.
+	 * @param format
+	 *            Format of the descriptive message to be printed.
+	 * @param arguments
+	 *            Values for the format.
+	 */
+	public static void debug(String caller, String context, String format, Object... arguments) {
+		if (LEVEL.compareTo(Level.Debug) >= 0)
+			print(caller, context, "Debug: " + String.format(format, arguments), false);
+	}
+
+	/**
+	 * Print a debug message, obtained from the supplier only if it is displayed.
+	 * Only displayed if debug mode is set to Debug.
+	 * 
+	 * @param caller
+	 *            Identify the calling class. Only displayed if verbosity is high.
+	 * @param context
+	 *            Identify the context (eg. the current function). Only displayed if verbosity is high.
+	 * @param message
+	 *            Supplies the descriptive message to be printed.
+	 */
+	public static void debug(String caller, String context, Supplier<String> message) {
+		if (LEVEL.compareTo(Level.Debug) >= 0)
+			print(caller, context, "Debug: " + message.get(), false);
+	}
+
+	/**
+	 * Check whether debug messages are displayed.
+	 * Use this to skip building expensive debug messages that would not be shown anyway.
+	 * 
+	 * @return True if the debug level is set to Debug.
+	 */
+	public static boolean isDebugEnabled() {
+		return LEVEL.compareTo(Level.Debug) >= 0;
 	}
 
 	/**
@@ -66,14 +117,57 @@ public class Log {
 	 */
 	public static void error(String caller, String context, String message, Exception exception) {
 		if (LEVEL.compareTo(Level.Error) > 0) {
-			if (VERBOSE.equals(Verbosity.High))
-				System.out.print(caller + "." + context + "\t");
-			System.out.println("Error: " + message);
+			print(caller, context, "Error: " + message, false);
 			if (VERBOSE.equals(Verbosity.High) && exception!=null)
-				System.err.println(exception.toString());
+				print(null, null, exception.toString(), true);
 		}
 	}
 
+	/**
+	 * Print an error message, obtained from the supplier only if it is displayed.
+	 * Only displayed if debug mode is set to Error or higher.
+	 * 
+	 * @param caller
+	 *            Identify the calling class. Only displayed if verbosity is high.
+	 * @param context
+	 *            Identify the context (eg. the current function). Only displayed if verbosity is high.
+	 * @param message
+	 *            Supplies the descriptive message for the error.
+	 * @param exception
+	 *            Actual exception, if any, for showing stack trace. Only displayed if verbosity is high.
+	 */
+	public static void error(String caller, String context, Supplier<String> message, Exception exception) {
+		if (LEVEL.compareTo(Level.Error) > 0)
+			error(caller, context, message.get(), exception);
+	}
+
+	/**
+	 * Send the messages through a background writer, or print them directly again.
+	 * Any previous writer is closed once its pending messages are written.
+	 * 
+	 * @param newAppender
+	 *            The background writer, or null to print directly.
+	 */
+	public static void setAppender(AsyncAppender newAppender) {
+		AsyncAppender oldAppender = appender;
+		appender = newAppender;
+		if (oldAppender != null && oldAppender != newAppender)
+			oldAppender.close();
+	}
+
+	// Print a line, with the caller's details if verbosity is high
+	private static void print(String caller, String context, String message, boolean isError) {
+		String line = caller != null && VERBOSE.equals(Verbosity.High) ? caller + "." + context + "\t" + message
+				: message;
+		AsyncAppender currentAppender = appender;
+		if (currentAppender != null)
+			currentAppender.append(line, isError);
+		else if (isError)
+			System.err.println(line);
+		else
+			System.out.println(line);
+	}
+
 	/**
 	 * Prepare the logger for printing fully verbose debug and error messages.
 	 */
@@ -0,0 +1,78 @@
+/* Generator for globally unique RPC IDs, without asking the server for them.
+ * Each ID is built from the node that generated it and a per-node counter:
+ *
+ * 		| 31 bits: node | 32 bits: counter |
+ *
+ * The node field is wide enough for a whole client ID, rather than some bits of it, so IDs
+ * from different clients never clash: the server never hands out a client ID twice, however
+ * many clients have connected so far (with storage enabled, IDGenerator persists the sequence
+ * across restarts; without it, client IDs start over along with every session).
+ * No clock is involved, so IDs stay unique whatever the time on the clients.
+ *
+ * A generator starts out on node 0, reserved for clients that have no ID yet (eg. for the
+ * connect request itself), with its counter at a random point; those IDs are only unlikely
+ * to clash. IDs from one generator are strictly increasing until its node changes or its
+ * counter wraps around, after 2^32 IDs.
+ *
+ * Usage:
+ * 1. Create a generator using RPCIDGenerator()
+ * 2. Once the client ID is known, switch to it using setNodeID(...)
+ * 3. Get a new ID using getNextID()
+ */
+package components.utilities;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RPCIDGenerator {
+
+	// Field widths
+	private static final int COUNTER_BITS = 32;
+	private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+	/**
+	 * The largest node number that fits in an ID.
+	 */
+	public static final long MAX_NODE_ID = Long.MAX_VALUE >>> COUNTER_BITS;
+
+	// Last ID handed out, as (node << COUNTER_BITS | counter)
+	private final AtomicLong lastID = new AtomicLong();
+
+	/**
+	 * Creates a generator on node 0, with its counter at a random point.
+	 */
+	public RPCIDGenerator() {
+		lastID.set(new SecureRandom().nextInt() & COUNTER_MASK);
+	}
+
+	/**
+	 * Set the node number embedded in the IDs, and start its counter afresh.
+	 * The number must not be used by any other generator, so use the client ID.
+	 *
+	 * @param nodeID
+	 *            The number of this node, from 1 up to MAX_NODE_ID.
+	 * @throws IllegalArgumentException
+	 *             If the number does not fit in an ID.
+	 */
+	public void setNodeID(long nodeID) {
+		if (nodeID < 1 || nodeID > MAX_NODE_ID)
+			throw new IllegalArgumentException("Node number out of range: " + nodeID);
+		lastID.set(nodeID << COUNTER_BITS);
+	}
+
+	/**
+	 * Returns a new globally unique RPC ID. Safe to call from several threads.
+	 *
+	 * @return A positive ID.
+	 */
+	public long getNextID() {
+		while (true) {
+			long last = lastID.get();
+
+			// Count on, wrapping around within the node
+			long next = (last & ~COUNTER_MASK) | ((last + 1) & COUNTER_MASK);
+			if (lastID.compareAndSet(last, next))
+				return next;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/* Tests for MessageListCodec: lists survive the round trip field for field, including missing
+ * contents and receive dates, and damaged input fails with an IOException rather than anything worse.
+ */
+package components.communication.marshalling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import org.junit.Test;
+
+import components.messages.ChatMessage;
+
+public class MessageListCodecTest {
+
+	@Test
+	public void roundTripsAllFields() throws IOException {
+		Calendar receiveDate = Calendar.getInstance();
+		receiveDate.setTimeInMillis(1234567890123L);
+		List<ChatMessage> messages = Arrays.asList(new ChatMessage(1, 2, 3, "hello", receiveDate), new ChatMessage(
+				Long.MAX_VALUE, 0, 300, "caf\u00e9 \u4f60\u597d \ud83d\ude00", receiveDate), new ChatMessage(4, 5, 6,
+				"", receiveDate));
+
+		List<ChatMessage> decoded = MessageListCodec.decode(MessageListCodec.encode(messages));
+		assertEquals(messages.size(), decoded.size());
+		for (int i = 0; i < messages.size(); i++)
+			assertSameMessage(messages.get(i), decoded.get(i));
+	}
+
+	@Test
+	public void keepsNullContentApartFromEmptyContent() throws IOException {
+		List<ChatMessage> decoded = MessageListCodec.decode(MessageListCodec.encode(Arrays.asList(new ChatMessage(1,
+				2, 3, null, Calendar.getInstance()), new ChatMessage(4, 5, 6, "", Calendar.getInstance()))));
+		assertNull(decoded.get(0).getMessage());
+		assertEquals("", decoded.get(1).getMessage());
+	}
+
+	@Test
+	public void keepsANullReceiveDate() throws IOException {
+		ChatMessage message = new ChatMessage(1, 2, 3, "undated", null);
+		List<ChatMessage> decoded = MessageListCodec.decode(MessageListCodec.encode(Arrays.asList(message)));
+		assertNull(decoded.get(0).getReceiveDate());
+		assertSameMessage(message, decoded.get(0));
+	}
+
+	@Test
+	public void roundTripsAnEmptyList() throws IOException {
+		assertTrue(MessageListCodec.decode(MessageListCodec.encode(new ArrayList<ChatMessage>())).isEmpty());
+	}
+
+	@Test
+	public void rejectsTruncatedInputAtEveryLength() {
+		byte[] encoded = MessageListCodec.encode(Arrays.asList(new ChatMessage(1, 2, 3, "first", Calendar
+				.getInstance()), new ChatMessage(300, 400, 500, "second", null)));
+		for (int length = 0; length < encoded.length; length++)
+			try {
+				MessageListCodec.decode(Arrays.copyOf(encoded, length));
+				fail("Decoded " + length + " of " + encoded.length + " bytes");
+			} catch (IOException e) {
+				// Expected
+			}
+	}
+
+	@Test
+	public void rejectsJavaSerializationAndUnknownVersions() {
+		assertRejected(new byte[] { MessageListCodec.JAVA_SERIALIZATION, (byte) 0xED, 0, 5 });
+		assertRejected(new byte[] { MessageListCodec.VERSION + 1, 0 });
+	}
+
+	@Test
+	public void rejectsACountLargerThanTheInput() {
+		// Claims a million messages in a handful of bytes
+		assertRejected(new byte[] { MessageListCodec.VERSION, (byte) 0xC0, (byte) 0x84, 0x3D, 0, 0, 0, 0, 0 });
+	}
+
+	@Test
+	public void rejectsAContentLengthPastTheEnd() {
+		assertRejected(new byte[] { MessageListCodec.VERSION, 1, 1, 2, 3, 1, 100, 'a', 'b' });
+	}
+
+	@Test
+	public void rejectsANegativeContentLength() {
+		// A length field of 2^64 - 1, which would decode to a content length of -2
+		assertRejected(new byte[] { MessageListCodec.VERSION, 1, 1, 2, 3, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+				(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01, 'a', 'b', 'c', 'd' });
+	}
+
+	private static void assertRejected(byte[] data) {
+		try {
+			MessageListCodec.decode(data);
+			fail("Decoded invalid data");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private static void assertSameMessage(ChatMessage expected, ChatMessage actual) {
+		assertEquals(expected.getID(), actual.getID());
+		assertEquals(expected.getSenderID(), actual.getSenderID());
+		assertEquals(expected.getRecipientID(), actual.getRecipientID());
+		assertEquals(expected.getMessage(), actual.getMessage());
+		if (expected.getReceiveDate() == null)
+			assertNull(actual.getReceiveDate());
+		else
+			assertEquals(expected.getReceiveDate().getTimeInMillis(), actual.getReceiveDate().getTimeInMillis());
+	}
+}
@@ -0,0 +1,217 @@
+/* Tests for Inbox: concurrent adds and drains hand out every ID exactly once, the quota
+ * accounting comes back to zero once everything is drained and released, and a retired
+ * inbox takes no more messages or waiters.
+ */
+package components.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongPredicate;
+
+import org.junit.Test;
+
+public class InboxTest {
+
+	private static final int THREAD_COUNT = 4;
+	private static final int IDS_PER_THREAD = 20000;
+
+	@Test
+	public void drainsInDepositOrder() {
+		Inbox inbox = new Inbox();
+		inbox.addAll(new long[] { 1, 2, 3 });
+		inbox.add(4);
+		assertArrayEquals(new long[] { 1, 2, 3, 4 }, inbox.peek());
+		assertArrayEquals(new long[] { 1, 2, 3, 4 }, inbox.drain());
+		assertArrayEquals(new long[0], inbox.drain());
+	}
+
+	@Test
+	public void drainsEveryIDExactlyOnceUnderContention() throws InterruptedException {
+		final Inbox inbox = new Inbox();
+		final AtomicInteger addersLeft = new AtomicInteger(THREAD_COUNT);
+		final List<List<Long>> drained = new ArrayList<List<Long>>();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+
+		for (int t = 0; t < THREAD_COUNT; t++) {
+			final long firstID = (long) t * IDS_PER_THREAD + 1;
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					for (long id = firstID; id < firstID + IDS_PER_THREAD; id++)
+						inbox.add(id);
+					addersLeft.decrementAndGet();
+				}
+			});
+			final List<Long> drainedByThread = new ArrayList<Long>();
+			drained.add(drainedByThread);
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					boolean isLastRound = false;
+					while (!isLastRound) {
+						isLastRound = addersLeft.get() == 0;
+						for (long id : inbox.drain())
+							drainedByThread.add(Long.valueOf(id));
+					}
+				}
+			});
+		}
+		runConcurrently(tasks);
+
+		Set<Long> seen = new HashSet<Long>();
+		int drainedCount = 0;
+		for (List<Long> drainedByThread : drained)
+			for (Long id : drainedByThread) {
+				assertTrue("Drained twice: " + id, seen.add(id));
+				drainedCount++;
+			}
+		assertEquals(THREAD_COUNT * IDS_PER_THREAD, drainedCount);
+	}
+
+	@Test
+	public void accountingReturnsToZeroAfterConcurrentDrains() throws InterruptedException {
+		final Inbox inbox = new Inbox();
+		final int maxMessages = 50;
+		final long maxBytes = 50 * 10;
+		final AtomicInteger addersLeft = new AtomicInteger(THREAD_COUNT);
+		final AtomicInteger refusedCount = new AtomicInteger();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+
+		for (int t = 0; t < THREAD_COUNT; t++) {
+			final long firstID = (long) t * IDS_PER_THREAD + 1;
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					for (long id = firstID; id < firstID + IDS_PER_THREAD; id++)
+						if (inbox.reserve(10, maxMessages, maxBytes))
+							inbox.add(id);
+						else
+							refusedCount.incrementAndGet();
+					addersLeft.decrementAndGet();
+				}
+			});
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					boolean isLastRound = false;
+					while (!isLastRound) {
+						isLastRound = addersLeft.get() == 0;
+						// The quota is never exceeded, even for a moment
+						assertTrue(inbox.getStoredMessages() <= maxMessages);
+						for (int i = inbox.drain().length; i > 0; i--)
+							inbox.releaseStored(10);
+					}
+				}
+			});
+		}
+		runConcurrently(tasks);
+
+		assertTrue("The quota never filled", refusedCount.get() > 0);
+		assertEquals(0, inbox.getStoredMessages());
+		assertTrue(inbox.isEmpty());
+		// All the bytes were given back too
+		assertTrue(inbox.reserve(maxBytes, maxMessages, maxBytes));
+		assertFalse(inbox.reserve(1, maxMessages, maxBytes));
+	}
+
+	@Test
+	public void releasesTheSpaceOfAMessageThatWasNotStored() {
+		Inbox inbox = new Inbox();
+		assertTrue(inbox.reserve(10, 1, 0));
+		assertFalse(inbox.reserve(10, 1, 0));
+		inbox.release(10);
+		assertTrue(inbox.reserve(10, 1, 0));
+		// Reserved but not added, so nothing to drain yet
+		assertTrue(inbox.isEmpty());
+	}
+
+	@Test
+	public void retiresOnlyWhenNothingIsStoredOrAwaited() {
+		Inbox inbox = new Inbox();
+		assertTrue(inbox.reserve(5, 0, 0));
+		inbox.add(1);
+		assertFalse(inbox.retire());
+
+		inbox.drain();
+		inbox.releaseStored(5);
+		CompletableFuture<Void> waiter = new CompletableFuture<Void>();
+		assertTrue(inbox.addWaiter(waiter));
+		assertFalse(inbox.retire());
+
+		waiter.complete(null);
+		assertTrue(inbox.retire());
+		assertTrue(inbox.isRetired());
+		assertFalse(inbox.reserve(5, 0, 0));
+		assertFalse(inbox.addWaiter(new CompletableFuture<Void>()));
+	}
+
+	@Test
+	public void wakesAWaiterOnTheNextAdd() {
+		Inbox inbox = new Inbox();
+		CompletableFuture<Void> waiter = new CompletableFuture<Void>();
+		assertTrue(inbox.addWaiter(waiter));
+		assertFalse(waiter.isDone());
+		inbox.reserve(0, 0, 0);
+		inbox.add(1);
+		assertTrue(waiter.isDone());
+	}
+
+	@Test
+	public void prunesTheIDsOfRemovedMessages() {
+		Inbox inbox = new Inbox();
+		for (long id = 1; id <= 4; id++) {
+			inbox.reserve(0, 0, 0);
+			inbox.add(id);
+		}
+		// Messages 1 to 3 removed other than by drain(), eg. expired
+		for (int i = 0; i < 3; i++)
+			inbox.releaseStored(0);
+		assertEquals(3, inbox.prune(new LongPredicate() {
+			@Override
+			public boolean test(long messageID) {
+				return messageID == 4;
+			}
+		}));
+		assertEquals(Arrays.toString(new long[] { 4 }), Arrays.toString(inbox.peek()));
+	}
+
+	// Start all the tasks together, and wait for them to finish, passing on the first failure
+	static void runConcurrently(List<Runnable> tasks) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (final Runnable task : tasks) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						task.run();
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		if (!failures.isEmpty())
+			throw new AssertionError(failures.get(0));
+	}
+}
@@ -0,0 +1,152 @@
+/* Tests for Mailbox.recover(...): a mailbox rebuilt from the snapshot and the log left by
+ * another one holds the same messages, whether or not the segments behind the snapshot
+ * were deleted, and its ID generator carries on past every restored ID.
+ */
+package components.messages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import components.messages.persistence.WriteAheadLog;
+import components.notices.Status;
+import components.utilities.IDGenerator;
+
+public class MailboxRecoveryTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// Messages 2, 3 and 5 are left once all the changes are applied
+	private static final List<Long> EXPECTED_IDS = Arrays.asList(Long.valueOf(2), Long.valueOf(3), Long.valueOf(5));
+
+	@Test
+	public void recoversFromTheSnapshotAndTheLogBehindIt() throws IOException {
+		File directory = folder.getRoot();
+		writeHistory(directory, false);
+
+		Mailbox mailbox = new Mailbox();
+		WriteAheadLog log = open(directory);
+		mailbox.setWriteAheadLog(log);
+		IDGenerator idGenerator = new IDGenerator();
+		assertEquals(3, mailbox.recover(idGenerator));
+		log.close();
+
+		assertEquals(EXPECTED_IDS, getIDs(mailbox.getMessagesByRecipient(7, false)));
+		assertEquals("three", mailbox.getMessageById(3, false).getMessage());
+		assertNull(mailbox.getMessageById(2, false).getMessage());
+		assertEquals(EXPECTED_IDS, getIDs(mailbox.getMessagesBySender(5, false)));
+		// Past the sequences saved in the snapshot, and every restored ID
+		assertEquals(42, idGenerator.getCurrentInSequence("message"));
+		assertEquals(9, idGenerator.getCurrentInSequence("client"));
+	}
+
+	@Test
+	public void recoversAfterACrashBetweenSnapshotAndTruncation() throws IOException {
+		// The snapshot is in place, but the segments it covers were never deleted
+		File directory = folder.getRoot();
+		writeHistory(directory, true);
+		assertEquals(true, new File(directory, "mailbox-1.wal").exists());
+
+		Mailbox mailbox = new Mailbox();
+		WriteAheadLog log = open(directory);
+		mailbox.setWriteAheadLog(log);
+		assertEquals(3, mailbox.recover(new IDGenerator()));
+		log.close();
+
+		assertEquals(EXPECTED_IDS, getIDs(mailbox.drainMessages(7)));
+		assertEquals(0, mailbox.getMessageCount());
+	}
+
+	@Test
+	public void recoversTheRecoveredState() throws IOException {
+		// A recovered mailbox logs on where the last one stopped, so recovering again comes to the same state
+		File directory = folder.getRoot();
+		writeHistory(directory, false);
+
+		Mailbox mailbox = new Mailbox();
+		WriteAheadLog log = open(directory);
+		mailbox.setWriteAheadLog(log);
+		IDGenerator idGenerator = new IDGenerator();
+		mailbox.recover(idGenerator);
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(idGenerator.getNextInSequence("message"), "six")));
+		mailbox.getMessageById(2, true);
+		log.close();
+
+		mailbox = new Mailbox();
+		log = open(directory);
+		mailbox.setWriteAheadLog(log);
+		assertEquals(3, mailbox.recover(new IDGenerator()));
+		log.close();
+		assertEquals(Arrays.asList(Long.valueOf(3), Long.valueOf(5), Long.valueOf(43)),
+				getIDs(mailbox.getMessagesByRecipient(7, false)));
+	}
+
+	@Test
+	public void startsEmptyWithNoSnapshotAndNoLog() throws IOException {
+		Mailbox mailbox = new Mailbox();
+		WriteAheadLog log = open(folder.getRoot());
+		mailbox.setWriteAheadLog(log);
+		assertEquals(0, mailbox.recover(new IDGenerator()));
+		log.close();
+		assertEquals(0, mailbox.getMessageCount());
+	}
+
+	// Make some changes through a mailbox, with a snapshot in the middle, then drop the mailbox as in a crash.
+	// Optionally, put back the segments the snapshot deleted, as if the crash came before their deletion.
+	private static void writeHistory(File directory, boolean keepSegments) throws IOException {
+		Mailbox mailbox = new Mailbox();
+		WriteAheadLog log = open(directory);
+		mailbox.setWriteAheadLog(log);
+		IDGenerator idGenerator = new IDGenerator();
+		idGenerator.setNextInSequence("message", 42);
+		idGenerator.setNextInSequence("client", 9);
+
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(1, "one")));
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(2, null)));
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(3, "three")));
+		mailbox.getMessageById(1, true);
+
+		File segment = new File(directory, "mailbox-1.wal");
+		File savedSegment = new File(directory, "saved.tmp");
+		if (keepSegments)
+			Files.copy(segment.toPath(), savedSegment.toPath());
+		assertEquals(2, mailbox.takeSnapshot(idGenerator));
+		if (keepSegments)
+			Files.move(savedSegment.toPath(), segment.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(4, "four")));
+		mailbox.getMessageById(4, true);
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(5, "five")));
+		log.close();
+	}
+
+	private static WriteAheadLog open(File directory) throws IOException {
+		return new WriteAheadLog(directory, WriteAheadLog.SyncPolicy.EVERY_WRITE, 0, 0);
+	}
+
+	private static ChatMessage message(long id, String content) {
+		Calendar receiveDate = Calendar.getInstance();
+		receiveDate.setTimeInMillis(1000000000000L + id);
+		return new ChatMessage(id, 5, 7, content, receiveDate);
+	}
+
+	private static List<Long> getIDs(List<ChatMessage> messages) {
+		List<Long> messageIDs = new ArrayList<Long>();
+		for (ChatMessage message : messages)
+			messageIDs.add(Long.valueOf(message.getID()));
+		return messageIDs;
+	}
+}
@@ -0,0 +1,156 @@
+/* Tests for Mailbox: inbox quotas turn away deposits until the inbox is drained, expired
+ * messages leave the rest alone, and inboxes let go of by forgetClient(...) lose neither
+ * deposits nor waiters, even while deposits, drains and removals race each other.
+ */
+package components.messages;
+
+import static components.messages.InboxTest.runConcurrently;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import components.notices.Status;
+
+public class MailboxTest {
+
+	private static final long SENDER_ID = 5;
+	private static final long RECIPIENT_ID = 7;
+
+	private static final int THREAD_COUNT = 4;
+	private static final int MESSAGES_PER_THREAD = 5000;
+
+	@Test
+	public void turnsAwayDepositsOverTheMessageQuota() {
+		Mailbox mailbox = new Mailbox();
+		mailbox.setInboxQuota(2, 0);
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(1, "one")));
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(2, "two")));
+		assertEquals(Status.INBOX_FULL, mailbox.addMessage(message(3, "three")));
+		// Other recipients have quotas of their own
+		assertEquals(Status.SUCCESS, mailbox.addMessage(new ChatMessage(4, SENDER_ID, RECIPIENT_ID + 1, "four",
+				Calendar.getInstance())));
+
+		assertEquals(2, mailbox.drainMessages(RECIPIENT_ID).size());
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(5, "five")));
+		assertEquals(1, mailbox.getInboxSize(RECIPIENT_ID));
+	}
+
+	@Test
+	public void turnsAwayDepositsOverTheByteQuota() {
+		Mailbox mailbox = new Mailbox();
+		mailbox.setInboxQuota(0, 10);
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(1, "hello")));
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(2, "world")));
+		assertEquals(Status.INBOX_FULL, mailbox.addMessage(message(3, "!")));
+
+		// Removing a message by ID gives its space back too
+		mailbox.getMessageById(1, true);
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(4, "again")));
+	}
+
+	@Test
+	public void keepsTheInboxOfAForgottenClientWithMail() {
+		Mailbox mailbox = new Mailbox();
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(1, "one")));
+		mailbox.forgetClient(RECIPIENT_ID);
+		assertEquals(1, mailbox.drainMessages(RECIPIENT_ID).size());
+
+		// Once empty, it is let go of, and the next deposit gets a fresh one
+		mailbox.forgetClient(RECIPIENT_ID);
+		assertEquals(0, mailbox.getInboxSize(RECIPIENT_ID));
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(2, "two")));
+		assertEquals(1, mailbox.drainMessages(RECIPIENT_ID).size());
+	}
+
+	@Test
+	public void keepsTheWaitersOfAForgottenClient() {
+		Mailbox mailbox = new Mailbox();
+		CompletableFuture<Void> arrival = mailbox.awaitMessages(RECIPIENT_ID);
+		mailbox.forgetClient(RECIPIENT_ID);
+		assertFalse(arrival.isDone());
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(1, "one")));
+		assertTrue(arrival.isDone());
+	}
+
+	@Test
+	public void expiresMessagesAndKeepsTheInboxesStillInUse() {
+		Mailbox mailbox = new Mailbox();
+		mailbox.setMessageTTL(1000);
+		Calendar longAgo = Calendar.getInstance();
+		longAgo.setTimeInMillis(0);
+		assertEquals(Status.SUCCESS, mailbox.addMessage(new ChatMessage(1, SENDER_ID, RECIPIENT_ID, "old", longAgo)));
+		assertEquals(Status.SUCCESS, mailbox.addMessage(message(2, "new")));
+		assertEquals(Status.SUCCESS, mailbox.addMessage(new ChatMessage(3, SENDER_ID, RECIPIENT_ID + 1, "old",
+				longAgo)));
+
+		assertEquals(2, mailbox.expireMessages());
+		assertEquals(1, mailbox.getInboxSize(RECIPIENT_ID));
+		assertEquals(0, mailbox.getInboxSize(RECIPIENT_ID + 1));
+		assertEquals(2, mailbox.drainMessages(RECIPIENT_ID).get(0).getID());
+		assertEquals(0, mailbox.expireMessages());
+	}
+
+	@Test
+	public void losesNoDepositWhileInboxesAreRetired() throws InterruptedException {
+		final Mailbox mailbox = new Mailbox();
+		mailbox.setInboxQuota(100, 0);
+		final AtomicInteger depositorsLeft = new AtomicInteger(THREAD_COUNT);
+		final AtomicInteger refusedCount = new AtomicInteger();
+		final List<List<Long>> drained = new ArrayList<List<Long>>();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+
+		for (int t = 0; t < THREAD_COUNT; t++) {
+			final long firstID = (long) t * MESSAGES_PER_THREAD + 1;
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					for (long id = firstID; id < firstID + MESSAGES_PER_THREAD; id++)
+						// Retry a full inbox, so that every message gets in eventually
+						while (mailbox.addMessage(message(id, "x")) == Status.INBOX_FULL) {
+							refusedCount.incrementAndGet();
+							Thread.yield();
+						}
+					depositorsLeft.decrementAndGet();
+				}
+			});
+			final List<Long> drainedByThread = new ArrayList<Long>();
+			drained.add(drainedByThread);
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					boolean isLastRound = false;
+					while (!isLastRound) {
+						isLastRound = depositorsLeft.get() == 0;
+						for (ChatMessage message : mailbox.drainMessages(RECIPIENT_ID))
+							drainedByThread.add(Long.valueOf(message.getID()));
+						// Let go of the inbox whenever it is empty, racing the deposits
+						mailbox.forgetClient(RECIPIENT_ID);
+					}
+				}
+			});
+		}
+		runConcurrently(tasks);
+
+		Set<Long> seen = new HashSet<Long>();
+		for (List<Long> drainedByThread : drained)
+			for (Long id : drainedByThread)
+				assertTrue("Drained twice: " + id, seen.add(id));
+		assertEquals(THREAD_COUNT * MESSAGES_PER_THREAD, seen.size());
+		assertEquals(0, mailbox.getMessageCount());
+		assertEquals(0, mailbox.getInboxSize(RECIPIENT_ID));
+	}
+
+	private static ChatMessage message(long id, String content) {
+		return new ChatMessage(id, SENDER_ID, RECIPIENT_ID, content, Calendar.getInstance());
+	}
+}
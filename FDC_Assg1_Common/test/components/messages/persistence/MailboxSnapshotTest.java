@@ -0,0 +1,137 @@
+/* Tests for reading snapshots back: the latest one is found, while unfinished or corrupt ones
+ * are skipped, and a snapshot gone missing with the segments it covered is noticed.
+ * Recovering a mailbox from them is tested in MailboxRecoveryTest.
+ */
+package components.messages.persistence;
+
+import static components.messages.persistence.WriteAheadLogTest.message;
+import static components.messages.persistence.WriteAheadLogTest.open;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import components.messages.ChatMessage;
+
+public class MailboxSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+
+	@Before
+	public void setUp() {
+		directory = folder.getRoot();
+	}
+
+	@Test
+	public void readsTheLatestSnapshot() throws IOException {
+		long segment = writeHistory();
+
+		WriteAheadLog log = open(directory);
+		MailboxSnapshot snapshot = MailboxSnapshot.readLatest(directory, log.getFirstSegment());
+		log.close();
+		assertEquals(segment, snapshot.getWalSegment());
+		assertEquals(42, snapshot.getMessageSequence());
+		assertEquals(9, snapshot.getClientSequence());
+		assertEquals(3, snapshot.getMessages().size());
+		assertEquals("three", snapshot.getMessages().get(1).getMessage());
+	}
+
+	@Test
+	public void ignoresAnUnfinishedSnapshot() throws IOException {
+		long segment = writeHistory();
+
+		// A crash while writing the next snapshot leaves only its temporary file
+		FileOutputStream out = new FileOutputStream(new File(directory, "mailbox-" + (segment + 1)
+				+ ".snapshot.tmp"));
+		try {
+			out.write(new byte[] { 1, 2, 3 });
+		} finally {
+			out.close();
+		}
+
+		assertEquals(segment, MailboxSnapshot.readLatest(directory, 1).getWalSegment());
+	}
+
+	@Test
+	public void fallsBackToAnOlderSnapshotWhenTheLatestIsCorrupt() throws IOException {
+		long segment = writeHistory();
+		WriteAheadLog log = open(directory);
+		long nextSegment = log.roll();
+		MailboxSnapshot.write(directory, nextSegment, 43, 9, Arrays.asList(message(2, null)).iterator());
+		log.close();
+
+		// Flip a byte of the latest snapshot, so that its checksum no longer matches
+		RandomAccessFile file = new RandomAccessFile(new File(directory, "mailbox-" + nextSegment + ".snapshot"), "rw");
+		try {
+			file.seek(file.length() / 2);
+			int value = file.read();
+			file.seek(file.length() / 2);
+			file.write(value ^ 0xFF);
+		} finally {
+			file.close();
+		}
+
+		MailboxSnapshot snapshot = MailboxSnapshot.readLatest(directory, 1);
+		assertEquals(segment, snapshot.getWalSegment());
+	}
+
+	@Test
+	public void refusesToRecoverWithoutTheSnapshotForDeletedSegments() throws IOException {
+		long segment = writeHistory();
+		WriteAheadLog log = open(directory);
+		log.deleteSegmentsBefore(segment);
+		log.close();
+		assertTrue(new File(directory, "mailbox-" + segment + ".snapshot").delete());
+
+		log = open(directory);
+		try {
+			MailboxSnapshot.readLatest(directory, log.getFirstSegment());
+			fail("Recovered without the segments before " + segment);
+		} catch (IOException e) {
+			// Expected
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void startsEmptyWithNoSnapshotAndTheWholeLog() throws IOException {
+		WriteAheadLog log = open(directory);
+		log.logAdded(message(1, "one"));
+		log.close();
+
+		assertNull(MailboxSnapshot.readLatest(directory, 1));
+	}
+
+	// Log some changes, then snapshot them the way Mailbox.takeSnapshot(...) does, and carry on logging
+	private long writeHistory() throws IOException {
+		WriteAheadLog log = open(directory);
+		log.logAdded(Arrays.asList(message(1, "one"), message(2, null), message(3, "three")));
+		log.logRemoved(Arrays.asList(message(1, "one")));
+
+		long segment = log.roll();
+		// Changes made while the snapshot is taken go to the new segment; the snapshot may or may not see them
+		log.logAdded(message(4, "four"));
+		List<ChatMessage> saved = Arrays.asList(message(2, null), message(3, "three"), message(4, "four"));
+		MailboxSnapshot.write(directory, segment, 42, 9, saved.iterator());
+		log.logRemoved(Arrays.asList(message(4, "four")));
+		assertTrue(log.awaitDurable(log.logAdded(message(5, "five"))));
+		log.close();
+		return segment;
+	}
+}
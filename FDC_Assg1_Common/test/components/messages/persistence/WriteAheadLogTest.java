@@ -0,0 +1,158 @@
+/* Tests for WriteAheadLog: records come back in order after reopening, a torn record at
+ * the end is discarded and written over, and a gap between segments or a bad record in an
+ * earlier segment stops the replay.
+ */
+package components.messages.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import components.messages.ChatMessage;
+
+public class WriteAheadLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replaysAdditionsAndRemovalsInOrder() throws IOException {
+		File directory = folder.getRoot();
+		WriteAheadLog log = open(directory);
+		log.logAdded(message(1, "first"));
+		log.logAdded(Arrays.asList(message(2, "second"), message(3, null)));
+		assertTrue(log.awaitDurable(log.logRemoved(Arrays.asList(message(1, "first")))));
+		log.close();
+
+		Recorder recorder = new Recorder();
+		log = open(directory);
+		assertEquals(4, log.replay(1, recorder));
+		log.close();
+
+		assertEquals(Arrays.asList("added 1", "added 2", "added 3", "removed 1"), recorder.records);
+		assertEquals("second", recorder.added.get(1).getMessage());
+		assertEquals(null, recorder.added.get(2).getMessage());
+		assertEquals(7, recorder.added.get(1).getRecipientID());
+	}
+
+	@Test
+	public void discardsATornRecordAndWritesOverIt() throws IOException {
+		File directory = folder.getRoot();
+		WriteAheadLog log = open(directory);
+		assertTrue(log.awaitDurable(log.logAdded(message(1, "kept"))));
+		log.close();
+
+		// Half a record, as left by a crash in the middle of a write
+		FileOutputStream out = new FileOutputStream(new File(directory, "mailbox-1.wal"), true);
+		try {
+			out.write(new byte[] { 0, 0, 0, 40, 1, 2 });
+		} finally {
+			out.close();
+		}
+
+		log = open(directory);
+		assertEquals(1, log.replay(1, new Recorder()));
+		assertTrue(log.awaitDurable(log.logAdded(message(2, "after the crash"))));
+		log.close();
+
+		Recorder recorder = new Recorder();
+		log = open(directory);
+		assertEquals(2, log.replay(1, recorder));
+		log.close();
+		assertEquals(Arrays.asList("added 1", "added 2"), recorder.records);
+	}
+
+	@Test
+	public void refusesToReplayPastAMissingSegment() throws IOException {
+		File directory = folder.getRoot();
+		WriteAheadLog log = open(directory);
+		log.logAdded(message(1, "in segment 1"));
+		log.roll();
+		log.logAdded(message(2, "in segment 2"));
+		log.roll();
+		log.logAdded(message(3, "in segment 3"));
+		log.close();
+
+		assertTrue(new File(directory, "mailbox-2.wal").delete());
+		log = open(directory);
+		try {
+			log.replay(1, new Recorder());
+			fail("Replayed over a missing segment");
+		} catch (IOException e) {
+			// Expected
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void refusesToReplayPastABadRecordInAnEarlierSegment() throws IOException {
+		File directory = folder.getRoot();
+		WriteAheadLog log = open(directory);
+		log.logAdded(message(1, "in segment 1"));
+		log.roll();
+		log.logAdded(message(2, "in segment 2"));
+		log.close();
+
+		// Damage the record in the middle of the first segment; only the latest one may be torn
+		RandomAccessFile file = new RandomAccessFile(new File(directory, "mailbox-1.wal"), "rw");
+		try {
+			file.seek(file.length() - 3);
+			int damaged = 0xFF ^ file.read();
+			file.seek(file.length() - 3);
+			file.write(damaged);
+		} finally {
+			file.close();
+		}
+
+		log = open(directory);
+		try {
+			log.replay(1, new Recorder());
+			fail("Replayed past a bad record");
+		} catch (IOException e) {
+			// Expected
+		} finally {
+			log.close();
+		}
+	}
+
+	// Keeps what the replay hands over, in order
+	private static class Recorder implements WriteAheadLog.ReplayHandler {
+		private final List<String> records = new ArrayList<String>();
+		private final List<ChatMessage> added = new ArrayList<ChatMessage>();
+
+		@Override
+		public void added(ChatMessage message) {
+			records.add("added " + message.getID());
+			added.add(message);
+		}
+
+		@Override
+		public void removed(long messageID) {
+			records.add("removed " + messageID);
+		}
+	}
+
+	static WriteAheadLog open(File directory) throws IOException {
+		return new WriteAheadLog(directory, WriteAheadLog.SyncPolicy.EVERY_WRITE, 0, 0);
+	}
+
+	static ChatMessage message(long id, String content) {
+		Calendar receiveDate = Calendar.getInstance();
+		receiveDate.setTimeInMillis(1000000000000L + id);
+		return new ChatMessage(id, 5, 7, content, receiveDate);
+	}
+}
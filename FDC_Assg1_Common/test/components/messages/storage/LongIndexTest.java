@@ -0,0 +1,107 @@
+/* Tests for LongIndex: lookups keep finding every entry as others are removed from the middle
+ * of a probe run and put back (the backward-shift delete), through growing and shrinking,
+ * and the cursor walks over every value.
+ */
+package components.messages.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongIndexTest {
+
+	@Test
+	public void findsTheRestAfterRemovingAndReinserting() {
+		LongIndex index = new LongIndex();
+		// Enough keys that every stripe has long probe runs to remove from
+		for (long key = 0; key < 5000; key++)
+			assertEquals(LongIndex.NO_VALUE, index.put(key, key * 2));
+
+		for (long key = 0; key < 5000; key += 3)
+			assertEquals(key * 2, index.remove(key));
+		for (long key = 0; key < 5000; key++)
+			assertEquals(key % 3 == 0 ? LongIndex.NO_VALUE : key * 2, index.get(key));
+
+		// Putting the removed keys back finds free slots in the runs again
+		for (long key = 0; key < 5000; key += 3)
+			assertEquals(LongIndex.NO_VALUE, index.put(key, key * 2 + 1));
+		for (long key = 0; key < 5000; key++)
+			assertEquals(key % 3 == 0 ? key * 2 + 1 : key * 2, index.get(key));
+		assertEquals(5000, index.size());
+	}
+
+	@Test
+	public void agreesWithAHashMapOverRandomChanges() {
+		LongIndex index = new LongIndex();
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		Random random = new Random(42);
+		for (int i = 0; i < 200000; i++) {
+			// A small key space, so that keys are removed and put back often
+			long key = random.nextInt(3000) - 1000;
+			if (random.nextInt(3) == 0) {
+				Long removed = expected.remove(Long.valueOf(key));
+				assertEquals(removed != null ? removed.longValue() : LongIndex.NO_VALUE, index.remove(key));
+			} else {
+				long value = random.nextInt(Integer.MAX_VALUE);
+				Long replaced = expected.put(Long.valueOf(key), Long.valueOf(value));
+				assertEquals(replaced != null ? replaced.longValue() : LongIndex.NO_VALUE, index.put(key, value));
+			}
+		}
+
+		assertEquals(expected.size(), index.size());
+		for (long key = -1000; key < 2000; key++) {
+			Long value = expected.get(Long.valueOf(key));
+			assertEquals(value != null ? value.longValue() : LongIndex.NO_VALUE, index.get(key));
+		}
+	}
+
+	@Test
+	public void keepsItsEntriesWhileShrinking() {
+		LongIndex index = new LongIndex();
+		for (long key = 1; key <= 10000; key++)
+			index.put(key << 32, key);
+		// Down to a few entries, so that every stripe shrinks back
+		for (long key = 1; key <= 10000; key++)
+			if (key % 1000 != 0)
+				index.remove(key << 32);
+
+		assertEquals(10, index.size());
+		for (long key = 1000; key <= 10000; key += 1000)
+			assertEquals(key, index.get(key << 32));
+	}
+
+	@Test
+	public void walksOverEveryValue() {
+		LongIndex index = new LongIndex();
+		List<Long> expected = new ArrayList<Long>();
+		for (long key = 0; key < 1000; key++) {
+			index.put(key * 7919, key);
+			expected.add(Long.valueOf(key));
+		}
+
+		List<Long> walked = new ArrayList<Long>();
+		LongIndex.Cursor cursor = index.values();
+		while (cursor.hasNext())
+			walked.add(Long.valueOf(cursor.next()));
+		Collections.sort(walked);
+		assertEquals(expected, walked);
+	}
+
+	@Test
+	public void refusesNegativeValues() {
+		try {
+			new LongIndex().put(1, -5);
+			fail("Stored a negative value");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+}
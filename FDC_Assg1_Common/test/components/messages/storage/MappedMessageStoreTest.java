@@ -0,0 +1,140 @@
+/* Tests for MappedMessageStore: messages come back as stored, a segment's file is deleted once
+ * all of its messages are removed, and segments left from an earlier run are cleared out.
+ */
+package components.messages.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import components.messages.ChatMessage;
+
+public class MappedMessageStoreTest {
+
+	// Room for seven messages of CONTENT per segment
+	private static final int SEGMENT_SIZE = 1024;
+	private static final String CONTENT = String.format("%0100d", Integer.valueOf(0));
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MappedMessageStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new MappedMessageStore(folder.getRoot(), SEGMENT_SIZE);
+	}
+
+	@After
+	public void tearDown() {
+		store.close();
+	}
+
+	@Test
+	public void returnsMessagesAsStored() {
+		Calendar receiveDate = Calendar.getInstance();
+		receiveDate.setTimeInMillis(1234567890123L);
+		store.put(new ChatMessage(1, 5, 7, "héllo €", receiveDate));
+		store.put(new ChatMessage(2, 5, 8, null, null));
+
+		ChatMessage message = store.get(1);
+		assertEquals(5, message.getSenderID());
+		assertEquals(7, message.getRecipientID());
+		assertEquals("héllo €", message.getMessage());
+		assertEquals(1234567890123L, message.getReceiveDate().getTimeInMillis());
+		assertNull(store.get(2).getMessage());
+		assertNull(store.get(2).getReceiveDate());
+
+		assertEquals(1, store.remove(1).getID());
+		assertNull(store.remove(1));
+		assertNull(store.get(1));
+		assertEquals(1, store.size());
+	}
+
+	@Test
+	public void reclaimsSegmentsOnceEmptied() {
+		for (long id = 1; id <= 70; id++)
+			store.put(message(id));
+		int segmentCount = store.getSegmentCount();
+		assertTrue(segmentCount >= 10);
+		assertEquals(segmentCount, countSegmentFiles());
+
+		// Empty the oldest half of the segments, leaving a message in the last of them
+		for (long id = 1; id <= 34; id++)
+			store.remove(id);
+		assertTrue(store.getSegmentCount() <= segmentCount - 4);
+		assertEquals(store.getSegmentCount(), countSegmentFiles());
+
+		// The messages left are all still there
+		List<Long> left = new ArrayList<Long>();
+		Iterator<ChatMessage> messages = store.iterator();
+		while (messages.hasNext())
+			left.add(Long.valueOf(messages.next().getID()));
+		Collections.sort(left);
+		assertEquals(36, left.size());
+		assertEquals(Long.valueOf(35), left.get(0));
+
+		// The segment being written to is kept, even when empty
+		for (long id = 35; id <= 70; id++)
+			store.remove(id);
+		assertEquals(1, store.getSegmentCount());
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void turnsAwayMessagesLargerThanASegment() {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < SEGMENT_SIZE; i++)
+			content.append('x');
+		ChatMessage message = new ChatMessage(1, 5, 7, content.toString(), null);
+		assertFalse(store.fits(message));
+		assertTrue(store.fits(message(2)));
+		try {
+			store.put(message);
+			fail("Stored a message larger than a segment");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void clearsOutSegmentsFromAnEarlierRun() throws IOException {
+		store.close();
+		FileOutputStream out = new FileOutputStream(new File(folder.getRoot(), "messages-9.segment"));
+		out.close();
+
+		store = new MappedMessageStore(folder.getRoot(), SEGMENT_SIZE);
+		assertEquals(1, countSegmentFiles());
+		assertEquals(0, store.size());
+	}
+
+	private int countSegmentFiles() {
+		int count = 0;
+		for (String name : folder.getRoot().list())
+			if (name.endsWith(".segment"))
+				count++;
+		return count;
+	}
+
+	private static ChatMessage message(long id) {
+		return new ChatMessage(id, 5, 7, CONTENT, Calendar.getInstance());
+	}
+}
@@ -0,0 +1,103 @@
+/* Tests for CSVUtility: parse(...) splits like String.split(...) on the separator, which the
+ * original list-based version used, numbers are read in place exactly as Long.parseLong(...) would,
+ * and the Builder produces what toCSV(...) does.
+ */
+package components.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class CSVUtilityTest {
+
+	private static final String SEPARATOR = "#@#";
+
+	@Test
+	public void splitsLikeStringSplit() {
+		String[] inputs = { "", "a", "a#@#b", "a#@#b#@#c", "#@#", "#@##@#", "a#@#", "a#@##@#", "#@#a", "a#@##@#b",
+				"a#@#b#@#", "a#@b", "a##@#@#b", "  spaced #@# out  " };
+		for (String input : inputs) {
+			List<String> expected = Arrays.asList(input.split(Pattern.quote(SEPARATOR)));
+			assertEquals("Fields of \"" + input + "\"", expected, CSVUtility.fromCSV(input));
+
+			CSVUtility.Fields fields = CSVUtility.parse(input);
+			assertEquals("Field count of \"" + input + "\"", expected.size(), fields.size());
+			for (int i = 0; i < expected.size(); i++)
+				assertEquals(expected.get(i), fields.getString(i));
+		}
+	}
+
+	@Test
+	public void returnsNullForNoString() {
+		assertNull(CSVUtility.parse(null));
+		assertNull(CSVUtility.fromCSV(null));
+		assertEquals("", CSVUtility.toCSV(null));
+	}
+
+	@Test
+	public void parsesNumbersLikeParseLong() {
+		String[] numbers = { "0", "7", "-7", "+7", "0042", "9223372036854775807", "-9223372036854775808" };
+		CSVUtility.Fields fields = CSVUtility.parse(CSVUtility.toCSV(Arrays.asList(numbers)));
+		for (int i = 0; i < numbers.length; i++)
+			assertEquals(Long.parseLong(numbers[i]), fields.getLong(i));
+	}
+
+	@Test
+	public void rejectsWhatParseLongRejects() {
+		String[] notNumbers = { "", "-", "+", "1a", " 1", "1.5", "--1", "9223372036854775808",
+				"-9223372036854775809", "99999999999999999999" };
+		CSVUtility.Fields fields = CSVUtility.parse("x#@#" + CSVUtility.toCSV(Arrays.asList(notNumbers)) + "#@#x");
+		for (int i = 0; i < notNumbers.length; i++)
+			try {
+				fields.getLong(i + 1);
+				fail("Parsed \"" + notNumbers[i] + "\"");
+			} catch (NumberFormatException e) {
+				// Expected
+			}
+	}
+
+	@Test
+	public void reportsMissingFields() {
+		CSVUtility.Fields fields = CSVUtility.parse("1#@#2");
+		try {
+			fields.getLong(2);
+			fail("Parsed a missing field as a number");
+		} catch (NumberFormatException e) {
+			// Expected
+		}
+		try {
+			fields.getString(2);
+			fail("Returned a missing field");
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+		try {
+			fields.join(2, " ");
+			fail("Joined from a missing field");
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void joinsTheRemainingFields() {
+		CSVUtility.Fields fields = CSVUtility.parse("1#@#2#@#hello#@#there#@#world");
+		assertEquals("hello there world", fields.join(2, " "));
+		assertEquals("world", fields.join(4, " "));
+	}
+
+	@Test
+	public void buildsWhatToCSVDoes() {
+		List<String> data = new ArrayList<String>(Arrays.asList("12", "-3", "text with spaces", ""));
+		String built = new CSVUtility.Builder().add(12).add(-3).add("text with spaces").add("").build();
+		assertEquals(CSVUtility.toCSV(data), built);
+		assertEquals("", new CSVUtility.Builder().build());
+	}
+}
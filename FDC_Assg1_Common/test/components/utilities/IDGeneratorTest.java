@@ -0,0 +1,118 @@
+/* Tests for IDGenerator: IDs stay unique across threads and across a restart, and the high-water
+ * mark recorded in the file runs a block ahead of every ID handed out or advanced to.
+ */
+package components.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IDGeneratorTest {
+
+	private static final long BLOCK_SIZE = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void handsOutUniqueIDsUnderContention() throws InterruptedException {
+		final IDGenerator.Sequence sequence = new IDGenerator().getSequence("message");
+		final List<long[]> taken = new ArrayList<long[]>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final long[] ids = new long[10000];
+			taken.add(ids);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < ids.length; i++)
+						ids[i] = sequence.next();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		Set<Long> seen = new HashSet<Long>();
+		for (long[] ids : taken)
+			for (long id : ids)
+				assertTrue("Handed out twice: " + id, seen.add(Long.valueOf(id)));
+		assertEquals(40000, sequence.current());
+	}
+
+	@Test
+	public void recordsAMarkABlockAheadOfTheIDsHandedOut() throws IOException {
+		File file = new File(folder.getRoot(), "sequences.properties");
+		IDGenerator generator = new IDGenerator(file, BLOCK_SIZE);
+
+		assertEquals(1, generator.getNextInSequence("message"));
+		assertEquals(1 + BLOCK_SIZE, readMark(file, "message"));
+		// IDs within the block are handed out without moving the mark
+		for (long id = 2; id <= 1 + BLOCK_SIZE; id++)
+			assertEquals(id, generator.getNextInSequence("message"));
+		assertEquals(1 + BLOCK_SIZE, readMark(file, "message"));
+		// The first ID past it reserves the next block
+		assertEquals(2 + BLOCK_SIZE, generator.getNextInSequence("message"));
+		assertEquals(2 + 2 * BLOCK_SIZE, readMark(file, "message"));
+
+		// Moving the sequence forwards reserves a block past the new position too
+		generator.getSequence("client").advanceTo(100);
+		assertEquals(100 + BLOCK_SIZE, readMark(file, "client"));
+		generator.setNextInSequence("client", 200);
+		assertEquals(200 + BLOCK_SIZE, readMark(file, "client"));
+	}
+
+	@Test
+	public void neverRepeatsAnIDAfterARestart() throws IOException {
+		File file = new File(folder.getRoot(), "sequences.properties");
+		IDGenerator generator = new IDGenerator(file, BLOCK_SIZE);
+		long lastID = 0;
+		for (int i = 0; i < 25; i++)
+			lastID = generator.getNextInSequence("message");
+		generator.getSequence("client").advanceTo(7);
+
+		// A restart, without any chance to record where the sequences stopped
+		generator = new IDGenerator(file, BLOCK_SIZE);
+		long nextID = generator.getNextInSequence("message");
+		assertTrue(nextID > lastID);
+		// At most a block is skipped
+		assertTrue(nextID <= lastID + BLOCK_SIZE + 1);
+		assertTrue(generator.getNextInSequence("client") > 7);
+		// Unused sequences still start from 1
+		assertEquals(1, generator.getNextInSequence("transaction"));
+	}
+
+	@Test
+	public void neverMovesBackwardsOnAdvance() {
+		IDGenerator.Sequence sequence = new IDGenerator().getSequence("message");
+		sequence.advanceTo(50);
+		sequence.advanceTo(20);
+		assertEquals(50, sequence.current());
+		assertEquals(51, sequence.next());
+	}
+
+	private static long readMark(File file, String sequenceName) throws IOException {
+		Properties marks = new Properties();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			marks.load(in);
+		} finally {
+			in.close();
+		}
+		return Long.parseLong(marks.getProperty(sequenceName));
+	}
+}
@@ -0,0 +1,93 @@
+/* Tests for RPCIDGenerator: IDs are positive, increase within a node, never clash between
+ * nodes (nor with the IDs used before a node is set) or between threads, and node numbers
+ * that do not fit are refused.
+ */
+package components.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class RPCIDGeneratorTest {
+
+	@Test
+	public void increasesWithinANode() {
+		RPCIDGenerator generator = new RPCIDGenerator();
+		generator.setNodeID(3);
+		long previous = generator.getNextID();
+		for (int i = 0; i < 1000; i++) {
+			long next = generator.getNextID();
+			assertEquals(previous + 1, next);
+			previous = next;
+		}
+	}
+
+	@Test
+	public void neverClashesBetweenNodes() {
+		Set<Long> seen = new HashSet<Long>();
+		// Before a node is set, IDs lie below those of every node
+		RPCIDGenerator unset = new RPCIDGenerator();
+		long unsetID = unset.getNextID();
+		assertTrue(unsetID > 0 && unsetID < 1L << 32);
+		seen.add(Long.valueOf(unsetID));
+
+		long[] nodeIDs = { 1, 2, 1L << 20, RPCIDGenerator.MAX_NODE_ID };
+		for (long nodeID : nodeIDs) {
+			RPCIDGenerator generator = new RPCIDGenerator();
+			generator.setNodeID(nodeID);
+			for (int i = 0; i < 1000; i++) {
+				long id = generator.getNextID();
+				assertTrue(id > 0);
+				assertTrue("Clash: " + id, seen.add(Long.valueOf(id)));
+			}
+		}
+	}
+
+	@Test
+	public void handsOutUniqueIDsUnderContention() throws InterruptedException {
+		final RPCIDGenerator generator = new RPCIDGenerator();
+		generator.setNodeID(9);
+		final List<long[]> taken = new ArrayList<long[]>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final long[] ids = new long[10000];
+			taken.add(ids);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < ids.length; i++)
+						ids[i] = generator.getNextID();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		Set<Long> seen = new HashSet<Long>();
+		for (long[] ids : taken)
+			for (long id : ids)
+				assertTrue("Handed out twice: " + id, seen.add(Long.valueOf(id)));
+	}
+
+	@Test
+	public void refusesNodesThatDoNotFit() {
+		RPCIDGenerator generator = new RPCIDGenerator();
+		long[] badNodeIDs = { 0, -1, RPCIDGenerator.MAX_NODE_ID + 1 };
+		for (long nodeID : badNodeIDs)
+			try {
+				generator.setNodeID(nodeID);
+				fail("Accepted node " + nodeID);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+	}
+}
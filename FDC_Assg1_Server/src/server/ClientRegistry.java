@@ -0,0 +1,168 @@
+/* Registry of the clients currently connected to the server.
+ * Safe for concurrent use by the RMI threads: membership checks are constant-time
+ * lookups in a concurrent map, and admission against the client limit is an atomic
+ * compare-and-set on the connected count, so the limit can never be overshot.
+ * 
+ * Each client holds a lease that is renewed whenever it makes a request (or sends a heartbeat).
+ * Clients that stop renewing, eg. because their process died, are removed by reapExpired(...),
+ * which runs in the background and never blocks the request threads. A lease is ended with a
+ * compare-and-set on its renewal time, so a client renewing at the same moment either keeps its
+ * lease or is told it has none, never both.
+ * 
+ * Usage:
+ * 1. Admit a new client using admit(...); this fails once the limit is reached.
+ * 2. Check whether a client is connected using isConnected(...), or renew(...) to also extend its lease.
+ * 3. Remove a client using remove(...)
+ * 4. Periodically remove the clients whose leases have run out using reapExpired(...)
+ */
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import components.utilities.IDGenerator;
+
+class ClientRegistry {
+
+	// Lease of a connected client
+	private static class Lease {
+		// Last time (System.nanoTime()) the client was heard from, or ENDED once the lease is over
+		private final AtomicLong lastRenewed = new AtomicLong(System.nanoTime());
+		private static final long ENDED = Long.MIN_VALUE;
+
+		// Extend the lease, unless it has ended
+		private boolean renew() {
+			long renewed;
+			do {
+				renewed = lastRenewed.get();
+				if (renewed == ENDED)
+					return false;
+			} while (!lastRenewed.compareAndSet(renewed, System.nanoTime()));
+			return true;
+		}
+
+		// End the lease, if it was last renewed at the given time
+		private boolean end(long renewed) {
+			return lastRenewed.compareAndSet(renewed, ENDED);
+		}
+	}
+
+	// Most clients allowed to be connected at once
+	private final int maxClients;
+
+	// Connected clients and their leases
+	private final ConcurrentHashMap<Long, Lease> clients = new ConcurrentHashMap<Long, Lease>();
+
+	// Connected clients, plus any admissions in progress
+	private final AtomicInteger clientCount = new AtomicInteger();
+
+	/**
+	 * Creates an empty registry.
+	 * 
+	 * @param maxClients
+	 *            Most clients allowed to be connected at once.
+	 */
+	public ClientRegistry(int maxClients) {
+		this.maxClients = maxClients;
+	}
+
+	/**
+	 * Admit a new client, if the limit allows, under a freshly generated ID.
+	 * 
+	 * @param clientIDs
+	 *            The "client" ID sequence.
+	 * @return The new client's ID, or IDGenerator.NULL_ID if the server is full.
+	 */
+	public long admit(IDGenerator.Sequence clientIDs) {
+		// Claim a slot first, so that concurrent connects cannot overshoot the limit
+		int count;
+		do {
+			count = clientCount.get();
+			if (count >= maxClients)
+				return IDGenerator.NULL_ID;
+		} while (!clientCount.compareAndSet(count, count + 1));
+
+		long clientID = clientIDs.next();
+		clients.put(Long.valueOf(clientID), new Lease());
+		return clientID;
+	}
+
+	/**
+	 * Check if a client is currently connected.
+	 * 
+	 * @param clientID
+	 *            The ID of the client.
+	 * @return True if the client is connected.
+	 */
+	public boolean isConnected(long clientID) {
+		return clients.containsKey(Long.valueOf(clientID));
+	}
+
+	/**
+	 * Check if a client is currently connected, and if so, extend its lease.
+	 * Use this for the client making a request.
+	 * 
+	 * @param clientID
+	 *            The ID of the client.
+	 * @return True if the client is connected, false if not (or its lease has just been reaped).
+	 */
+	public boolean renew(long clientID) {
+		Lease lease = clients.get(Long.valueOf(clientID));
+		return lease != null && lease.renew();
+	}
+
+	/**
+	 * Remove a client, freeing its slot.
+	 * 
+	 * @param clientID
+	 *            The ID of the client.
+	 * @return True if the client was connected.
+	 */
+	public boolean remove(long clientID) {
+		Lease lease = clients.remove(Long.valueOf(clientID));
+		if (lease != null) {
+			// Renewals already holding the lease fail from now on
+			lease.lastRenewed.set(Lease.ENDED);
+			clientCount.decrementAndGet();
+			return true;
+		} else
+			return false;
+	}
+
+	/**
+	 * Remove every client that has not renewed its lease in time.
+	 * 
+	 * @param leaseNanos
+	 *            How long a lease lasts without being renewed, in nanoseconds.
+	 * @return The IDs of the removed clients.
+	 */
+	public List<Long> reapExpired(long leaseNanos) {
+		List<Long> reapedClients = new ArrayList<Long>();
+		long now = System.nanoTime();
+		for (Map.Entry<Long, Lease> client : clients.entrySet()) {
+			Lease lease = client.getValue();
+			long renewed = lease.lastRenewed.get();
+			// End the lease only if it was not renewed meanwhile, and only count the removal
+			// if a concurrent disconnect did not get there first
+			if (renewed != Lease.ENDED && now - renewed > leaseNanos && lease.end(renewed)
+					&& clients.remove(client.getKey(), lease)) {
+				clientCount.decrementAndGet();
+				reapedClients.add(client.getKey());
+			}
+		}
+		return reapedClients;
+	}
+
+	/**
+	 * Returns the number of connected clients.
+	 * 
+	 * @return The client count.
+	 */
+	public int size() {
+		return clients.size();
+	}
+}
@@ -0,0 +1,221 @@
+/* Pushes new messages to the clients that registered a MailboxListener, instead of waiting
+ * for them to poll.
+ * Deposits are stored (and logged) as usual; each subscription waits for its client's inbox to
+ * fill (see Mailbox.awaitMessages(...)), then claims everything in it and pushes it in one call.
+ * Messages arriving while a push is in flight are sent together in the next one, so a busy
+ * recipient gets fewer, larger pushes.
+ *
+ * Every push runs on a thread of a fixed-size pool, never on a request thread, and a client has
+ * at most one push in flight, so a slow listener only holds up its own messages (which wait in its
+ * inbox, under the usual quota) and never the deposits. Pushes beyond the pool's size wait in its
+ * queue, which holds at most one per client; a hung listener holds a pool thread until the RMI
+ * response timeout (see push.timeout) ends its call.
+ * A push that fails, eg. to a dead client or with an exception thrown by the listener, ends the
+ * subscription; its messages are put back in the inbox for retrieve(...), after any deposited
+ * meanwhile, even if the inbox is over its quota by then. A successful push renews the client's
+ * session, as a request would.
+ *
+ * Delivery is at-least-once for the failures the server sees: a push can fail after the listener
+ * got the messages (eg. the connection drops before the call returns), and those messages are then
+ * delivered again. As with retrieve(...), the messages are logged as removed when claimed, before
+ * the push; if the server itself stops while a push is in flight, they are not recovered.
+ *
+ * Usage:
+ * 1. Create using PushDelivery(...)
+ * 2. Start pushing to a client using register(...), and stop using unregister(...)
+ * 3. Read the figures using getListenerCount(), getPushedCount() and getFailedCount()
+ */
+package server;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import components.communication.MailboxListener;
+import components.messages.ChatMessage;
+import components.messages.Mailbox;
+import components.notices.Status;
+import components.utilities.Log;
+
+class PushDelivery {
+
+	// A client's listener, and the waiting for its next messages
+	private class Subscription implements Runnable {
+		private final long clientID;
+		private final MailboxListener listener;
+
+		// Completed when the inbox has messages
+		private volatile CompletableFuture<Void> arrival = null;
+
+		private Subscription(long clientID, MailboxListener listener) {
+			this.clientID = clientID;
+			this.listener = listener;
+		}
+
+		// Push once the inbox has messages, off the depositing thread
+		private void awaitMessages() {
+			arrival = Mailbox.getInstance().awaitMessages(clientID);
+			arrival.thenRunAsync(this, executor);
+		}
+
+		// Stop waiting, letting go of the inbox (the subscription is no longer current, so nothing is pushed)
+		private void cancel() {
+			CompletableFuture<Void> waiting = arrival;
+			if (waiting != null)
+				waiting.complete(null);
+		}
+
+		// Push everything waiting, then wait again
+		@Override
+		public void run() {
+			// Replaced, or unregistered, while waiting
+			if (!isCurrent())
+				return;
+
+			List<ChatMessage> messages = Mailbox.getInstance().drainMessages(clientID);
+			if (!messages.isEmpty())
+				try {
+					listener.messagesArrived(messages);
+					pushedCount.addAndGet(messages.size());
+					clients.renew(clientID);
+
+				} catch (RemoteException e) {
+					Log.debug("PushDelivery", "run", "Could not push to client %d: %s", clientID, e);
+					fail(messages);
+					return;
+				} catch (RuntimeException e) {
+					// Eg. thrown by the client's listener; the async task would swallow it, losing the messages
+					Log.error("PushDelivery", "run", "Push to client " + clientID + " failed", e);
+					fail(messages);
+					return;
+				}
+
+			if (isCurrent())
+				awaitMessages();
+		}
+
+		// End the subscription, keeping the messages for retrieve
+		private void fail(List<ChatMessage> messages) {
+			failedCount.incrementAndGet();
+			subscriptions.remove(Long.valueOf(clientID), this);
+			restore(messages);
+		}
+
+		private boolean isCurrent() {
+			return subscriptions.get(Long.valueOf(clientID)) == this;
+		}
+	}
+
+	// Clients whose sessions the pushes renew
+	private final ClientRegistry clients;
+
+	// Current subscription of each client
+	private final ConcurrentHashMap<Long, Subscription> subscriptions = new ConcurrentHashMap<Long, Subscription>();
+
+	// Runs the pushes; at most one per subscription at a time, so the queue holds at most one per client
+	private final ExecutorService executor;
+
+	// Figures, for the metrics
+	private final AtomicLong pushedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	/**
+	 * Creates the delivery, with no listeners yet.
+	 *
+	 * @param clients
+	 *            The connected clients, whose sessions are renewed by successful pushes.
+	 * @param maxThreads
+	 *            The most pushes in flight at once; any more wait their turn.
+	 */
+	public PushDelivery(ClientRegistry clients, int maxThreads) {
+		this.clients = clients;
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "Push-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// Let the threads go when no one is listening
+		pool.allowCoreThreadTimeOut(true);
+		executor = pool;
+	}
+
+	/**
+	 * Start pushing the messages for a client to its listener, beginning with those already waiting.
+	 *
+	 * @param clientID
+	 *            The ID of the client.
+	 * @param listener
+	 *            The client's listener, replacing any registered before.
+	 */
+	public void register(long clientID, MailboxListener listener) {
+		Subscription subscription = new Subscription(clientID, listener);
+		Subscription replaced = subscriptions.put(Long.valueOf(clientID), subscription);
+		if (replaced != null)
+			replaced.cancel();
+		subscription.awaitMessages();
+	}
+
+	/**
+	 * Stop pushing to a client; its messages then wait in its inbox.
+	 * A push already in flight still completes.
+	 *
+	 * @param clientID
+	 *            The ID of the client.
+	 */
+	public void unregister(long clientID) {
+		Subscription removed = subscriptions.remove(Long.valueOf(clientID));
+		if (removed != null)
+			removed.cancel();
+	}
+
+	// Put messages that could not be pushed back in their inbox, bypassing its quota
+	private void restore(List<ChatMessage> messages) {
+		int lostCount = 0;
+		for (short status : Mailbox.getInstance().restoreMessages(messages))
+			if (status != Status.SUCCESS)
+				lostCount++;
+		if (lostCount > 0)
+			Log.error("PushDelivery", "restore", "Could not keep " + lostCount + " messages that failed to push", null);
+	}
+
+	/**
+	 * Returns the number of clients with a listener.
+	 *
+	 * @return The count.
+	 */
+	public int getListenerCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * Returns the number of messages pushed since the start.
+	 *
+	 * @return The count.
+	 */
+	public long getPushedCount() {
+		return pushedCount.get();
+	}
+
+	/**
+	 * Returns the number of pushes that failed since the start, each ending a subscription.
+	 *
+	 * @return The count.
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+}
@@ -0,0 +1,467 @@
+/* Admission control for requests, over all transports.
+ * At most a fixed number of requests are handled at once; any request beyond that is
+ * turned away at once with Status.SERVER_BUSY, so that an overloaded server sheds load
+ * instead of letting every request wait longer and longer.
+ * Requests from the NIO transport are run on an executor of virtual threads where the JVM
+ * has them (Java 21 and later), and otherwise, eg. on Java 17, on a pool of platform threads;
+ * either way the admission limit bounds how many run at once. Requests from RMI already have a
+ * thread of their own, so they are only admitted, and run on that thread.
+ * Requests that wait for something before replying, such as long polls, can be given a
+ * DeferredHandler; their start is admitted, and so is their continuation once the wait is over
+ * (see resume(...)), but while they wait they hold no permit and, from the NIO transport, no
+ * thread. From RMI they do hold their RMI thread until the reply, so only a limited number of
+ * them may wait at once; any more are turned away with Status.SERVER_BUSY.
+ *
+ * Usage:
+ * 1. Create using RequestDispatcher(...), with the handler of all requests
+ * 2. At startup, set the handlers of any requests that reply later using setDeferredHandler(...)
+ * 3. Run a request on the calling thread using call(...), or in the background using submit(...)
+ * 4. From a deferred handler, continue the request once its wait is over using resume(...)
+ * 5. Read the load using getInFlight(), getQueued(), getWaiting() and getRejectedCount()
+ * 6. At shutdown, stop using close(...)
+ */
+package server;
+
+import java.lang.reflect.Method;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import components.Commands;
+import components.Commands.Command;
+import components.communication.RPCMessage;
+import components.notices.Status;
+import components.utilities.Log;
+
+public class RequestDispatcher {
+
+	/**
+	 * Handles the requests once admitted.
+	 */
+	public interface Handler {
+		/**
+		 * Handle a request.
+		 *
+		 * @param command
+		 *            The command requested.
+		 * @param request
+		 *            The request packet.
+		 * @return The response packet.
+		 */
+		RPCMessage handle(Command command, RPCMessage request);
+	}
+
+	/**
+	 * Receives the responses of requests run in the background.
+	 */
+	public interface Callback {
+		/**
+		 * Called once the response is ready, on the thread that handled the request
+		 * (or on the submitting thread, if the request was turned away).
+		 *
+		 * @param response
+		 *            The response packet.
+		 */
+		void completed(RPCMessage response);
+	}
+
+	/**
+	 * Handles requests whose response is only ready later, eg. once something has happened.
+	 */
+	public interface DeferredHandler {
+		/**
+		 * Start handling a request. Should return quickly, leaving the waiting to the future.
+		 *
+		 * @param command
+		 *            The command requested.
+		 * @param request
+		 *            The request packet.
+		 * @return A future completed with the response packet, on any thread.
+		 */
+		CompletableFuture<RPCMessage> handle(Command command, RPCMessage request);
+	}
+
+	private final Handler handler;
+
+	// Handlers of the requests that reply later, by command
+	private final Map<Command, DeferredHandler> deferredHandlers = new EnumMap<Command, DeferredHandler>(Command.class);
+
+	// Permits for the requests being handled; null if there is no limit
+	private final Semaphore admission;
+
+	// Permits for the requests with a deferred handler waiting on the calling thread; null if there is no limit
+	private final Semaphore blockingWaits;
+
+	// Runs the requests submitted in the background
+	private final ExecutorService executor;
+
+	// Load figures, for the metrics
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Creates the dispatcher.
+	 *
+	 * @param maxInFlight
+	 *            Most requests handled at once (0 for no limit).
+	 * @param maxBlockingWaits
+	 *            Most requests with a deferred handler waiting on the calling thread at once, ie. through
+	 *            call(...) (0 for no limit).
+	 * @param handler
+	 *            Handles the admitted requests.
+	 */
+	public RequestDispatcher(int maxInFlight, int maxBlockingWaits, Handler handler) {
+		this.handler = handler;
+		admission = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+		blockingWaits = maxBlockingWaits > 0 ? new Semaphore(maxBlockingWaits) : null;
+
+		ExecutorService virtualExecutor = createVirtualExecutor();
+		boolean isVirtual = virtualExecutor != null;
+		if (isVirtual)
+			executor = virtualExecutor;
+		else
+			// Threads are only created while requests are admitted, so the limit bounds them too
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "Request-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		Log.debug("RequestDispatcher", "constructor", "Requests run on %s threads", isVirtual ? "virtual" : "platform");
+	}
+
+	// One virtual thread per task, if the JVM has them (looked up so that the server still runs on older JVMs)
+	private static ExecutorService createVirtualExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			// Eg. a preview feature that is not enabled
+			Log.debug("RequestDispatcher", "createVirtualExecutor", "Virtual threads unavailable: %s", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Have a command handled by a deferred handler instead of the handler of all requests.
+	 * Call this at startup, before any requests are made.
+	 *
+	 * @param command
+	 *            The command.
+	 * @param deferredHandler
+	 *            Handles the command.
+	 */
+	public void setDeferredHandler(Command command, DeferredHandler deferredHandler) {
+		deferredHandlers.put(command, deferredHandler);
+	}
+
+	/**
+	 * Handle a request on the calling thread, if it can be admitted.
+	 * Requests with a deferred handler are waited for on the calling thread, without holding a permit,
+	 * if fewer than the most blocking waits allowed are waiting already.
+	 *
+	 * @param command
+	 *            The command requested.
+	 * @param request
+	 *            The request packet.
+	 * @return The response packet, a Status.SERVER_BUSY response if too many requests are being handled,
+	 *         or a Status.INVALID_REQUEST response if the handler failed.
+	 */
+	public RPCMessage call(Command command, RPCMessage request) {
+		if (!admit())
+			return reject(request);
+
+		DeferredHandler deferredHandler = deferredHandlers.get(command);
+		if (deferredHandler != null) {
+			// Each wait holds the calling thread, so only so many may wait at once
+			if (blockingWaits != null && !blockingWaits.tryAcquire()) {
+				release();
+				return reject(request);
+			}
+
+			CompletableFuture<RPCMessage> response;
+			try {
+				response = deferredHandler.handle(command, request);
+			} catch (RuntimeException e) {
+				// Still answer, as when the future fails
+				Log.error("RequestDispatcher", "call", "Could not start the request", e);
+				response = CompletableFuture.completedFuture(request.createResponse("", Status.INVALID_REQUEST));
+			} finally {
+				release();
+			}
+			waiting.incrementAndGet();
+			try {
+				return response.join();
+			} catch (RuntimeException e) {
+				Log.error("RequestDispatcher", "call", "Could not complete the request", e);
+				return request.createResponse("", Status.INVALID_REQUEST);
+			} finally {
+				waiting.decrementAndGet();
+				if (blockingWaits != null)
+					blockingWaits.release();
+			}
+		}
+
+		try {
+			return handler.handle(command, request);
+		} catch (RuntimeException e) {
+			// Answer like the background requests do, rather than passing the failure on to the caller
+			Log.error("RequestDispatcher", "call", "Could not complete the request", e);
+			return request.createResponse("", Status.INVALID_REQUEST);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Handle a request on the calling thread, if it can be admitted, using a handler of its own.
+	 * Useful for requests that carry more than the packet, eg. a remote object.
+	 *
+	 * @param command
+	 *            The command requested.
+	 * @param request
+	 *            The request packet.
+	 * @param requestHandler
+	 *            Handles the request, if admitted.
+	 * @return The response packet, a Status.SERVER_BUSY response if too many requests are being handled,
+	 *         or a Status.INVALID_REQUEST response if the handler failed.
+	 */
+	public RPCMessage call(Command command, RPCMessage request, Handler requestHandler) {
+		if (!admit())
+			return reject(request);
+		try {
+			return requestHandler.handle(command, request);
+		} catch (RuntimeException e) {
+			Log.error("RequestDispatcher", "call", "Could not complete the request", e);
+			return request.createResponse("", Status.INVALID_REQUEST);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Handle a request in the background, if it can be admitted.
+	 * The command is taken from the procedure ID of the request.
+	 *
+	 * @param request
+	 *            The request packet.
+	 * @param callback
+	 *            Receives the response, or a Status.SERVER_BUSY response if too many requests are being handled.
+	 */
+	public void submit(final RPCMessage request, final Callback callback) {
+		final Command command = Commands.getCommandByID(request.getProcedureID());
+		if (command == null) {
+			callback.completed(request.createResponse("", Status.INVALID_REQUEST));
+			return;
+		}
+		if (!admit()) {
+			callback.completed(reject(request));
+			return;
+		}
+
+		queued.incrementAndGet();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					queued.decrementAndGet();
+					DeferredHandler deferredHandler = deferredHandlers.get(command);
+					if (deferredHandler != null) {
+						start(deferredHandler, command, request, callback);
+						return;
+					}
+
+					RPCMessage response;
+					try {
+						response = handler.handle(command, request);
+					} catch (RuntimeException e) {
+						// Still answer, or the caller would wait for a response that never comes
+						Log.error("RequestDispatcher", "submit", "Could not complete the request", e);
+						response = request.createResponse("", Status.INVALID_REQUEST);
+					} finally {
+						release();
+					}
+					callback.completed(response);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+			queued.decrementAndGet();
+			release();
+			callback.completed(reject(request));
+		}
+	}
+
+	/**
+	 * Continue a request with a deferred handler once its wait is over, eg. to build its response.
+	 * The continuation is admitted like a new request, and run in the background.
+	 *
+	 * @param wait
+	 *            Completed when the wait is over, either way.
+	 * @param request
+	 *            The request packet.
+	 * @param continuation
+	 *            Builds the response, if admitted.
+	 * @return A future completed with the response packet, a Status.SERVER_BUSY response if too many
+	 *         requests are being handled once the wait is over, or a Status.INVALID_REQUEST response if
+	 *         the continuation failed.
+	 */
+	public CompletableFuture<RPCMessage> resume(CompletableFuture<?> wait, final RPCMessage request,
+			final Supplier<RPCMessage> continuation) {
+		final CompletableFuture<RPCMessage> response = new CompletableFuture<RPCMessage>();
+		wait.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object ignored, Throwable error) {
+				if (!admit()) {
+					response.complete(reject(request));
+					return;
+				}
+
+				queued.incrementAndGet();
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							queued.decrementAndGet();
+							try {
+								response.complete(continuation.get());
+							} catch (RuntimeException e) {
+								Log.error("RequestDispatcher", "resume", "Could not complete the request", e);
+								response.complete(request.createResponse("", Status.INVALID_REQUEST));
+							} finally {
+								release();
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// Shutting down
+					queued.decrementAndGet();
+					release();
+					response.complete(reject(request));
+				}
+			}
+		});
+		return response;
+	}
+
+	// Start a request with a deferred handler, and pass on its response once ready, holding no thread meanwhile
+	private void start(DeferredHandler deferredHandler, Command command, final RPCMessage request,
+			final Callback callback) {
+		CompletableFuture<RPCMessage> response;
+		try {
+			response = deferredHandler.handle(command, request);
+		} catch (RuntimeException e) {
+			// Still answer, as when the future fails
+			Log.error("RequestDispatcher", "start", "Could not start the request", e);
+			response = CompletableFuture.completedFuture(request.createResponse("", Status.INVALID_REQUEST));
+		} finally {
+			release();
+		}
+
+		waiting.incrementAndGet();
+		response.whenComplete(new BiConsumer<RPCMessage, Throwable>() {
+			@Override
+			public void accept(RPCMessage message, Throwable error) {
+				waiting.decrementAndGet();
+				if (error != null) {
+					Log.error("RequestDispatcher", "start", "Could not complete the request", new Exception(error));
+					message = request.createResponse("", Status.INVALID_REQUEST);
+				}
+				callback.completed(message);
+			}
+		});
+	}
+
+	// Take a permit, without waiting
+	private boolean admit() {
+		if (admission != null && !admission.tryAcquire())
+			return false;
+		inFlight.incrementAndGet();
+		return true;
+	}
+
+	// Give back a permit
+	private void release() {
+		inFlight.decrementAndGet();
+		if (admission != null)
+			admission.release();
+	}
+
+	// Turn a request away
+	private RPCMessage reject(RPCMessage request) {
+		rejectedCount.incrementAndGet();
+		return request.createResponse("", Status.SERVER_BUSY);
+	}
+
+	/**
+	 * Stop running requests in the background, waiting a while for those already submitted to complete.
+	 * Any submitted afterwards are turned away with Status.SERVER_BUSY.
+	 *
+	 * @param timeoutMillis
+	 *            Longest to wait, in milliseconds.
+	 * @return True if all the requests completed, false if some were still running at the timeout.
+	 */
+	public boolean close(long timeoutMillis) {
+		executor.shutdown();
+		try {
+			return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the number of requests admitted and not completed yet, including those queued.
+	 *
+	 * @return The count.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Returns the number of requests admitted in the background and waiting for a thread.
+	 *
+	 * @return The count.
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * Returns the number of requests with a deferred handler that are waiting for their response.
+	 *
+	 * @return The count.
+	 */
+	public int getWaiting() {
+		return waiting.get();
+	}
+
+	/**
+	 * Returns the number of requests turned away since the start.
+	 *
+	 * @return The count.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+}
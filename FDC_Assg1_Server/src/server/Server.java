@@ -1,5 +1,6 @@
 package server;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -9,16 +10,38 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import server.metrics.MetricsEndpoint;
+import server.metrics.ServerMetrics;
+import server.network.FrameServer;
 
 import components.Commands.Command;
+import components.communication.MailboxListener;
 import components.communication.RPCMessage;
 import components.communication.ServerInterface;
-import components.communication.marshalling.SimpleMarshaller;
+import components.communication.marshalling.MessageListCodec;
 import components.messages.ChatMessage;
 import components.messages.Mailbox;
+import components.messages.persistence.WriteAheadLog;
+import components.messages.persistence.WriteAheadLog.SyncPolicy;
+import components.messages.storage.MappedMessageStore;
 import components.notices.Status;
+import components.utilities.AsyncAppender;
+import components.utilities.AsyncAppender.OverflowPolicy;
 import components.utilities.CSVUtility;
 import components.utilities.IDGenerator;
 import components.utilities.Log;
@@ -26,25 +49,96 @@ import components.utilities.Log;
 public class Server extends UnicastRemoteObject implements ServerInterface {
 	private static final long serialVersionUID = -7869497993259504486L;
 
+	// Longest to wait for the requests under way when the JVM stops, in milliseconds
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
 	// Singleton instance, if needed
 	private static Server instance = null;
 
 	// Clients connected to the system
 	private int maxClients = 0; // loaded from the properties file
-	private List<Long> connectedClients = null;
+	private ClientRegistry connectedClients = null;
+
+	// Session leases: how long a silent client stays connected, and what happens to its inbox afterwards
+	private long sessionLeaseSeconds = 0; // loaded from the properties file; 0 keeps sessions forever
+	private boolean dropInboxOnExpiry = false; // loaded from the properties file
 
-	// Keep track of the RPC IDs observed, in order to keep them globally unique
-	private long largestSeenRPCID = 0l;
+	// Pushes new messages to the clients that registered a listener
+	private PushDelivery pushDelivery = null;
+	private int maxPushThreads = 0; // loaded from the properties file
 
-	// Handle for the ID generator
+	// Last RPC ID handed out by getNextRPCID(...), for clients that still ask for them
+	// (other clients generate their own, see RPCIDGenerator)
+	private final AtomicLong largestSeenRPCID = new AtomicLong();
+
+	// Handle for the ID generator, and its sequences used on every request
 	private IDGenerator idGenerator = null;
+	private IDGenerator.Sequence clientIDs = null;
+	private IDGenerator.Sequence messageIDs = null;
 
 	// Maximum message length
 	private int maxMessageLength = 0; // loaded from the properties file
 
+	// Most messages in a single batch deposit (0 for no limit)
+	private int maxBatchSize = 0; // loaded from the properties file
+
+	// Longest a long poll may wait for mail, in milliseconds
+	private long maxRetrieveWaitMillis = 0; // loaded from the properties file
+
+	// Most long polls waiting at once over RMI, each holding an RMI thread (0 for no limit)
+	private int maxRMIRetrieveWaits = 0; // loaded from the properties file
+
+	// Times out the long polls
+	private ScheduledThreadPoolExecutor waitTimer = null;
+
+	// How long undelivered messages are kept, in seconds (0 keeps them until retrieved)
+	private long messageTTLSeconds = 0; // loaded from the properties file
+
+	// Limits on the messages waiting for a single recipient (0 for no limit)
+	private int maxInboxMessages = 0; // loaded from the properties file
+	private long maxInboxBytes = 0; // loaded from the properties file
+
 	// RMI connection parameters
 	private int port = 0; // loaded from the properties file
 
+	// NIO transport parameters
+	private int framePort = 0; // loaded from the properties file; 0 serves RMI only
+	private String frameAddress = "127.0.0.1"; // loaded from the properties file
+	private int maxFrameBufferBytes = 0; // loaded from the properties file
+
+	// Admits the requests of all transports, up to a limit (0 for no limit)
+	private int maxRequestsInFlight = 0; // loaded from the properties file
+	private RequestDispatcher dispatcher = null;
+
+	// Request metrics, and the address and port serving them (0 to not serve them)
+	private final ServerMetrics metrics = new ServerMetrics();
+	private int metricsPort = 0; // loaded from the properties file
+	private String metricsAddress = "127.0.0.1"; // loaded from the properties file
+
+	// Background logging: queue size (0 to log directly) and what to do when it is full
+	private int logQueueCapacity = 0; // loaded from the properties file
+	private OverflowPolicy logOverflowPolicy = OverflowPolicy.DROP; // loaded from the properties file
+
+	// Message storage parameters
+	private String storageDirectory = null; // loaded from the properties file; null keeps messages in memory only
+	private WriteAheadLog writeAheadLog = null; // null while messages are kept in memory only
+	private SyncPolicy walSyncPolicy = SyncPolicy.GROUP; // loaded from the properties file
+	private long walGroupCommitMillis = 0; // loaded from the properties file
+	private int walGroupCommitRecords = 0; // loaded from the properties file
+	private long snapshotIntervalSeconds = 0; // loaded from the properties file
+	private long idBlockSize = 0; // loaded from the properties file
+	private String storageEngine = null; // loaded from the properties file
+	private int mappedSegmentSize = 0; // loaded from the properties file
+
+	// Runs periodic maintenance, such as snapshots and expiry, off the request threads
+	private ScheduledExecutorService maintenance = null;
+
+	// RMI reads its response timeout once, when its transport first loads, so it is set before this
+	// server is exported (by the UnicastRemoteObject constructor) or makes any call
+	static {
+		setResponseTimeout();
+	}
+
 	public static void main(String args[]) {
 		// Set the logger mode
 		Log.setUserFriendlyMode();
@@ -63,14 +157,25 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 	}
 
 	private Server() throws RemoteException {
-		// Initialize the list of clients
-		connectedClients = new ArrayList<Long>();
-		
-		// Create a new ID generator
-		idGenerator = new IDGenerator();
+		// Start the maintenance thread
+		maintenance = Executors.newSingleThreadScheduledExecutor();
 
 		// Load the configuration parameters
 		boolean isConfigured = loadConfiguration();
+		// Move the logging off the request threads, if requested
+		if (isConfigured && logQueueCapacity > 0)
+			Log.setAppender(new AsyncAppender(logQueueCapacity, logOverflowPolicy));
+		// Initialize the registry of clients, and the admission of requests
+		if (isConfigured) {
+			setupSessions();
+			setupDispatcher();
+		}
+		// Restore any stored messages
+		if (isConfigured)
+			isConfigured = setupStorage();
+		// Serve the metrics
+		if (isConfigured)
+			isConfigured = setupMetrics();
 		// All set?
 		if (isConfigured) {
 
@@ -87,11 +192,67 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 				Log.error("Server", "constructor", "Could not initialize the RMI service", e);
 			}
 
+			// Serve the same requests over the NIO transport, if requested
+			if (framePort > 0)
+				try {
+					new FrameServer(frameAddress, framePort, maxFrameBufferBytes, dispatcher);
+					Log.debug("Server", "constructor", "NIO transport listening on %s:%d", frameAddress, framePort);
+
+				} catch (IOException e) {
+					Log.error("Server", "constructor", "Could not initialize the NIO transport", e);
+				}
+
+			// Finish the requests under way when the JVM stops
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					shutdown();
+				}
+			}, "Shutdown"));
+
 		} else
 			// No, show an error
 			Log.error("Server", "constructor", "Could not configure the server properly", null);
 	}
 
+	// Stop taking requests in the background, wait a while for those under way, then flush the log
+	private void shutdown() {
+		if (!dispatcher.close(SHUTDOWN_TIMEOUT_MILLIS))
+			Log.error("Server", "shutdown", "Some requests were still running at shutdown", null);
+		waitTimer.shutdownNow();
+		maintenance.shutdown();
+
+		if (writeAheadLog != null) {
+			// Let a snapshot under way finish first, so that it does not write to a closed log
+			try {
+				maintenance.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			// Forces the pending records to disk, and stops the group commits
+			writeAheadLog.close();
+		}
+	}
+
+	// Bound the pushes to the clients' listeners, from the properties file
+	private static void setResponseTimeout() {
+		try {
+			Properties config = new Properties();
+			config.load(new FileInputStream("config.properties"));
+
+			// RMI only offers a timeout for all the calls made by this JVM, not per call; besides the pushes,
+			// it bounds the few calls the RMI runtime makes itself, eg. to lease the clients' listeners
+			long pushTimeoutMillis = Long.parseLong(config.getProperty("push.timeout", "5000").trim());
+			if (pushTimeoutMillis > 0)
+				System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(pushTimeoutMillis));
+
+		} catch (IOException e) {
+			// Reported by loadConfiguration()
+		} catch (NumberFormatException e) {
+			Log.error("Server", "setResponseTimeout", "Invalid push.timeout", e);
+		}
+	}
+
 	// Load parameters from the properties file
 	private boolean loadConfiguration() {
 		try {
@@ -102,12 +263,73 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 			// Load the port number for RMI
 			port = Integer.parseInt(config.getProperty("port"));
 
+			// Load the port of the NIO transport
+			framePort = Integer.parseInt(config.getProperty("nio.port", "0").trim());
+			frameAddress = config.getProperty("nio.address", "127.0.0.1").trim();
+			maxFrameBufferBytes = Integer.parseInt(config.getProperty("nio.buffer.max", "4194304").trim());
+
+			// Load the limit on requests handled at once
+			maxRequestsInFlight = Integer.parseInt(config.getProperty("requests.max", "0").trim());
+
 			// Load the maximum allowed connected clients at any time
 			maxClients = Integer.parseInt(config.getProperty("clients.max"));
 
+			// Load the port for the metrics endpoint
+			metricsPort = Integer.parseInt(config.getProperty("metrics.port", "0").trim());
+			metricsAddress = config.getProperty("metrics.address", "127.0.0.1").trim();
+
+			// Load the logging settings
+			logQueueCapacity = Integer.parseInt(config.getProperty("log.async.capacity", "0").trim());
+			logOverflowPolicy = config.getProperty("log.async.policy", "drop").trim().equals("block") ? OverflowPolicy.BLOCK
+					: OverflowPolicy.DROP;
+
 			// Load the maximum length of a message
 			maxMessageLength = Integer.parseInt(config.getProperty("message.length.max"));
 
+			// Load the maximum size of a batch deposit
+			maxBatchSize = Integer.parseInt(config.getProperty("message.batch.max", "0").trim());
+
+			// Load the longest wait of a long poll
+			maxRetrieveWaitMillis = Long.parseLong(config.getProperty("retrieve.wait.max", "30000").trim());
+			maxRMIRetrieveWaits = Integer.parseInt(config.getProperty("retrieve.wait.rmi.max", "64").trim());
+
+			// Load the session lease settings
+			sessionLeaseSeconds = Long.parseLong(config.getProperty("session.lease", "0").trim());
+			dropInboxOnExpiry = config.getProperty("session.expiry.inbox", "keep").trim().equals("drop");
+			// A long poll renews the lease only when it starts and ends, so it must end well within the lease
+			if (sessionLeaseSeconds > 0)
+				maxRetrieveWaitMillis = Math.min(maxRetrieveWaitMillis, TimeUnit.SECONDS.toMillis(sessionLeaseSeconds) / 2);
+
+			// Load the push settings
+			maxPushThreads = Integer.parseInt(config.getProperty("push.threads", "16").trim());
+
+			// Load the time-to-live of a message
+			messageTTLSeconds = Long.parseLong(config.getProperty("message.ttl", "0").trim());
+
+			// Load the inbox quotas
+			maxInboxMessages = Integer.parseInt(config.getProperty("inbox.max.messages", "0").trim());
+			maxInboxBytes = Long.parseLong(config.getProperty("inbox.max.bytes", "0").trim());
+
+			// Load the write-ahead log settings
+			storageDirectory = config.getProperty("storage.directory", "").trim();
+			if (storageDirectory.isEmpty())
+				storageDirectory = null;
+			String syncPolicy = config.getProperty("storage.wal.sync", "group").trim();
+			if (syncPolicy.equals("write"))
+				walSyncPolicy = SyncPolicy.EVERY_WRITE;
+			else if (syncPolicy.equals("os"))
+				walSyncPolicy = SyncPolicy.OS;
+			else
+				walSyncPolicy = SyncPolicy.GROUP;
+			walGroupCommitMillis = Long.parseLong(config.getProperty("storage.wal.group.millis", "5").trim());
+			walGroupCommitRecords = Integer.parseInt(config.getProperty("storage.wal.group.records", "64").trim());
+			snapshotIntervalSeconds = Long.parseLong(config.getProperty("storage.snapshot.interval", "60").trim());
+			idBlockSize = Long.parseLong(config.getProperty("storage.id.block", "1000").trim());
+
+			// Load the storage engine settings
+			storageEngine = config.getProperty("storage.engine", "heap").trim();
+			mappedSegmentSize = Integer.parseInt(config.getProperty("storage.mapped.segment.size", "67108864").trim());
+
 			return true;
 
 		} catch (FileNotFoundException e) {
@@ -120,30 +342,276 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 		}
 	}
 
+	// Admit the requests of all transports, and hand them over to the handlers
+	private void setupDispatcher() {
+		dispatcher = new RequestDispatcher(maxRequestsInFlight, maxRMIRetrieveWaits, new RequestDispatcher.Handler() {
+			@Override
+			public RPCMessage handle(Command command, RPCMessage request) {
+				return Server.this.handle(command, request);
+			}
+		});
+
+		// Long polls wait for mail without holding a permit, or a thread over the NIO transport
+		waitTimer = new ScheduledThreadPoolExecutor(1);
+		waitTimer.setRemoveOnCancelPolicy(true);
+		dispatcher.setDeferredHandler(Command.RetrieveWait, new RequestDispatcher.DeferredHandler() {
+			@Override
+			public CompletableFuture<RPCMessage> handle(final Command command, RPCMessage request) {
+				final long startNanos = System.nanoTime();
+				return handleRetrieveWait(request).thenApply(new Function<RPCMessage, RPCMessage>() {
+					@Override
+					public RPCMessage apply(RPCMessage response) {
+						metrics.record(command, response.getStatus(), startNanos);
+						return response;
+					}
+				});
+			}
+		});
+	}
+
+	// Create the registry of clients, and schedule the reaping of expired sessions
+	private void setupSessions() {
+		connectedClients = new ClientRegistry(maxClients);
+
+		pushDelivery = new PushDelivery(connectedClients, maxPushThreads);
+
+		if (sessionLeaseSeconds > 0) {
+			final long leaseNanos = TimeUnit.SECONDS.toNanos(sessionLeaseSeconds);
+			// Check a few times per lease, so that slots are not held much longer than the lease
+			long reapIntervalMillis = Math.max(1, TimeUnit.SECONDS.toMillis(sessionLeaseSeconds) / 4);
+			maintenance.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					for (Long clientID : connectedClients.reapExpired(leaseNanos)) {
+						Log.debug("Server", "reapSessions", "Session expired for client %d", clientID);
+						pushDelivery.unregister(clientID.longValue());
+						// Discard the mail of the client if requested; otherwise it waits for expiry
+						if (dropInboxOnExpiry)
+							Mailbox.getInstance().drainMessages(clientID.longValue());
+						Mailbox.getInstance().forgetClient(clientID.longValue());
+					}
+				}
+			}, reapIntervalMillis, reapIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Open the write-ahead log, if configured, restore the messages stored in it
+	// and schedule the periodic snapshots and expiry
+	private boolean setupStorage() {
+		// Bound the inboxes
+		Mailbox.getInstance().setInboxQuota(maxInboxMessages, maxInboxBytes);
+
+		// Expire old messages, if requested
+		if (messageTTLSeconds > 0) {
+			Mailbox.getInstance().setMessageTTL(TimeUnit.SECONDS.toMillis(messageTTLSeconds));
+			long expiryInterval = Mailbox.getInstance().getExpiryInterval();
+			maintenance.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					Mailbox.getInstance().expireMessages();
+				}
+			}, expiryInterval, expiryInterval, TimeUnit.MILLISECONDS);
+		}
+
+		// Keep the messages off the heap, if requested
+		if (storageEngine.equals("mapped")) {
+			File segmentDirectory = new File(storageDirectory != null ? storageDirectory : ".", "segments");
+			try {
+				Mailbox.getInstance().setMessageStore(new MappedMessageStore(segmentDirectory, mappedSegmentSize));
+				Log.debug("Server", "setupStorage", "Messages will be kept in " + segmentDirectory);
+			} catch (IOException e) {
+				Log.error("Server", "setupStorage", "Could not create the message segments", e);
+				return false;
+			}
+		}
+
+		if (storageDirectory == null) {
+			// Create a new ID generator
+			setupIDs(new IDGenerator());
+			Log.debug("Server", "setupStorage", "Messages will be kept in memory only");
+			return true;
+		}
+
+		final WriteAheadLog writeAheadLog;
+		try {
+			writeAheadLog = new WriteAheadLog(new File(storageDirectory), walSyncPolicy, walGroupCommitMillis,
+					walGroupCommitRecords);
+			this.writeAheadLog = writeAheadLog;
+			Mailbox.getInstance().setWriteAheadLog(writeAheadLog);
+
+			// Create a new ID generator, that carries on from where the last run stopped
+			setupIDs(new IDGenerator(new File(storageDirectory, "sequences.properties"), idBlockSize));
+			int restoredCount = Mailbox.getInstance().recover(idGenerator);
+
+			Log.debug("Server", "setupStorage", "Restored " + restoredCount + " messages from " + storageDirectory);
+
+		} catch (IOException e) {
+			Log.error("Server", "setupStorage", "Could not open the message log", e);
+			return false;
+		}
+
+		if (snapshotIntervalSeconds > 0) {
+			maintenance.scheduleWithFixedDelay(new Runnable() {
+				// Log position at the last snapshot; no need for another one if nothing has changed since
+				private long snapshotSequence = 0;
+
+				@Override
+				public void run() {
+					long writtenSequence = writeAheadLog.getWrittenSequence();
+					if (writtenSequence == snapshotSequence)
+						return;
+					try {
+						long savedCount = Mailbox.getInstance().takeSnapshot(idGenerator);
+						snapshotSequence = writtenSequence;
+						Log.debug("Server", "snapshot", "Saved " + savedCount + " messages");
+					} catch (IOException e) {
+						Log.error("Server", "snapshot", "Could not save a snapshot of the mailbox", e);
+					}
+				}
+			}, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+		}
+		return true;
+	}
+
+	// Report the state of the server along with the request metrics, and serve them if requested
+	private boolean setupMetrics() {
+		metrics.addGauge("chat_connected_clients", "Clients currently connected.", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return connectedClients.size();
+			}
+		});
+		metrics.addGauge("chat_stored_messages", "Messages waiting to be retrieved.", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return Mailbox.getInstance().getMessageCount();
+			}
+		});
+		metrics.addCounter("chat_expired_messages_total", "Messages removed because they expired.", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return Mailbox.getInstance().getExpiredCount();
+			}
+		});
+
+		metrics.addGauge("chat_requests_in_flight", "Requests admitted and not completed yet.", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return dispatcher.getInFlight();
+			}
+		});
+		metrics.addGauge("chat_requests_queued", "Requests admitted and waiting for a thread.", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return dispatcher.getQueued();
+			}
+		});
+		metrics.addGauge("chat_requests_waiting", "Long polls waiting for mail.", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return dispatcher.getWaiting();
+			}
+		});
+		metrics.addGauge("chat_push_listeners", "Clients with new messages pushed to them.", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return pushDelivery.getListenerCount();
+			}
+		});
+		metrics.addCounter("chat_pushed_messages_total", "Messages pushed to the clients' listeners.",
+				new LongSupplier() {
+					@Override
+					public long getAsLong() {
+						return pushDelivery.getPushedCount();
+					}
+				});
+		metrics.addCounter("chat_push_failures_total", "Pushes that failed, ending the listener's subscription.",
+				new LongSupplier() {
+					@Override
+					public long getAsLong() {
+						return pushDelivery.getFailedCount();
+					}
+				});
+		metrics.addCounter("chat_requests_rejected_total", "Requests turned away because the server was busy.",
+				new LongSupplier() {
+					@Override
+					public long getAsLong() {
+						return dispatcher.getRejectedCount();
+					}
+				});
+
+		if (metricsPort <= 0)
+			return true;
+		try {
+			new MetricsEndpoint(metricsAddress, metricsPort, metrics);
+			Log.debug("Server", "setupMetrics", "Metrics served on %s:%d", metricsAddress, metricsPort);
+			return true;
+		} catch (IOException e) {
+			Log.error("Server", "setupMetrics", "Could not open the metrics port", e);
+			return false;
+		}
+	}
+
+	// Take the handles for the sequences used on every request
+	private void setupIDs(IDGenerator generator) {
+		idGenerator = generator;
+		clientIDs = idGenerator.getSequence("client");
+		messageIDs = idGenerator.getSequence("message");
+	}
+
+	// Handle an admitted request, and record its outcome and latency
+	private RPCMessage handle(Command command, RPCMessage request) {
+		long startNanos = System.nanoTime();
+		RPCMessage response;
+		if (command.equals(Command.Connect))
+			response = handleConnect(request);
+		else if (command.equals(Command.Disconnect))
+			response = handleDisconnect(request);
+		else if (command.equals(Command.Deposit))
+			response = handleDeposit(request);
+		else if (command.equals(Command.DepositBatch))
+			response = handleDepositBatch(request);
+		else if (command.equals(Command.Retrieve))
+			response = handleRetrieve(request);
+		else if (command.equals(Command.Inquire))
+			response = handleInquire(request);
+		else if (command.equals(Command.Heartbeat))
+			response = handleHeartbeat(request);
+		else
+			response = request.createResponse("", Status.INVALID_REQUEST);
+
+		metrics.record(command, response.getStatus(), startNanos);
+		return response;
+	}
+
 	private boolean isConnected(long clientID) {
 		// Check if the client is currently connected to the system
-		return connectedClients.contains(new Long(clientID));
+		return connectedClients.isConnected(clientID);
+	}
+
+	private boolean renewSession(long clientID) {
+		// Check if the client making the request is connected, and extend its lease
+		return connectedClients.renew(clientID);
 	}
 
 	@Override
 	public RPCMessage connect(RPCMessage request) throws RemoteException {
+		return dispatcher.call(Command.Connect, request);
+	}
+
+	// Admit a new client under a freshly generated ID
+	private RPCMessage handleConnect(RPCMessage request) {
 		// Validate request and procedure
 		if (request.validateRequest() && request.validateProcedure(Command.Connect)) {
 
-			// Record the RPC ID
-			largestSeenRPCID = Math.max(largestSeenRPCID, request.getRPCId());
-
-			// Do we have space left?
-			if (connectedClients.size() < maxClients) {
+			// Generate a unique ID for the client and add it to the connected clients, if we have space left
+			long clientID = connectedClients.admit(clientIDs);
+			if (clientID != IDGenerator.NULL_ID) {
 
-				// Generate a unique ID for the client
-				long clientID = idGenerator.getNextInSequence("client");
-				// Add the client to the list of connected clients
-				connectedClients.add(new Long(clientID));
 				// Return the generated client ID to the client
 				RPCMessage response = request.createResponse("" + clientID, Status.SUCCESS);
 
-				Log.debug("Server", "connect", "Generated client ID: " + clientID);
+				Log.debug("Server", "connect", "Generated client ID: %d", clientID);
 				return response;
 
 			} else
@@ -157,17 +625,25 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 
 	@Override
 	public RPCMessage disconnect(RPCMessage request) throws RemoteException {
+		return dispatcher.call(Command.Disconnect, request);
+	}
+
+	// Remove a client from the connected clients
+	private RPCMessage handleDisconnect(RPCMessage request) {
 		// Validate request and procedure
 		if (request.validateRequest() && request.validateProcedure(Command.Disconnect)) {
 
-			// Record the RPC ID
-			largestSeenRPCID = Math.max(largestSeenRPCID, request.getRPCId());
-
 			// Extract the client ID
+			CSVUtility.Fields data = CSVUtility.parse(request.getCsv_data());
+			if (data == null || data.size() < Command.Disconnect.getArgumentCount()) {
+				// Missing the client ID
+				Log.debug("Server", "disconnect", "Too few arguments: %s", request.getCsv_data());
+				return request.createResponse("", Status.INVALID_REQUEST);
+			}
 			long clientID = 0l;
 
 			try {
-				clientID = Long.parseLong(CSVUtility.fromCSV(request.getCsv_data()).get(0));
+				clientID = data.getLong(0);
 
 			} catch (NumberFormatException e) {
 				// Invalid client ID
@@ -175,12 +651,12 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 				return request.createResponse("", Status.INVALID_REQUEST);
 			}
 
-			// Check if the client is currently connected
-			if (isConnected(clientID)) {
-
-				// Remove the client from the list of connected clients
-				connectedClients.remove(new Long(clientID));
+			// Remove the client from the connected clients, if it is connected
+			if (connectedClients.remove(clientID)) {
 
+				// Keep any further mail in the inbox, and let go of the inbox if there is none
+				pushDelivery.unregister(clientID);
+				Mailbox.getInstance().forgetClient(clientID);
 				Log.debug("Server", "disconnect", "Client disconnected");
 				return request.createResponse("", Status.SUCCESS);
 
@@ -195,22 +671,29 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 
 	@Override
 	public RPCMessage deposit(RPCMessage request) throws RemoteException {
+		return dispatcher.call(Command.Deposit, request);
+	}
+
+	// Store a message for its recipient
+	private RPCMessage handleDeposit(RPCMessage request) {
 		// Validate request and procedure
 		if (request.validateRequest() && request.validateProcedure(Command.Deposit)) {
 
-			// Record the RPC ID
-			largestSeenRPCID = Math.max(largestSeenRPCID, request.getRPCId());
-
 			// Extract the message info
-			List<String> data = CSVUtility.fromCSV(request.getCsv_data());
+			CSVUtility.Fields data = CSVUtility.parse(request.getCsv_data());
+			if (data == null || data.size() < Command.Deposit.getArgumentCount()) {
+				// Missing the sender, the recipient or the content
+				Log.debug("Server", "deposit", "Too few arguments: %s", request.getCsv_data());
+				return request.createResponse("", Status.INVALID_REQUEST);
+			}
 
 			// Get the various identifiers
 			long senderID = 0l;
 			long recipientID = 0l;
 
 			try {
-				senderID = Long.parseLong(data.get(0));
-				recipientID = Long.parseLong(data.get(1));
+				senderID = data.getLong(0);
+				recipientID = data.getLong(1);
 
 			} catch (NumberFormatException e) {
 				// Invalid IDs
@@ -219,12 +702,9 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 			}
 
 			// Get the chat message
-			String content = data.get(2);
 			// If there are more data arguments, concatenate them back into the full text string
 			// (because any word separated by spaces is taken as an argument to the function)
-			if (data.size() > 3)
-				for (int i = 3; i < data.size(); i++)
-					content += " " + data.get(i);
+			String content = data.join(2, " ");
 			// Limit the content to the max limit
 			if (content.length() > maxMessageLength)
 				content = content.substring(0, maxMessageLength);
@@ -232,20 +712,20 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 			ChatMessage message = new ChatMessage(IDGenerator.NULL_ID, senderID, recipientID, content, null);
 
 			// Check if the sender is currently connected
-			if (isConnected(message.getSenderID())) {
+			if (renewSession(message.getSenderID())) {
 
 				// Check if the recipient is currently connected
 				if (isConnected(message.getRecipientID())) {
 
 					// Set an ID and the receive date for the message
-					message.setID(idGenerator.getNextInSequence("message"));
+					message.setID(messageIDs.next());
 					message.setReceiveDate(Calendar.getInstance());
 
-					// Add the mail to the mailbox
-					Mailbox.getInstance().addMessage(message);
+					// Add the mail to the mailbox (only succeeds once it is durable)
+					short status = Mailbox.getInstance().addMessage(message);
 
-					Log.debug("Server", "deposit", "Message stored");
-					return request.createResponse("", Status.SUCCESS);
+					Log.debug("Server", "deposit", "Message stored with status %d", status);
+					return request.createResponse("", status);
 
 				} else
 					// Else return an error about invalid recipient
@@ -260,19 +740,118 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 			return request.createResponse("", Status.INVALID_REQUEST);
 	}
 
+	@Override
+	public RPCMessage depositBatch(RPCMessage request) throws RemoteException {
+		return dispatcher.call(Command.DepositBatch, request);
+	}
+
+	// Store many messages, each for its own recipient, with a single durable commit
+	private RPCMessage handleDepositBatch(RPCMessage request) {
+		// Validate request and procedure
+		if (request.validateRequest() && request.validateProcedure(Command.DepositBatch)) {
+
+			// Extract the messages, from the payload or as CSV triples
+			List<ChatMessage> batch;
+			try {
+				batch = request.getPayload() != null ? MessageListCodec.decode(request.getPayload())
+						: parseBatch(request.getCsv_data());
+
+			} catch (IOException e) {
+				Log.error("Server", "depositBatch", "Could not decode the messages", e);
+				return request.createResponse("", Status.INVALID_REQUEST);
+			} catch (NumberFormatException e) {
+				Log.error("Server", "depositBatch", "Argument is not a number", e);
+				return request.createResponse("", Status.INVALID_REQUEST);
+			}
+			if (batch.isEmpty() || (maxBatchSize > 0 && batch.size() > maxBatchSize))
+				return request.createResponse("", Status.INVALID_REQUEST);
+
+			// Check the senders and recipients, once each per batch
+			short[] statuses = new short[batch.size()];
+			Map<Long, Boolean> activeSenders = new HashMap<Long, Boolean>();
+			Map<Long, Boolean> connectedRecipients = new HashMap<Long, Boolean>();
+			List<ChatMessage> accepted = new ArrayList<ChatMessage>(batch.size());
+			Calendar receiveDate = Calendar.getInstance();
+			for (int i = 0; i < statuses.length; i++) {
+				ChatMessage entry = batch.get(i);
+
+				Boolean isSenderActive = activeSenders.get(entry.getSenderID());
+				if (isSenderActive == null) {
+					isSenderActive = Boolean.valueOf(renewSession(entry.getSenderID()));
+					activeSenders.put(entry.getSenderID(), isSenderActive);
+				}
+				Boolean isRecipientConnected = connectedRecipients.get(entry.getRecipientID());
+				if (isRecipientConnected == null) {
+					isRecipientConnected = Boolean.valueOf(isConnected(entry.getRecipientID()));
+					connectedRecipients.put(entry.getRecipientID(), isRecipientConnected);
+				}
+
+				if (!isSenderActive.booleanValue())
+					statuses[i] = Status.INVALID_SENDER;
+				else if (!isRecipientConnected.booleanValue())
+					statuses[i] = Status.INVALID_RECIPIENT;
+				else {
+					// Limit the content to the max limit, and set an ID and the receive date for the message
+					String content = entry.getMessage() != null ? entry.getMessage() : "";
+					if (content.length() > maxMessageLength)
+						content = content.substring(0, maxMessageLength);
+					ChatMessage message = new ChatMessage(messageIDs.next(), entry.getSenderID(),
+							entry.getRecipientID(), content, (Calendar) receiveDate.clone());
+					accepted.add(message);
+					statuses[i] = Status.UNSET;
+				}
+			}
+
+			// Add the valid messages to the mailbox (only succeeds once they are durable)
+			short[] storedStatuses = Mailbox.getInstance().addMessages(accepted);
+			CSVUtility.Builder result = new CSVUtility.Builder();
+			for (int i = 0, stored = 0; i < statuses.length; i++)
+				result.add(statuses[i] == Status.UNSET ? storedStatuses[stored++] : statuses[i]);
+
+			Log.debug("Server", "depositBatch", "%d of %d messages accepted for storage", accepted.size(),
+					statuses.length);
+			return request.createResponse(result.build(), Status.SUCCESS);
+
+		} else
+			// Else return an error
+			return request.createResponse("", Status.INVALID_REQUEST);
+	}
+
+	// Read (sender ID, recipient ID, message) triples; none if the data is not made of triples
+	private static List<ChatMessage> parseBatch(String csv) {
+		CSVUtility.Fields data = CSVUtility.parse(csv);
+		if (data == null)
+			return new ArrayList<ChatMessage>(0);
+		List<ChatMessage> batch = new ArrayList<ChatMessage>(data.size() / 3);
+		if (data.size() % 3 != 0)
+			return batch;
+		for (int i = 0; i < data.size(); i += 3)
+			batch.add(new ChatMessage(IDGenerator.NULL_ID, data.getLong(i), data.getLong(i + 1), data.getString(i + 2),
+					null));
+		return batch;
+	}
+
 	@Override
 	public RPCMessage retrieve(RPCMessage request) throws RemoteException {
+		return dispatcher.call(Command.Retrieve, request);
+	}
+
+	// Hand over and remove all messages waiting for the client
+	private RPCMessage handleRetrieve(RPCMessage request) {
 		// Validate request and procedure
 		if (request.validateRequest() && request.validateProcedure(Command.Retrieve)) {
 
-			// Record the RPC ID
-			largestSeenRPCID = Math.max(largestSeenRPCID, request.getRPCId());
-
 			// Extract the client ID
+			CSVUtility.Fields data = CSVUtility.parse(request.getCsv_data());
+			if (data == null || data.size() < Command.Retrieve.getArgumentCount()) {
+				// Missing the client ID
+				Log.debug("Server", "retrieve", "Too few arguments: %s", request.getCsv_data());
+				return request.createResponse("", Status.INVALID_REQUEST);
+			}
 			long clientID = 0l;
 
 			try {
-				clientID = Long.parseLong(CSVUtility.fromCSV(request.getCsv_data()).get(0));
+				clientID = data.getLong(0);
 
 			} catch (NumberFormatException e) {
 				// Invalid client ID
@@ -280,17 +859,137 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 				return request.createResponse("", Status.INVALID_REQUEST);
 			}
 
+			return drainInbox(request, clientID);
+
+		} else
+			// Else return an error
+			return request.createResponse("", Status.INVALID_REQUEST);
+	}
+
+	@Override
+	public RPCMessage retrieveWait(RPCMessage request) throws RemoteException {
+		// RMI holds this thread while waiting, so only retrieve.wait.rmi.max of these may wait at once;
+		// the NIO transport waits without a thread, and has no such limit
+		return dispatcher.call(Command.RetrieveWait, request);
+	}
+
+	// Hand over and remove all messages waiting for the client, once it has some or the wait is over
+	private CompletableFuture<RPCMessage> handleRetrieveWait(final RPCMessage request) {
+		// Validate request and procedure
+		if (request.validateRequest() && request.validateProcedure(Command.RetrieveWait)) {
+
+			// Extract the client ID and how long to wait
+			CSVUtility.Fields data = CSVUtility.parse(request.getCsv_data());
+			if (data == null || data.size() < Command.RetrieveWait.getArgumentCount()) {
+				// Missing the client ID or the time
+				Log.debug("Server", "retrieveWait", "Too few arguments: %s", request.getCsv_data());
+				return CompletableFuture.completedFuture(request.createResponse("", Status.INVALID_REQUEST));
+			}
+			final long clientID;
+			long waitMillis = 0l;
+
+			try {
+				clientID = data.getLong(0);
+				waitMillis = Math.max(0, Math.min(data.getLong(1), maxRetrieveWaitMillis));
+
+			} catch (NumberFormatException e) {
+				// Invalid IDs or time
+				Log.error("Server", "retrieveWait", "Argument is not a number", e);
+				return CompletableFuture.completedFuture(request.createResponse("", Status.INVALID_REQUEST));
+			}
+
 			// Check if the client is currently connected
-			if (isConnected(clientID)) {
+			if (!renewSession(clientID))
+				return CompletableFuture.completedFuture(request.createResponse("", Status.INVALID_CLIENT));
+
+			// Reply at once if there is mail already
+			final CompletableFuture<Void> arrival = Mailbox.getInstance().awaitMessages(clientID);
+			if (arrival.isDone())
+				return CompletableFuture.completedFuture(drainInbox(request, clientID));
+
+			// Otherwise stop waiting at the timeout, if no mail arrives before it
+			final ScheduledFuture<?> timeout = waitTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					arrival.complete(null);
+				}
+			}, waitMillis, TimeUnit.MILLISECONDS);
+
+			// Drain the inbox off the thread that deposited the mail, admitted like any request
+			return dispatcher.resume(arrival, request, new Supplier<RPCMessage>() {
+				@Override
+				public RPCMessage get() {
+					timeout.cancel(false);
+					return drainInbox(request, clientID);
+				}
+			});
+
+		} else
+			// Else return an error
+			return CompletableFuture.completedFuture(request.createResponse("", Status.INVALID_REQUEST));
+	}
+
+	// Reply with all messages waiting for the client, removing them
+	private RPCMessage drainInbox(RPCMessage request, long clientID) {
+		// Check if the client is currently connected
+		if (renewSession(clientID)) {
+
+			// Get all waiting messages for this client from the mailbox
+			List<ChatMessage> messages = Mailbox.getInstance().drainMessages(clientID);
 
-				// Get all waiting messages for this client from the mailbox
-				List<ChatMessage> messages = Mailbox.getInstance().getMessagesByRecipient(clientID, true);
+			// Send them as a raw payload, sparing the Base64 text encoding
+			return request.createResponse(MessageListCodec.encode(messages), Status.SUCCESS);
 
-				String marshalledData = SimpleMarshaller.marshallToString(messages);
-				if (marshalledData != null)
-					return request.createResponse(marshalledData, Status.SUCCESS);
+		} else
+			// Else return an error
+			return request.createResponse("", Status.INVALID_CLIENT);
+	}
+
+	@Override
+	public RPCMessage registerListener(RPCMessage request, final MailboxListener listener) throws RemoteException {
+		// The listener does not travel in the packet, so the request gets a handler of its own
+		return dispatcher.call(Command.Listen, request, new RequestDispatcher.Handler() {
+			@Override
+			public RPCMessage handle(Command command, RPCMessage request) {
+				long startNanos = System.nanoTime();
+				RPCMessage response = handleRegisterListener(request, listener);
+				metrics.record(command, response.getStatus(), startNanos);
+				return response;
+			}
+		});
+	}
+
+	// Start or stop pushing new messages to the client
+	private RPCMessage handleRegisterListener(RPCMessage request, MailboxListener listener) {
+		// Validate request and procedure
+		if (request.validateRequest() && request.validateProcedure(Command.Listen)) {
+
+			// Extract the client ID
+			CSVUtility.Fields data = CSVUtility.parse(request.getCsv_data());
+			if (data == null || data.size() < Command.Listen.getArgumentCount()) {
+				// Missing the client ID
+				Log.debug("Server", "registerListener", "Too few arguments: %s", request.getCsv_data());
+				return request.createResponse("", Status.INVALID_REQUEST);
+			}
+			long clientID = 0l;
+
+			try {
+				clientID = data.getLong(0);
+
+			} catch (NumberFormatException e) {
+				// Invalid client ID
+				Log.error("Server", "registerListener", "Argument is not a number", e);
+				return request.createResponse("", Status.INVALID_REQUEST);
+			}
+
+			// Check if the client is currently connected
+			if (renewSession(clientID)) {
+
+				if (listener != null)
+					pushDelivery.register(clientID, listener);
 				else
-					return request.createResponse("", Status.MARSHAL_FAILED);
+					pushDelivery.unregister(clientID);
+				return request.createResponse("", Status.SUCCESS);
 
 			} else
 				// Else return an error
@@ -303,20 +1002,27 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 
 	@Override
 	public RPCMessage inquire(RPCMessage request) throws RemoteException {
+		return dispatcher.call(Command.Inquire, request);
+	}
+
+	// Check whether a user is connected
+	private RPCMessage handleInquire(RPCMessage request) {
 		// Validate request and procedure
 		if (request.validateRequest() && request.validateProcedure(Command.Inquire)) {
 
-			// Record the RPC ID
-			largestSeenRPCID = Math.max(largestSeenRPCID, request.getRPCId());
-
 			// Extract the client and user IDs
-			List<String> data = CSVUtility.fromCSV(request.getCsv_data());
+			CSVUtility.Fields data = CSVUtility.parse(request.getCsv_data());
+			if (data == null || data.size() < Command.Inquire.getArgumentCount()) {
+				// Missing the client or the user ID
+				Log.debug("Server", "inquire", "Too few arguments: %s", request.getCsv_data());
+				return request.createResponse("", Status.INVALID_REQUEST);
+			}
 			long clientID = 0l;
 			long userID = 0l;
 
 			try {
-				clientID = Long.parseLong(data.get(0));
-				userID = Long.parseLong(data.get(1));
+				clientID = data.getLong(0);
+				userID = data.getLong(1);
 
 			} catch (NumberFormatException e) {
 				// Invalid IDs
@@ -325,7 +1031,7 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 			}
 
 			// Check if the client is connected
-			if (isConnected(clientID)) {
+			if (renewSession(clientID)) {
 				// Return true if the required user is connected, false if not
 				Log.debug("Server", "inquire", "User is connected");
 				return request.createResponse("" + isConnected(userID), Status.SUCCESS);
@@ -338,12 +1044,56 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 			return request.createResponse("", Status.INVALID_REQUEST);
 	}
 
+	@Override
+	public RPCMessage heartbeat(RPCMessage request) throws RemoteException {
+		return dispatcher.call(Command.Heartbeat, request);
+	}
+
+	// Keep a client's session alive
+	private RPCMessage handleHeartbeat(RPCMessage request) {
+		// Validate request and procedure
+		if (request.validateRequest() && request.validateProcedure(Command.Heartbeat)) {
+
+			// Extract the client ID
+			CSVUtility.Fields data = CSVUtility.parse(request.getCsv_data());
+			if (data == null || data.size() < Command.Heartbeat.getArgumentCount()) {
+				// Missing the client ID
+				Log.debug("Server", "heartbeat", "Too few arguments: %s", request.getCsv_data());
+				return request.createResponse("", Status.INVALID_REQUEST);
+			}
+			long clientID = 0l;
+
+			try {
+				clientID = data.getLong(0);
+
+			} catch (NumberFormatException e) {
+				// Invalid client ID
+				Log.error("Server", "heartbeat", "Argument is not a number", e);
+				return request.createResponse("", Status.INVALID_REQUEST);
+			}
+
+			// Extend the lease, if the client is still connected
+			if (renewSession(clientID))
+				return request.createResponse("", Status.SUCCESS);
+			else
+				// Else return an error
+				return request.createResponse("", Status.INVALID_CLIENT);
+
+		} else
+			// Else return an error
+			return request.createResponse("", Status.INVALID_REQUEST);
+	}
+
 	@Override
 	public long getNextRPCID(long largestRPCIDSeenByClient) throws RemoteException {
-		// Update own track of largest RPC ID with the client's information
-		largestSeenRPCID = Math.max(largestSeenRPCID, largestRPCIDSeenByClient);
-		
-		// Increment and send a new ID
-		return ++largestSeenRPCID;
+		while (true) {
+			// Update own track of largest RPC ID with the client's information
+			long largest = largestSeenRPCID.get();
+			long next = Math.max(largest, largestRPCIDSeenByClient) + 1;
+
+			// Reserve and send a new ID
+			if (largestSeenRPCID.compareAndSet(largest, next))
+				return next;
+		}
 	}
 }
@@ -0,0 +1,78 @@
+/* Embedded HTTP endpoint serving the server metrics to Prometheus.
+ * Uses the HTTP server built into the JDK, with a single thread of its own,
+ * so scrapes never take a thread from the request handling.
+ *
+ * Only listens on the address it is given, which should be loopback unless the metrics are meant
+ * to be scraped from elsewhere.
+ *
+ * Usage:
+ * 1. Start serving using MetricsEndpoint(...); metrics are then at http://<address>:<port>/metrics
+ * 2. Stop serving using close()
+ */
+package server.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class MetricsEndpoint {
+
+	// Content type of the Prometheus text format
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final HttpServer httpServer;
+	private final ExecutorService executor;
+
+	/**
+	 * Start serving the metrics.
+	 *
+	 * @param address
+	 *            The address to listen on (eg. 127.0.0.1 for this machine only, 0.0.0.0 for all interfaces).
+	 * @param port
+	 *            The port to listen on.
+	 * @param metrics
+	 *            The metrics to serve.
+	 * @throws IOException
+	 *             If the address is unknown, or the port could not be opened.
+	 */
+	public MetricsEndpoint(String address, int port, final ServerMetrics metrics) throws IOException {
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName(address), port), 0);
+		httpServer.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				StringBuilder text = new StringBuilder(4096);
+				metrics.writePrometheus(text);
+				byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+
+		executor = Executors.newSingleThreadExecutor();
+		httpServer.setExecutor(executor);
+		httpServer.start();
+	}
+
+	/**
+	 * Stop serving the metrics.
+	 */
+	public void close() {
+		httpServer.stop(0);
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,168 @@
+/* Request metrics of the server, in the Prometheus text format.
+ * For each command, keeps a latency histogram and the number of responses with each status;
+ * request rates follow from the counters. Gauges and counters can be added for any other values
+ * of interest (connected clients, stored messages, etc.), which are read when the metrics are written.
+ * All recording is lock-free, so it can be done on every request.
+ *
+ * Usage:
+ * 1. Record each handled request using record(...)
+ * 2. Add other values using addGauge(...) and addCounter(...)
+ * 3. Get the current metrics using writePrometheus(...), or serve them using MetricsEndpoint
+ */
+package server.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import components.Commands.Command;
+import components.utilities.LatencyHistogram;
+
+public class ServerMetrics {
+
+	// Percentiles reported for each command
+	private static final double[] PERCENTILES = { 0.5, 0.99, 0.999 };
+
+	// Statuses counted separately (from Status.UNSET up); any others are counted with the last one
+	private static final int STATUS_SLOTS = 32;
+
+	// Metrics for a single command
+	private static class CommandMetrics {
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final AtomicLongArray statusCounts = new AtomicLongArray(STATUS_SLOTS);
+	}
+
+	// A named value read on demand
+	private static class Gauge {
+		private final String name;
+		private final String help;
+		private final String type;
+		private final LongSupplier value;
+
+		private Gauge(String name, String help, String type, LongSupplier value) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.value = value;
+		}
+	}
+
+	private final Map<Command, CommandMetrics> commands = new EnumMap<Command, CommandMetrics>(Command.class);
+	private final CopyOnWriteArrayList<Gauge> gauges = new CopyOnWriteArrayList<Gauge>();
+
+	/**
+	 * Creates empty metrics for all commands.
+	 */
+	public ServerMetrics() {
+		// Filled up front, so that the map is only ever read afterwards
+		for (Command command : Command.values())
+			commands.put(command, new CommandMetrics());
+	}
+
+	/**
+	 * Record a handled request.
+	 *
+	 * @param command
+	 *            The command requested.
+	 * @param status
+	 *            The status of the response.
+	 * @param startNanos
+	 *            The System.nanoTime() when handling started.
+	 */
+	public void record(Command command, short status, long startNanos) {
+		CommandMetrics metrics = commands.get(command);
+		metrics.latency.record(System.nanoTime() - startNanos);
+		metrics.statusCounts.incrementAndGet(Math.min(Math.max(status + 1, 0), STATUS_SLOTS - 1));
+	}
+
+	/**
+	 * Returns the latency histogram of a command.
+	 *
+	 * @param command
+	 *            The command.
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getLatency(Command command) {
+		return commands.get(command).latency;
+	}
+
+	/**
+	 * Add a value to be reported along with the request metrics.
+	 *
+	 * @param name
+	 *            The metric name, eg. "chat_connected_clients".
+	 * @param help
+	 *            A short description.
+	 * @param value
+	 *            Supplies the current value.
+	 */
+	public void addGauge(String name, String help, LongSupplier value) {
+		gauges.add(new Gauge(name, help, "gauge", value));
+	}
+
+	/**
+	 * Add a running total to be reported along with the request metrics.
+	 *
+	 * @param name
+	 *            The metric name, ending in "_total", eg. "chat_expired_messages_total".
+	 * @param help
+	 *            A short description.
+	 * @param value
+	 *            Supplies the current total, which must never decrease.
+	 */
+	public void addCounter(String name, String help, LongSupplier value) {
+		gauges.add(new Gauge(name, help, "counter", value));
+	}
+
+	/**
+	 * Write the current metrics in the Prometheus text format.
+	 * Commands that have not been requested yet are left out.
+	 *
+	 * @param out
+	 *            Where to write the metrics.
+	 */
+	public void writePrometheus(StringBuilder out) {
+		out.append("# HELP chat_request_duration_seconds Time taken to handle requests, by command.\n");
+		out.append("# TYPE chat_request_duration_seconds summary\n");
+		for (Map.Entry<Command, CommandMetrics> entry : commands.entrySet()) {
+			LatencyHistogram latency = entry.getValue().latency;
+			long count = latency.getCount();
+			if (count == 0)
+				continue;
+			String command = entry.getKey().getName();
+			for (double percentile : PERCENTILES)
+				out.append("chat_request_duration_seconds{command=\"").append(command).append("\",quantile=\"")
+						.append(percentile).append("\"} ").append(toSeconds(latency.getPercentile(percentile)))
+						.append('\n');
+			out.append("chat_request_duration_seconds_sum{command=\"").append(command).append("\"} ")
+					.append(toSeconds(latency.getSumNanos())).append('\n');
+			out.append("chat_request_duration_seconds_count{command=\"").append(command).append("\"} ").append(count)
+					.append('\n');
+		}
+
+		out.append("# HELP chat_requests_total Requests handled, by command and response status.\n");
+		out.append("# TYPE chat_requests_total counter\n");
+		for (Map.Entry<Command, CommandMetrics> entry : commands.entrySet()) {
+			AtomicLongArray statusCounts = entry.getValue().statusCounts;
+			for (int slot = 0; slot < STATUS_SLOTS; slot++) {
+				long count = statusCounts.get(slot);
+				if (count > 0)
+					out.append("chat_requests_total{command=\"").append(entry.getKey().getName())
+							.append("\",status=\"").append(slot - 1).append("\"} ").append(count).append('\n');
+			}
+		}
+
+		for (Gauge gauge : gauges) {
+			out.append("# HELP ").append(gauge.name).append(' ').append(gauge.help).append('\n');
+			out.append("# TYPE ").append(gauge.name).append(' ').append(gauge.type).append('\n');
+			out.append(gauge.name).append(' ').append(gauge.value.getAsLong()).append('\n');
+		}
+	}
+
+	// Convert nanoseconds to (fractional) seconds, as Prometheus expects
+	private static double toSeconds(long nanos) {
+		return nanos / 1e9;
+	}
+}
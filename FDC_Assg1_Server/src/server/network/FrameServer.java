@@ -0,0 +1,255 @@
+/* NIO transport for the server: an alternative to RMI, without its dispatch threads,
+ * distributed garbage collection or object streams.
+ * A single selector thread accepts TCP connections and reads length-prefixed frames
+ * (see FrameCodec); each request is handed to the RequestDispatcher, which admits and
+ * handles the requests of RMI too, so both transports share all the request handling.
+ * Responses are queued on their connection and written by the selector thread.
+ * The read buffer of a connection only grows as the bytes of a large frame arrive, up to a limit
+ * per connection, and goes back to its initial size once the frame is handed over.
+ * Requests on a connection may be pipelined; responses then come back in the order they
+ * complete, and the client matches them to requests using their RPC IDs.
+ *
+ * Usage:
+ * 1. Start listening using FrameServer(...)
+ * 2. Stop using close()
+ */
+package server.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import server.RequestDispatcher;
+
+import components.communication.FrameCodec;
+import components.communication.RPCMessage;
+import components.utilities.Log;
+
+public class FrameServer {
+
+	// Read buffer of a new connection; grown for frames that do not fit, and shrunk back afterwards
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+
+	// A client connection, with the frames waiting to be written to it
+	private static class Connection {
+		private final SocketChannel channel;
+		private SelectionKey key = null;
+		private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		private final ConcurrentLinkedQueue<ByteBuffer> writes = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private final RequestDispatcher dispatcher;
+
+	// Most bytes buffered for a single connection, ie. the largest frame accepted (header included)
+	private final int maxBufferedBytes;
+	private final Selector selector;
+	private final ServerSocketChannel listener;
+	private final Thread selectorThread;
+
+	// Connections with new responses to write, for the selector thread to pick up
+	private final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+
+	private volatile boolean isRunning = true;
+
+	/**
+	 * Start listening for connections.
+	 *
+	 * @param address
+	 *            The address to listen on (eg. 127.0.0.1 for this machine only, 0.0.0.0 for all interfaces).
+	 * @param port
+	 *            The TCP port to listen on.
+	 * @param maxBufferedBytes
+	 *            Most bytes buffered for a single connection; a client sending a longer frame is disconnected.
+	 * @param dispatcher
+	 *            Admits and handles the requests, as for RMI.
+	 * @throws IOException
+	 *             If the address is unknown, or the port could not be opened.
+	 */
+	public FrameServer(String address, int port, int maxBufferedBytes, RequestDispatcher dispatcher)
+			throws IOException {
+		this.dispatcher = dispatcher;
+		this.maxBufferedBytes = Math.max(INITIAL_BUFFER_SIZE,
+				(int) Math.min(maxBufferedBytes, (long) FrameCodec.HEADER_LENGTH + FrameCodec.MAX_FRAME_LENGTH));
+
+		selector = Selector.open();
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(InetAddress.getByName(address), port));
+		listener.configureBlocking(false);
+		listener.register(selector, SelectionKey.OP_ACCEPT);
+
+		selectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runSelector();
+			}
+		}, "FrameServer-selector");
+		selectorThread.start();
+	}
+
+	/**
+	 * Stop listening, and close all connections.
+	 * Requests being handled are completed, but their responses are not sent.
+	 * The dispatcher is left running, for the other transports.
+	 */
+	public void close() {
+		isRunning = false;
+		selector.wakeup();
+		try {
+			selectorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Accept, read and write until closed
+	private void runSelector() {
+		while (isRunning) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				Log.error("FrameServer", "runSelector", "Could not wait for connections", e);
+				break;
+			}
+
+			// Watch for the connections becoming writable where responses are waiting
+			Connection connection;
+			while ((connection = pendingWrites.poll()) != null)
+				if (connection.key.isValid())
+					connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else {
+						connection = (Connection) key.attachment();
+						if (key.isReadable())
+							read(connection);
+						if (key.isValid() && key.isWritable())
+							write(connection);
+					}
+				} catch (IOException e) {
+					// The client went away, or sent something that is not a frame
+					Log.debug("FrameServer", "runSelector", "Closing connection: %s", e);
+					closeConnection(key);
+				}
+			}
+		}
+
+		// Closed; let go of all the connections
+		for (SelectionKey key : selector.keys())
+			closeConnection(key);
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Log.error("FrameServer", "close", "Could not close the selector", e);
+		}
+	}
+
+	// Accept a new connection
+	private void accept() throws IOException {
+		SocketChannel channel = listener.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		// Frames are small and latency matters more than packet count
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+	}
+
+	// Read what has arrived, and hand over each complete frame
+	private void read(Connection connection) throws IOException {
+		ByteBuffer buffer = connection.readBuffer;
+		if (connection.channel.read(buffer) < 0) {
+			closeConnection(connection.key);
+			return;
+		}
+
+		buffer.flip();
+		int length;
+		while ((length = FrameCodec.getFrameLength(buffer)) >= 0
+				&& buffer.remaining() >= FrameCodec.HEADER_LENGTH + length) {
+			buffer.position(buffer.position() + FrameCodec.HEADER_LENGTH);
+			byte[] packet = new byte[length];
+			buffer.get(packet);
+			dispatch(connection, FrameCodec.decode(packet));
+		}
+
+		if (length >= 0 && FrameCodec.HEADER_LENGTH + length > maxBufferedBytes)
+			throw new IOException("Frame of " + length + " bytes is over the limit of " + maxBufferedBytes);
+
+		// Keep the start of the next frame
+		buffer.compact();
+		if (buffer.capacity() > INITIAL_BUFFER_SIZE && buffer.position() < INITIAL_BUFFER_SIZE)
+			// The large frame has been handed over; let go of its room
+			connection.readBuffer = resize(buffer, INITIAL_BUFFER_SIZE);
+		else if (!buffer.hasRemaining())
+			// Full with part of a frame: make more room, at most twice what has arrived and no more than the frame
+			connection.readBuffer = resize(buffer, Math.min(buffer.capacity() * 2, FrameCodec.HEADER_LENGTH + length));
+	}
+
+	// Move the bytes read so far to a buffer of another size
+	private static ByteBuffer resize(ByteBuffer buffer, int capacity) {
+		ByteBuffer resized = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		resized.put(buffer);
+		return resized;
+	}
+
+	// Write waiting responses until done or the socket is full
+	private void write(Connection connection) throws IOException {
+		ByteBuffer frame;
+		while ((frame = connection.writes.peek()) != null) {
+			connection.channel.write(frame);
+			if (frame.hasRemaining())
+				return;
+			connection.writes.poll();
+		}
+		// All written; the next response to complete registers the connection again
+		connection.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	// Have the request handled, and queue the response
+	private void dispatch(final Connection connection, RPCMessage request) {
+		dispatcher.submit(request, new RequestDispatcher.Callback() {
+			@Override
+			public void completed(RPCMessage response) {
+				try {
+					connection.writes.add(FrameCodec.encode(response));
+					pendingWrites.add(connection);
+					selector.wakeup();
+
+				} catch (IOException e) {
+					Log.error("FrameServer", "dispatch", "Could not send a response", e);
+				}
+			}
+		});
+	}
+
+	// Close a connection, dropping any responses not written yet
+	private void closeConnection(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			Log.error("FrameServer", "closeConnection", "Could not close a connection", e);
+		}
+	}
+}
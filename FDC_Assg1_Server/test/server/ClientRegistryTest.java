@@ -0,0 +1,152 @@
+/* Tests for ClientRegistry: concurrent admissions never overshoot the limit and freed slots can be
+ * taken again, a reaped client can no longer renew, a renewed one is not reaped, and renewals
+ * racing the reaper either keep the lease or lose it for good.
+ */
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import components.utilities.IDGenerator;
+
+public class ClientRegistryTest {
+
+	@Test
+	public void admitsUpToTheLimitUnderContention() throws InterruptedException {
+		final int maxClients = 50;
+		final ClientRegistry registry = new ClientRegistry(maxClients);
+		final IDGenerator.Sequence clientIDs = new IDGenerator().getSequence("client");
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Long> admitted = new ArrayList<Long>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < maxClients; i++) {
+						long clientID = registry.admit(clientIDs);
+						if (clientID != IDGenerator.NULL_ID)
+							synchronized (admitted) {
+								admitted.add(Long.valueOf(clientID));
+							}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(maxClients, admitted.size());
+		assertEquals(maxClients, new HashSet<Long>(admitted).size());
+		assertEquals(maxClients, registry.size());
+		for (Long clientID : admitted)
+			assertTrue(registry.isConnected(clientID.longValue()));
+	}
+
+	@Test
+	public void reusesTheSlotsOfRemovedClients() {
+		ClientRegistry registry = new ClientRegistry(2);
+		IDGenerator.Sequence clientIDs = new IDGenerator().getSequence("client");
+		Set<Long> seen = new HashSet<Long>();
+		long first = registry.admit(clientIDs);
+		assertTrue(seen.add(Long.valueOf(first)));
+		assertTrue(seen.add(Long.valueOf(registry.admit(clientIDs))));
+		assertEquals(IDGenerator.NULL_ID, registry.admit(clientIDs));
+
+		assertTrue(registry.remove(first));
+		long third = registry.admit(clientIDs);
+		// A new client never gets the ID of one that left
+		assertTrue(seen.add(Long.valueOf(third)));
+		assertEquals(2, registry.size());
+	}
+
+	@Test
+	public void reapsOnlyTheLeasesThatRanOut() throws InterruptedException {
+		ClientRegistry registry = new ClientRegistry(10);
+		IDGenerator.Sequence clientIDs = new IDGenerator().getSequence("client");
+		long silent = registry.admit(clientIDs);
+		long active = registry.admit(clientIDs);
+
+		Thread.sleep(20);
+		assertTrue(registry.renew(active));
+		List<Long> reaped = registry.reapExpired(TimeUnit.MILLISECONDS.toNanos(10));
+
+		assertEquals(1, reaped.size());
+		assertEquals(Long.valueOf(silent), reaped.get(0));
+		assertFalse(registry.isConnected(silent));
+		assertFalse(registry.renew(silent));
+		assertTrue(registry.isConnected(active));
+		assertEquals(1, registry.size());
+	}
+
+	@Test
+	public void failsToRenewARemovedClient() {
+		ClientRegistry registry = new ClientRegistry(1);
+		IDGenerator.Sequence clientIDs = new IDGenerator().getSequence("client");
+		long clientID = registry.admit(clientIDs);
+		assertTrue(registry.remove(clientID));
+		assertFalse(registry.remove(clientID));
+		assertFalse(registry.renew(clientID));
+		// Its slot is free again
+		assertTrue(registry.admit(clientIDs) != IDGenerator.NULL_ID);
+	}
+
+	@Test
+	public void renewalsRacingTheReaperNeverSurviveAReap() throws InterruptedException {
+		final ClientRegistry registry = new ClientRegistry(100);
+		IDGenerator.Sequence clientIDs = new IDGenerator().getSequence("client");
+		final long[] admitted = new long[100];
+		for (int i = 0; i < admitted.length; i++)
+			admitted[i] = registry.admit(clientIDs);
+
+		// Renew every client until its lease is found ended, while the reaper ends them all
+		final AtomicBoolean isReaping = new AtomicBoolean(true);
+		final List<Long> stillRenewing = new ArrayList<Long>();
+		Thread renewer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				boolean[] isEnded = new boolean[admitted.length];
+				while (isReaping.get())
+					for (int i = 0; i < admitted.length; i++)
+						if (!isEnded[i])
+							isEnded[i] = !registry.renew(admitted[i]);
+				for (int i = 0; i < admitted.length; i++)
+					if (registry.renew(admitted[i]))
+						stillRenewing.add(Long.valueOf(admitted[i]));
+			}
+		});
+		renewer.start();
+
+		List<Long> reaped = new ArrayList<Long>();
+		while (reaped.size() < admitted.length)
+			reaped.addAll(registry.reapExpired(-1));
+		isReaping.set(false);
+		renewer.join();
+
+		// Every client was reaped exactly once, and none of them can renew afterwards
+		assertEquals(admitted.length, reaped.size());
+		assertEquals(0, registry.size());
+		assertTrue("Renewed after being reaped: " + stillRenewing, stillRenewing.isEmpty());
+		for (int i = 0; i < admitted.length; i++)
+			assertTrue(registry.admit(clientIDs) != IDGenerator.NULL_ID);
+	}
+}